@@ -0,0 +1,37 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * How consecutive frames are combined into one kymograph row when binning
+ * frames in time.
+ */
+public enum BinningMode
+{
+	/** Sum of the frames. */
+	SUM,
+	/** Mean of the frames. */
+	MEAN,
+	/** Maximum of the frames. */
+	MAX
+}
@@ -0,0 +1,233 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Estimates the translation of each frame of a sequence with respect to its
+ * first frame, by phase correlation. Frames are projected over their
+ * channels and downsampled so that the correlation is computed on images of
+ * at most {@link #getMaxSize()} pixels per side, with a single FFT plan and
+ * the spectrum of the reference frame computed once.
+ * <p>
+ * The estimated translations are meant to shift the sampling coordinates of
+ * kymographs, so that the movie itself never has to be registered.
+ * Instances are not thread-safe, as the FFT buffers are reused from one
+ * frame to the next.
+ */
+public class DriftEstimator
+{
+
+	public static final int DEFAULT_MAX_SIZE = 128;
+
+	private final int width;
+
+	private final int height;
+
+	private final int maxSize;
+
+	/** Downsampling factor of the frames. */
+	private final int factor;
+
+	private final int sizeX;
+
+	private final int sizeY;
+
+	private final DoubleFFT_2D fft;
+
+	/** Apodization window, to avoid the correlation of the frame borders. */
+	private final double[] window;
+
+	/** Spectrum of the reference frame, interleaved real and imaginary parts. */
+	private double[] referenceFFT;
+
+	private final double[] frameFFT;
+
+	private final double[] projection;
+
+	private final double[] line;
+
+	/**
+	 * Creates an estimator for frames of the specified size, downsampled to
+	 * at most {@link #DEFAULT_MAX_SIZE} pixels per side.
+	 */
+	public DriftEstimator( final int width, final int height )
+	{
+		this( width, height, DEFAULT_MAX_SIZE );
+	}
+
+	public DriftEstimator( final int width, final int height, final int maxSize )
+	{
+		this.width = width;
+		this.height = height;
+		this.maxSize = maxSize;
+		this.factor = Math.max( 1, ( Math.max( width, height ) + maxSize - 1 ) / maxSize );
+		this.sizeX = Math.max( 1, width / factor );
+		this.sizeY = Math.max( 1, height / factor );
+		this.fft = new DoubleFFT_2D( sizeY, sizeX );
+		this.frameFFT = new double[ 2 * sizeX * sizeY ];
+		this.projection = new double[ sizeX * sizeY ];
+		this.line = new double[ width ];
+		this.window = new double[ sizeX * sizeY ];
+		for ( int y = 0; y < sizeY; y++ )
+		{
+			final double wy = 0.5 - 0.5 * Math.cos( 2 * Math.PI * ( y + 0.5 ) / sizeY );
+			for ( int x = 0; x < sizeX; x++ )
+				window[ y * sizeX + x ] = wy * ( 0.5 - 0.5 * Math.cos( 2 * Math.PI * ( x + 0.5 ) / sizeX ) );
+		}
+	}
+
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Estimates the translation of each frame of the specified sequence with
+	 * respect to its first frame.
+	 *
+	 * @return the translations, indexed by frame, as <code>{dx, dy}</code>
+	 *         in pixels: the structures at <code>(x, y)</code> in the first
+	 *         frame are at <code>(x + dx, y + dy)</code> in the frame.
+	 */
+	public double[][] estimateDrift( final Sequence sequence )
+	{
+		if ( sequence.getSizeX() != width || sequence.getSizeY() != height )
+			throw new IllegalArgumentException( "Estimator built for " + width + "x" + height + " frames, but sequence has " + sequence.getSizeX() + "x" + sequence.getSizeY() + " frames." );
+		final int sizeT = sequence.getSizeT();
+		final double[][] drift = new double[ sizeT ][ 2 ];
+		if ( sizeT == 0 )
+			return drift;
+
+		project( sequence, 0 );
+		transform( frameFFT );
+		referenceFFT = frameFFT.clone();
+		for ( int t = 1; t < sizeT; t++ )
+		{
+			project( sequence, t );
+			transform( frameFFT );
+			estimateShift( drift[ t ] );
+		}
+		return drift;
+	}
+
+	/**
+	 * Averages the channels of a frame over blocks of
+	 * <code>factor x factor</code> pixels. Blocks are truncated to the frame
+	 * along a side shorter than the downsampling factor.
+	 */
+	private void project( final Sequence sequence, final int t )
+	{
+		Arrays.fill( projection, 0 );
+		final boolean signed = sequence.isSignedDataType();
+		final int sizeC = sequence.getSizeC();
+		final int endY = Math.min( sizeY * factor, height );
+		final int endX = Math.min( sizeX * factor, width );
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			final Object data = sequence.getDataXY( t, 0, c );
+			for ( int y = 0; y < endY; y++ )
+			{
+				Array1DUtil.arrayToDoubleArray( data, y * width, line, 0, width, signed );
+				final int offset = ( y / factor ) * sizeX;
+				for ( int x = 0; x < endX; x++ )
+					projection[ offset + x / factor ] += line[ x ];
+			}
+		}
+	}
+
+	/**
+	 * Removes the mean of the projection, applies the window and computes
+	 * its spectrum.
+	 */
+	private void transform( final double[] out )
+	{
+		double mean = 0;
+		for ( final double v : projection )
+			mean += v;
+		mean /= projection.length;
+		for ( int i = 0; i < projection.length; i++ )
+		{
+			out[ 2 * i ] = ( projection[ i ] - mean ) * window[ i ];
+			out[ 2 * i + 1 ] = 0;
+		}
+		fft.complexForward( out );
+	}
+
+	/**
+	 * Computes the normalized cross-power spectrum of the current frame and
+	 * the reference, and finds the peak of its inverse transform with
+	 * sub-pixel accuracy.
+	 */
+	private void estimateShift( final double[] shift )
+	{
+		for ( int i = 0; i < frameFFT.length; i += 2 )
+		{
+			final double re = frameFFT[ i ] * referenceFFT[ i ] + frameFFT[ i + 1 ] * referenceFFT[ i + 1 ];
+			final double im = frameFFT[ i + 1 ] * referenceFFT[ i ] - frameFFT[ i ] * referenceFFT[ i + 1 ];
+			final double norm = Math.sqrt( re * re + im * im );
+			frameFFT[ i ] = ( norm > 1e-12 ) ? re / norm : 0;
+			frameFFT[ i + 1 ] = ( norm > 1e-12 ) ? im / norm : 0;
+		}
+		fft.complexInverse( frameFFT, true );
+
+		int peak = 0;
+		for ( int i = 1; i < sizeX * sizeY; i++ )
+			if ( frameFFT[ 2 * i ] > frameFFT[ 2 * peak ] )
+				peak = i;
+		final int px = peak % sizeX;
+		final int py = peak / sizeX;
+		final double dx = px + subPixelOffset( value( px - 1, py ), value( px, py ), value( px + 1, py ) );
+		final double dy = py + subPixelOffset( value( px, py - 1 ), value( px, py ), value( px, py + 1 ) );
+		shift[ 0 ] = factor * ( ( dx > sizeX / 2d ) ? dx - sizeX : dx );
+		shift[ 1 ] = factor * ( ( dy > sizeY / 2d ) ? dy - sizeY : dy );
+	}
+
+	/**
+	 * Returns the correlation at the specified position, wrapped around the
+	 * borders.
+	 */
+	private double value( final int x, final int y )
+	{
+		final int xx = Math.floorMod( x, sizeX );
+		final int yy = Math.floorMod( y, sizeY );
+		return frameFFT[ 2 * ( yy * sizeX + xx ) ];
+	}
+
+	/**
+	 * Returns the offset of the maximum of the parabola through three
+	 * values, within half a pixel.
+	 */
+	private static double subPixelOffset( final double left, final double center, final double right )
+	{
+		final double denominator = left - 2 * center + right;
+		if ( denominator >= 0 )
+			return 0;
+		return Math.max( -0.5, Math.min( 0.5, 0.5 * ( left - right ) / denominator ) );
+	}
+}
@@ -0,0 +1,230 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import plugins.kernel.roi.roi2d.ROI2DShape;
+import plugins.tinevez.kymographtracker.spline.ParametricSmoothingSpline;
+
+/**
+ * Path that moves and deforms over time, defined by ROIs drawn at a few key
+ * frames. The sampling mask of each frame is interpolated between the masks
+ * of the surrounding key frames, so that a kymograph can follow a structure
+ * that drifts or bends during the acquisition.
+ * <p>
+ * Each key frame is sampled at the same number of columns, evenly spaced
+ * along its smoothing spline, and column positions and profile directions
+ * are interpolated linearly between key frames. The interpolation fraction
+ * is quantized so that no column moves by more than
+ * {@link #MAX_DISPLACEMENT} pixels between two consecutive levels: frames
+ * that fall in the same level share the same mask. Masks are compiled
+ * lazily and only the masks of the last key frame interval used are kept,
+ * so that the per-frame cost stays close to the one of a static path.
+ */
+public class KeyframedPath
+{
+
+	/**
+	 * Maximal displacement of a column between two quantization levels of
+	 * the interpolation, in pixels.
+	 */
+	public static final double MAX_DISPLACEMENT = 0.25;
+
+	private final ROItoKymograph extractor;
+
+	private final int width;
+
+	private final int height;
+
+	private final TreeMap< Integer, ROI2DShape > keyframes = new TreeMap< Integer, ROI2DShape >();
+
+	/**
+	 * Column positions and profile directions of each key frame, indexed by
+	 * column, as <code>{x, y, ux, uy}</code>. Computed lazily.
+	 */
+	private final TreeMap< Integer, double[][] > columns = new TreeMap< Integer, double[][] >();
+
+	private int numColumns = -1;
+
+	/**
+	 * First and last frames of the key frame interval of the cached masks.
+	 */
+	private int cachedStart = Integer.MIN_VALUE;
+
+	private int cachedEnd = Integer.MIN_VALUE;
+
+	private KymographMask[] cachedMasks;
+
+	/**
+	 * @param extractor
+	 *            the extractor whose parameters are used to compile the masks.
+	 * @param width
+	 *            the width of the frames.
+	 * @param height
+	 *            the height of the frames.
+	 */
+	public KeyframedPath( final ROItoKymograph extractor, final int width, final int height )
+	{
+		this.extractor = extractor;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Sets the ROI of the path at the specified frame.
+	 */
+	public synchronized void addKeyframe( final int t, final ROI2DShape roi )
+	{
+		keyframes.put( t, roi );
+		columns.clear();
+		numColumns = -1;
+		cachedStart = Integer.MIN_VALUE;
+		cachedEnd = Integer.MIN_VALUE;
+		cachedMasks = null;
+	}
+
+	public Map< Integer, ROI2DShape > getKeyframes()
+	{
+		return keyframes;
+	}
+
+	/**
+	 * Returns the number of columns of the kymograph, set by the longest key
+	 * frame.
+	 */
+	public synchronized int getNumColumns()
+	{
+		if ( numColumns < 0 )
+		{
+			if ( keyframes.isEmpty() )
+				throw new IllegalStateException( "No key frame in path" );
+			double maxLength = 0;
+			for ( final ROI2DShape roi : keyframes.values() )
+				maxLength = Math.max( maxLength, Util.getSplineLength( roi ) );
+			numColumns = Math.max( 2, ( int ) Math.floor( maxLength / extractor.resamplingStep ) + 1 );
+		}
+		return numColumns;
+	}
+
+	/**
+	 * Returns the sampling mask of the specified frame. Frames before the
+	 * first key frame and after the last one use the mask of the nearest key
+	 * frame.
+	 */
+	public synchronized KymographMask getMask( final int t )
+	{
+		if ( keyframes.isEmpty() )
+			throw new IllegalStateException( "No key frame in path" );
+		final Map.Entry< Integer, ROI2DShape > first = keyframes.floorEntry( t );
+		if ( first == null )
+			return getMask( keyframes.firstKey(), keyframes.firstKey(), 0 );
+		final Map.Entry< Integer, ROI2DShape > last = keyframes.higherEntry( first.getKey() );
+		if ( last == null )
+			return getMask( first.getKey(), first.getKey(), 0 );
+
+		final double fraction = ( double ) ( t - first.getKey() ) / ( last.getKey() - first.getKey() );
+		return getMask( first.getKey(), last.getKey(), fraction );
+	}
+
+	/**
+	 * Returns the mask interpolated at the specified fraction of the interval
+	 * between two key frames, compiling it if it is not cached.
+	 */
+	private KymographMask getMask( final int t0, final int t1, final double fraction )
+	{
+		final double[][] c0 = getColumns( t0 );
+		final double[][] c1 = getColumns( t1 );
+		if ( cachedStart != t0 || cachedEnd != t1 || cachedMasks == null )
+		{
+			double maxDisplacement = 0;
+			for ( int j = 0; j < c0.length; j++ )
+				maxDisplacement = Math.max( maxDisplacement, Math.hypot( c1[ j ][ 0 ] - c0[ j ][ 0 ], c1[ j ][ 1 ] - c0[ j ][ 1 ] ) );
+			final int numLevels = 1 + ( int ) Math.ceil( maxDisplacement / MAX_DISPLACEMENT );
+			cachedStart = t0;
+			cachedEnd = t1;
+			cachedMasks = new KymographMask[ numLevels ];
+		}
+		final int level = ( cachedMasks.length == 1 ) ? 0 : ( int ) Math.round( fraction * ( cachedMasks.length - 1 ) );
+		if ( cachedMasks[ level ] == null )
+		{
+			final double f = ( cachedMasks.length == 1 ) ? 0 : ( double ) level / ( cachedMasks.length - 1 );
+			final double[][] interpolated = new double[ c0.length ][ 4 ];
+			for ( int j = 0; j < c0.length; j++ )
+			{
+				for ( int d = 0; d < 4; d++ )
+					interpolated[ j ][ d ] = ( 1 - f ) * c0[ j ][ d ] + f * c1[ j ][ d ];
+				final double norm = Math.hypot( interpolated[ j ][ 2 ], interpolated[ j ][ 3 ] );
+				if ( norm > 0 )
+				{
+					interpolated[ j ][ 2 ] /= norm;
+					interpolated[ j ][ 3 ] /= norm;
+				}
+			}
+			cachedMasks[ level ] = extractor.compileProfileMask( width, height, interpolated );
+		}
+		return cachedMasks[ level ];
+	}
+
+	/**
+	 * Returns the column positions and profile directions of a key frame.
+	 */
+	private double[][] getColumns( final int t )
+	{
+		double[][] c = columns.get( t );
+		if ( c == null )
+		{
+			final ROI2DShape roi = keyframes.get( t );
+			final ParametricSmoothingSpline spline = Util.getSplineFromROI( roi );
+			final double length = spline.getLength();
+			final int n = getNumColumns();
+			final double[] abscissae = new double[ n ];
+			for ( int j = 0; j < n; j++ )
+				abscissae[ j ] = length * j / ( n - 1 );
+			final double[] xs = new double[ n ];
+			final double[] ys = new double[ n ];
+			final double[] dxs = new double[ n ];
+			final double[] dys = new double[ n ];
+			spline.getXSpline().evaluate( abscissae, xs, dxs );
+			spline.getYSpline().evaluate( abscissae, ys, dys );
+			c = new double[ n ][];
+			for ( int j = 0; j < n; j++ )
+			{
+				final double norm = Math.sqrt( dxs[ j ] * dxs[ j ] + dys[ j ] * dys[ j ] );
+				c[ j ] = new double[] { xs[ j ], ys[ j ], dys[ j ] / norm, -dxs[ j ] / norm };
+			}
+			columns.put( t, c );
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the column positions of the path at the specified frame.
+	 */
+	public ArrayList< double[] > getSamplingPositions( final int t )
+	{
+		return getMask( t ).getSamplingPositions();
+	}
+}
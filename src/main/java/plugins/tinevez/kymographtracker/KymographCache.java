@@ -0,0 +1,451 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
+import icy.type.DataType;
+import plugins.kernel.roi.roi2d.ROI2DShape;
+
+/**
+ * Cache of extracted kymographs, so that extracting again the kymographs of
+ * unchanged ROIs does not recompute them, nor their anterograde and
+ * retrograde separation.
+ * <p>
+ * Kymographs are keyed on the points of the ROI, the extraction parameters
+ * and the source sequence. The entries of a source sequence are invalidated
+ * when its data changes or when it is closed. The least recently used
+ * entries are evicted when the memory used by the cached kymographs exceeds
+ * the memory budget.
+ */
+public class KymographCache implements SequenceListener
+{
+
+	/** Default memory budget: 256 MB. */
+	public static final long DEFAULT_MEMORY_BUDGET = 256l * 1024 * 1024;
+
+	/** Entries, in access order. */
+	private final LinkedHashMap< Key, Entry > entries = new LinkedHashMap< Key, Entry >( 16, 0.75f, true );
+
+	private long memoryBudget;
+
+	private long memoryUsed = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	public KymographCache()
+	{
+		this( DEFAULT_MEMORY_BUDGET );
+	}
+
+	public KymographCache( final long memoryBudget )
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns the cached kymographs for the specified key, or
+	 * <code>null</code> if they are not in the cache.
+	 */
+	public synchronized Entry get( final Key key )
+	{
+		final Entry entry = entries.get( key );
+		if ( entry == null )
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry;
+	}
+
+	/**
+	 * Adds kymographs to the cache, then evicts the least recently used
+	 * entries until the cache fits in its memory budget. Kymographs larger
+	 * than the budget are not cached.
+	 */
+	public synchronized void put( final Key key, final Entry entry )
+	{
+		if ( entry.size > memoryBudget )
+			return;
+
+		final Entry previous = entries.put( key, entry );
+		if ( previous != null )
+			memoryUsed -= previous.size;
+		memoryUsed += entry.size;
+		key.source.addListener( this );
+		evict();
+	}
+
+	/**
+	 * Removes and returns the entry of the same ROI, extracted with the same
+	 * parameters, before the ROI was edited. Its kymographs can then be
+	 * updated incrementally.
+	 *
+	 * @return the previous entry, or <code>null</code> if there is none.
+	 */
+	public synchronized Entry removePreviousVersion( final Key key )
+	{
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			if ( e.getKey().isPreviousVersionOf( key ) )
+			{
+				memoryUsed -= e.getValue().size;
+				it.remove();
+				return e.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all the entries extracted from the specified sequence.
+	 */
+	public synchronized void invalidate( final Sequence source )
+	{
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			if ( e.getKey().source == source )
+			{
+				memoryUsed -= e.getValue().size;
+				it.remove();
+			}
+		}
+		source.removeListener( this );
+	}
+
+	public synchronized void clear()
+	{
+		for ( final Key key : entries.keySet() )
+			key.source.removeListener( this );
+		entries.clear();
+		memoryUsed = 0;
+	}
+
+	/**
+	 * Sets the maximal memory used by the cached kymographs, in bytes.
+	 */
+	public synchronized void setMemoryBudget( final long memoryBudget )
+	{
+		this.memoryBudget = memoryBudget;
+		evict();
+	}
+
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	public synchronized long getMemoryUsed()
+	{
+		return memoryUsed;
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	private void evict()
+	{
+		final Iterator< Entry > it = entries.values().iterator();
+		while ( memoryUsed > memoryBudget && it.hasNext() )
+		{
+			memoryUsed -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "KymographCache: " + entries.size() + " entries, " + ( memoryUsed / 1024 ) + " / " + ( memoryBudget / 1024 ) + " kB, "
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+	@Override
+	public void sequenceChanged( final SequenceEvent sequenceEvent )
+	{
+		if ( sequenceEvent.getSourceType() == SequenceEventSourceType.SEQUENCE_DATA )
+			invalidate( sequenceEvent.getSequence() );
+	}
+
+	@Override
+	public void sequenceClosed( final Sequence sequence )
+	{
+		invalidate( sequence );
+	}
+
+	/**
+	 * Returns the number of bytes used by the pixels of a sequence.
+	 */
+	static long sizeOf( final Sequence sequence )
+	{
+		final DataType dataType = sequence.getDataType_();
+		final long bytesPerPixel = ( dataType == null ) ? 8 : dataType.getSize();
+		return bytesPerPixel * sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ() * sequence.getSizeT() * sequence.getSizeC();
+	}
+
+	/**
+	 * Kymographs extracted along one ROI.
+	 */
+	public static class Entry
+	{
+		/** The mask the kymographs were extracted with. */
+		public final KymographMask mask;
+
+		/** The kymograph, before separation. */
+		public final Sequence rawKymograph;
+
+		/**
+		 * The kymograph, or the filtered, anterograde and retrograde
+		 * kymographs if they were separated.
+		 */
+		public final Sequence[] kymographs;
+
+		/**
+		 * The multi-resolution pyramid of the kymograph shown, the filtered
+		 * one if the kymographs were separated, or <code>null</code> if it
+		 * was not built.
+		 */
+		public final KymographPyramid pyramid;
+
+		/**
+		 * The result the kymographs were published in, or <code>null</code>
+		 * if they were not published yet.
+		 */
+		KymographExtractionResult result;
+
+		final long size;
+
+		/**
+		 * @param mask
+		 *            the mask the kymographs were extracted with.
+		 * @param rawKymograph
+		 *            the kymograph, before separation.
+		 * @param kymographs
+		 *            the kymograph, or the filtered, anterograde and
+		 *            retrograde kymographs if they were separated.
+		 */
+		public Entry( final KymographMask mask, final Sequence rawKymograph, final Sequence[] kymographs )
+		{
+			this( mask, rawKymograph, kymographs, null );
+		}
+
+		/**
+		 * @param mask
+		 *            the mask the kymographs were extracted with.
+		 * @param rawKymograph
+		 *            the kymograph, before separation.
+		 * @param kymographs
+		 *            the kymograph, or the filtered, anterograde and
+		 *            retrograde kymographs if they were separated.
+		 * @param pyramid
+		 *            the pyramid of the kymograph shown, or
+		 *            <code>null</code>.
+		 */
+		public Entry( final KymographMask mask, final Sequence rawKymograph, final Sequence[] kymographs, final KymographPyramid pyramid )
+		{
+			this.mask = mask;
+			this.rawKymograph = rawKymograph;
+			this.kymographs = kymographs;
+			this.pyramid = pyramid;
+			long s = 4l * ( mask.columnStart.length + mask.counts.length + mask.offsets.length );
+			if ( mask.weights != null )
+				s += 4l * mask.weights.length;
+			for ( final Sequence kymograph : kymographs )
+				s += sizeOf( kymograph );
+			if ( kymographs[ 0 ] != rawKymograph )
+				s += sizeOf( rawKymograph );
+			if ( pyramid != null )
+				s += pyramid.getSize();
+			this.size = s;
+		}
+	}
+
+	/**
+	 * Identifies the kymographs extracted along a ROI with a given set of
+	 * parameters. The source sequence is compared by identity. The ROI itself
+	 * is only used to find the previous version of an edited ROI.
+	 */
+	public static class Key
+	{
+		final Sequence source;
+
+		final ROI2DShape roi;
+
+		final double[] points;
+
+		final double diskRadius;
+
+		final double resamplingStep;
+
+		final SamplingInterpolation interpolation;
+
+		final ProfileAggregation aggregation;
+
+		final int temporalBinning;
+
+		final BinningMode binningMode;
+
+		final BleachCorrection bleachCorrection;
+
+		final int backgroundWindow;
+
+		final boolean unwrapClosedContours;
+
+		final DataType dataType;
+
+		final boolean separated;
+
+		private final int hash;
+
+		public Key( final Sequence source, final ROI2DShape roi, final ROItoKymograph extractor, final boolean separated )
+		{
+			this.source = source;
+			this.roi = roi;
+			final ArrayList< Point2D > pointList = roi.getPoints();
+			this.points = new double[ 2 * pointList.size() ];
+			for ( int i = 0; i < pointList.size(); i++ )
+			{
+				points[ 2 * i ] = pointList.get( i ).getX();
+				points[ 2 * i + 1 ] = pointList.get( i ).getY();
+			}
+			this.diskRadius = extractor.diskRadius;
+			this.resamplingStep = extractor.resamplingStep;
+			this.interpolation = extractor.getInterpolation();
+			this.aggregation = extractor.getAggregation();
+			this.temporalBinning = extractor.getTemporalBinning();
+			this.binningMode = extractor.getBinningMode();
+			this.bleachCorrection = extractor.getBleachCorrection();
+			this.backgroundWindow = extractor.getBackgroundWindow();
+			this.unwrapClosedContours = extractor.isUnwrapClosedContours();
+			this.dataType = extractor.getOutputDataType();
+			this.separated = separated;
+
+			int h = System.identityHashCode( source );
+			h = 31 * h + Arrays.hashCode( points );
+			h = 31 * h + Double.hashCode( diskRadius );
+			h = 31 * h + Double.hashCode( resamplingStep );
+			h = 31 * h + interpolation.hashCode();
+			h = 31 * h + aggregation.hashCode();
+			h = 31 * h + temporalBinning;
+			h = 31 * h + binningMode.hashCode();
+			h = 31 * h + bleachCorrection.hashCode();
+			h = 31 * h + backgroundWindow;
+			h = 31 * h + ( unwrapClosedContours ? 1 : 0 );
+			h = 31 * h + ( dataType == null ? 0 : dataType.hashCode() );
+			h = 31 * h + ( separated ? 1 : 0 );
+			this.hash = h;
+		}
+
+		/**
+		 * Returns <code>true</code> if this key is the key of the same ROI,
+		 * with the same extraction parameters, but other points. Corrected
+		 * kymographs are never updated column by column, as the corrections
+		 * depend on the whole path.
+		 */
+		boolean isPreviousVersionOf( final Key other )
+		{
+			return source == other.source
+					&& roi == other.roi
+					&& separated == other.separated
+					&& Double.compare( diskRadius, other.diskRadius ) == 0
+					&& Double.compare( resamplingStep, other.resamplingStep ) == 0
+					&& interpolation == other.interpolation
+					&& aggregation == other.aggregation
+					&& temporalBinning == other.temporalBinning
+					&& binningMode == other.binningMode
+					&& bleachCorrection == BleachCorrection.NONE
+					&& other.bleachCorrection == BleachCorrection.NONE
+					&& backgroundWindow == 0
+					&& other.backgroundWindow == 0
+					&& unwrapClosedContours == other.unwrapClosedContours
+					&& dataType == other.dataType
+					&& !Arrays.equals( points, other.points );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return source == other.source
+					&& hash == other.hash
+					&& separated == other.separated
+					&& Double.compare( diskRadius, other.diskRadius ) == 0
+					&& Double.compare( resamplingStep, other.resamplingStep ) == 0
+					&& interpolation == other.interpolation
+					&& aggregation == other.aggregation
+					&& temporalBinning == other.temporalBinning
+					&& binningMode == other.binningMode
+					&& bleachCorrection == other.bleachCorrection
+					&& backgroundWindow == other.backgroundWindow
+					&& unwrapClosedContours == other.unwrapClosedContours
+					&& dataType == other.dataType
+					&& Arrays.equals( points, other.points );
+		}
+	}
+}
@@ -34,11 +34,23 @@ import icy.sequence.SequenceEvent;
 import icy.sequence.SequenceEvent.SequenceEventSourceType;
 import icy.sequence.SequenceEvent.SequenceEventType;
 import icy.sequence.SequenceListener;
+import icy.type.DataType;
 import icy.util.XMLUtil;
+import plugins.tinevez.rieszwavelets.KymographSeparator;
 
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.w3c.dom.Element;
 
@@ -55,6 +67,13 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 
 	boolean anterogradeRetrogradeSeparation;
 	ArrayList<double[]> samplingPositions;
+	ArrayList<ArrayList<double[]>> rowSamplingPositions; // sampling positions of each row for paths that move over time, null if all the rows are sampled at samplingPositions
+	double[][] rowTranslations; // translation of the sampling positions of each row for sequences corrected for drift, null if there is no drift correction
+	int temporalBinning = 1; // number of frames of the source sequence in each row of the kymographs
+	KymographPyramid pyramid; // multi-resolution pyramid of the kymograph, null for short kymographs
+	private TiledKymograph tiledKymograph; // kymograph stored on disk, for kymographs that do not fit in memory
+	int kymographScaleX = 1; // number of columns of the full resolution kymograph in each column of the kymograph, when a coarse level is shown
+	int kymographScaleT = 1; // number of rows of the full resolution kymograph in each row of the kymograph, when a coarse level is shown
 
 	KymographTrackingResults trackingResults;
 	KymographTrackingResults anterogradeTrackingResults;
@@ -66,9 +85,17 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 	public static String SAMPLING_POSITIONS = "SamplingPositions";
 	public static String SAMPLING_X = "SamplingPositionsX";
 	public static String SAMPLING_Y = "SamplingPositionsY";
+	public static String ROW_SAMPLING_POSITIONS = "RowSamplingPositions";
+	public static String ROWS = "Rows";
+	public static String FIRST_ROW = "FirstRow";
+	public static String NUM_ROWS = "NumRows";
+	public static String ROW_TRANSLATIONS = "RowTranslations";
 
 
 	public static String IS_ANTERO_RETRO_SPLIT = "AnteroRetroSplit";
+	public static String TEMPORAL_BINNING = "TemporalBinning";
+	public static String KYMO_SCALE_X = "KymoScaleX";
+	public static String KYMO_SCALE_T = "KymoScaleT";
 
 	public static String BIDIRECTIONAL_TRACKING = "BidirectionalTracking";
 	public static String ANTEROGRADE_TRACKING = "AnterogradeTracking";
@@ -79,6 +106,26 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 
 	public static String NULL_ELEMENT = "null";
 
+	// live update of the kymographs for sequences that grow during acquisition
+	KymographMask mask; // sampling mask used to extract new rows
+	private boolean live = false;
+	private double[][] liveRows; // raw kymograph rows of each channel, with spare capacity for the next frames; never displayed
+	private DataType liveDataType; // data type of the kymographs updated live
+	private int numLiveRows; // number of rows sampled so far
+	private long liveRefreshDelay = 2000; // minimal delay between two refreshes of the displayed kymographs, in ms
+	private final AtomicBoolean liveRefreshPending = new AtomicBoolean(false);
+
+	private static final ScheduledExecutorService liveRefreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "Kymograph live refresh");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	public KymographExtractionResult()
 	{
 		Icy.getMainInterface().addGlobalSequenceListener(this);
@@ -92,15 +139,27 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 		else
 			XMLUtil.setAttributeValue(nodeKymoResults, SEQUENCE_NAME, sourceSequence.getName());
 		XMLUtil.setAttributeBooleanValue(nodeKymoResults, IS_ANTERO_RETRO_SPLIT, anterogradeRetrogradeSeparation);
+		XMLUtil.setAttributeIntValue(nodeKymoResults, TEMPORAL_BINNING, temporalBinning);
 		final Element samplingNode =   XMLUtil.setElement(nodeKymoResults, SAMPLING_POSITIONS);
-		String samplingPos = "";
-		for (double[] d:samplingPositions)
-			samplingPos = samplingPos.concat(Double.toString(d[0]) +", ");		
-		XMLUtil.setAttributeValue(samplingNode, SAMPLING_X, samplingPos);
-		samplingPos = "";
-		for (double[] d:samplingPositions)
-			samplingPos = samplingPos.concat(Double.toString(d[1]) +", ");			
-		XMLUtil.setAttributeValue(samplingNode, SAMPLING_Y, samplingPos);		
+		savePositions(samplingNode, samplingPositions);
+		if (rowSamplingPositions != null)
+		{
+			// rows sampled at the same positions are saved together
+			final Element rowSamplingNode = XMLUtil.setElement(nodeKymoResults, ROW_SAMPLING_POSITIONS);
+			int firstRow = 0;
+			for (int row = 1; row <= rowSamplingPositions.size(); row++)
+			{
+				if (row < rowSamplingPositions.size() && rowSamplingPositions.get(row) == rowSamplingPositions.get(firstRow))
+					continue;
+				final Element rowsNode = XMLUtil.addElement(rowSamplingNode, ROWS);
+				XMLUtil.setAttributeIntValue(rowsNode, FIRST_ROW, firstRow);
+				XMLUtil.setAttributeIntValue(rowsNode, NUM_ROWS, row - firstRow);
+				savePositions(rowsNode, rowSamplingPositions.get(firstRow));
+				firstRow = row;
+			}
+		}
+		if (rowTranslations != null)
+			savePositions(XMLUtil.setElement(nodeKymoResults, ROW_TRANSLATIONS), new ArrayList<double[]>(Arrays.asList(rowTranslations)));
 
 		// bidirectional results
 		final Element bidirectionalNode =   XMLUtil.setElement(nodeKymoResults, BIDIRECTIONAL_TRACKING);
@@ -114,6 +173,8 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 				Saver.save(kymograph, fKymo);
 				XMLUtil.setAttributeValue(bidirectionalNode, KYMO_SEQUENCE_NAME, fKymo.getName());
 			}
+			XMLUtil.setAttributeIntValue(bidirectionalNode, KYMO_SCALE_X, kymographScaleX);
+			XMLUtil.setAttributeIntValue(bidirectionalNode, KYMO_SCALE_T, kymographScaleT);
 		}
 		if (trackingResults == null)
 			KymographTrackingResults.generateDefaultNode(bidirectionalNode);
@@ -158,33 +219,15 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 			KymographExtractionResult r = new KymographExtractionResult();
 			r.sourceSequence = sourceSequence;
 			r.anterogradeRetrogradeSeparation = XMLUtil.getAttributeBooleanValue(e, IS_ANTERO_RETRO_SPLIT, r.anterogradeRetrogradeSeparation);
+			r.temporalBinning = XMLUtil.getAttributeIntValue(e, TEMPORAL_BINNING, r.temporalBinning);
 			// load sampling positions and create corresponding ROI in the source sequence
 			Element samplingNode = XMLUtil.getElement(e, SAMPLING_POSITIONS);
 			if (samplingNode != null)
 			{
-				String samplingPos = XMLUtil.getAttributeValue(samplingNode, SAMPLING_X, "");
-				String[] ss = samplingPos.split(",");
-				ArrayList<Double> xList = new ArrayList<Double>();
-				for (int i = 0; i < ss.length; i++)
-				{
-					if (!ss[i].trim().isEmpty())
-						xList.add(Double.valueOf(ss[i]));
-				}
-				samplingPos = XMLUtil.getAttributeValue(samplingNode, SAMPLING_Y, "");
-				ss = samplingPos.split(",");
-				ArrayList<Double> yList = new ArrayList<Double>();
-				for (int i = 0; i < ss.length; i++)
-				{
-					if (!ss[i].trim().isEmpty())
-						yList.add(Double.valueOf(ss[i]));
-				}
-				r.samplingPositions = new ArrayList<double[]>();
+				r.samplingPositions = loadPositions(samplingNode);
 				ArrayList<Point2D> samplingPositionList = new ArrayList<Point2D>();
-				for (int i = 0; i < xList.size(); i++)
-				{
-					r.samplingPositions.add(new double[]{xList.get(i), yList.get(i)});
-					samplingPositionList.add(new Point2D.Double(xList.get(i), yList.get(i)));
-				}
+				for (double[] d:r.samplingPositions)
+					samplingPositionList.add(new Point2D.Double(d[0], d[1]));
 				// create the corresponding ROI in the source sequence
 				ROI2DPolyLine roi = new ROI2DPolyLine(samplingPositionList);
 				r.roi = roi;
@@ -194,6 +237,25 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 			{
 				System.out.println("Could not load sampling positions for for KymographExtractionResult object, node "+ SAMPLING_POSITIONS + " not found in XML tree");
 				return null;
+			}
+			Element rowSamplingNode = XMLUtil.getElement(e, ROW_SAMPLING_POSITIONS);
+			if (rowSamplingNode != null)
+			{
+				r.rowSamplingPositions = new ArrayList<ArrayList<double[]>>();
+				for (Element rowsNode:XMLUtil.getElements(rowSamplingNode, ROWS))
+				{
+					final int firstRow = XMLUtil.getAttributeIntValue(rowsNode, FIRST_ROW, r.rowSamplingPositions.size());
+					final int numRows = XMLUtil.getAttributeIntValue(rowsNode, NUM_ROWS, 0);
+					final ArrayList<double[]> positions = loadPositions(rowsNode);
+					while (r.rowSamplingPositions.size() < firstRow + numRows)
+						r.rowSamplingPositions.add(positions);
+				}
+			}
+			Element rowTranslationsNode = XMLUtil.getElement(e, ROW_TRANSLATIONS);
+			if (rowTranslationsNode != null)
+			{
+				final ArrayList<double[]> translations = loadPositions(rowTranslationsNode);
+				r.rowTranslations = translations.toArray(new double[translations.size()][]);
 			}			
 			// bidirectional results
 			Element bidirectionalNode = XMLUtil.getElement(e, BIDIRECTIONAL_TRACKING);
@@ -207,6 +269,8 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 					//					r.kymograph = Loader.loadSequence(f, 0, true);
 					Sequence kymoSequence = Loader.loadSequence(resultsDir.getAbsolutePath()+ FileUtil.separator + kymoSequenceName, 0, true);
 					r.setKymograph(kymoSequence);
+					r.kymographScaleX = XMLUtil.getAttributeIntValue(bidirectionalNode, KYMO_SCALE_X, 1);
+					r.kymographScaleT = XMLUtil.getAttributeIntValue(bidirectionalNode, KYMO_SCALE_T, 1);
 					r.roi.setName(kymoSequenceName);
 				}
 				r.trackingResults = KymographTrackingResults.loadFromXML(bidirectionalNode, sourceSequence, r.roi.getName() + "_tracks");
@@ -266,13 +330,375 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 	{
 		this.kymoROIs.clear();
 		this.kymograph = kymograph;
+		this.pyramid = null;
+		this.kymographScaleX = 1;
+		this.kymographScaleT = 1;
 		if (this.kymograph != null)
 			this.kymograph.addListener(this);
 	}
 
+	public KymographPyramid getKymographPyramid()
+	{
+		return pyramid;
+	}
+
+	/**
+	 * Get a region of the kymograph at a given resolution level. Only the region is
+	 * read from the full resolution kymograph at level 0, so that long kymographs
+	 * can be browsed at a coarse level and refined around a region of interest.
+	 * @param level the level of the pyramid, 0 for the full resolution
+	 * @param region the region, in columns and rows of the full resolution kymograph
+	 * @return the region as a new sequence, or null if it could not be read
+	 * */
+	public Sequence getKymographRegion(int level, Rectangle region)
+	{
+		if (pyramid == null)
+		{
+			if (kymograph == null)
+				return null;
+			// short kymographs have no pyramid, and need none at full resolution
+			if (level == 0)
+				return KymographPyramid.crop(kymograph, region);
+			pyramid = KymographPyramid.build(kymograph);
+		}
+		try
+		{
+			return pyramid.getRegion(level, region);
+		}
+		catch (UncheckedIOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the region of the full resolution kymograph under a region of the kymograph.
+	 * When a coarse level of the kymograph is shown, the region is read from the full
+	 * resolution kymograph, from disk for kymographs that do not fit in memory.
+	 * @param region the region, in pixels of the kymograph
+	 * @return the region at full resolution as a new sequence, or null if it could not be read
+	 * */
+	public Sequence getFullResolutionRegion(Rectangle2D region)
+	{
+		final int x0 = (int) Math.floor(region.getMinX()) * kymographScaleX;
+		final int y0 = (int) Math.floor(region.getMinY()) * kymographScaleT;
+		final int x1 = (int) Math.ceil(region.getMaxX()) * kymographScaleX;
+		final int y1 = (int) Math.ceil(region.getMaxY()) * kymographScaleT;
+		return getKymographRegion(0, new Rectangle(x0, y0, x1 - x0, y1 - y0));
+	}
+
+	public TiledKymograph getTiledKymograph()
+	{
+		return tiledKymograph;
+	}
+
+	/**
+	 * Set the kymograph stored on disk, with its pyramid. The kymograph sequence is
+	 * only created when it is needed, with {@link #loadKymograph()}.
+	 * */
+	public void setTiledKymograph(TiledKymograph tiledKymograph, KymographPyramid pyramid)
+	{
+		this.tiledKymograph = tiledKymograph;
+		this.pyramid = pyramid;
+	}
+
+	/**
+	 * Get the kymograph. A kymograph stored on disk is never read whole: a coarse
+	 * level of its pyramid is shown instead, with fewer than {@link KymographPyramid#MIN_ROWS}
+	 * rows if possible, and the positions traced on it are mapped to the full
+	 * resolution kymograph. Full resolution regions are read with {@link #getKymographRegion(int, Rectangle)}.
+	 * @return the kymograph, or null if there is none
+	 * */
+	public Sequence loadKymograph()
+	{
+		if (kymograph == null && tiledKymograph != null && pyramid != null)
+		{
+			final int level = pyramid.getLevelForRows(KymographPyramid.MIN_ROWS);
+			final Sequence levelSequence = pyramid.getLevel(level);
+			levelSequence.setName(tiledKymograph.getName());
+			final KymographPyramid tiledPyramid = pyramid;
+			setKymograph(levelSequence);
+			pyramid = tiledPyramid;
+			kymographScaleX = pyramid.getScaleX(level);
+			kymographScaleT = pyramid.getScaleT(level);
+		}
+		return kymograph;
+	}
+
+	/**
+	 * Get the number of columns of the full resolution kymograph, without reading it from disk.
+	 * */
+	public int getKymographWidth()
+	{
+		if (tiledKymograph != null)
+			return tiledKymograph.getWidth();
+		if (kymograph != null)
+			return kymograph.getSizeX();
+		return 0;
+	}
+
+	/**
+	 * Close the tiled kymograph, if any, and delete its temporary file.
+	 * */
+	public void closeTiledKymograph()
+	{
+		if (tiledKymograph == null)
+			return;
+		try
+		{
+			tiledKymograph.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		if (pyramid != null && pyramid.getTiledKymograph() == tiledKymograph)
+			pyramid = null;
+		tiledKymograph = null;
+	}
+
+	public int getTemporalBinning()
+	{
+		return temporalBinning;
+	}
+
+	/**
+	 * Returns the position in the source sequence of a point of the kymographs,
+	 * interpolated linearly between the sampling positions of its row.
+	 * Paths that move over time are sampled at different positions in each row,
+	 * and the positions of sequences corrected for drift follow the drift.
+	 * When a coarse level of the kymograph is shown, the point is first mapped to
+	 * the center of its pixel in the full resolution kymograph.
+	 * @param row row in the kymographs
+	 * @param column column in the kymographs, possibly fractional
+	 * @return the position <code>{x, y}</code>, or <code>null</code> if the column is out of the kymographs
+	 * */
+	public double[] getSamplingPosition(double row, double column)
+	{
+		row = row * kymographScaleT + (kymographScaleT - 1) / 2d;
+		if (kymographScaleX > 1)
+			column = Math.min(column * kymographScaleX + (kymographScaleX - 1) / 2d, samplingPositions.size() - 1);
+		ArrayList<double[]> positions = samplingPositions;
+		if (rowSamplingPositions != null && !rowSamplingPositions.isEmpty())
+		{
+			final int r = (int) Math.max(0, Math.min(rowSamplingPositions.size() - 1, Math.round(row)));
+			positions = rowSamplingPositions.get(r);
+		}
+		final int c0 = (int) Math.floor(column);
+		final int c1 = (int) Math.ceil(column);
+		if (c0 < 0 || c1 >= positions.size())
+			return null;
+		final double[] p0 = positions.get(c0);
+		final double[] p1 = positions.get(c1);
+		final double[] p = new double[]{p0[0] + (column - c0) * (p1[0] - p0[0]), p0[1] + (column - c0) * (p1[1] - p0[1])};
+		if (rowTranslations != null && rowTranslations.length > 0)
+		{
+			final int r = (int) Math.max(0, Math.min(rowTranslations.length - 1, Math.round(row)));
+			p[0] += rowTranslations[r][0];
+			p[1] += rowTranslations[r][1];
+		}
+		return p;
+	}
+
+	private static void savePositions(Element node, ArrayList<double[]> positions)
+	{
+		final StringBuilder xs = new StringBuilder();
+		final StringBuilder ys = new StringBuilder();
+		for (double[] d:positions)
+		{
+			xs.append(d[0]).append(", ");
+			ys.append(d[1]).append(", ");
+		}
+		XMLUtil.setAttributeValue(node, SAMPLING_X, xs.toString());
+		XMLUtil.setAttributeValue(node, SAMPLING_Y, ys.toString());
+	}
+
+	private static ArrayList<double[]> loadPositions(Element node)
+	{
+		String samplingPos = XMLUtil.getAttributeValue(node, SAMPLING_X, "");
+		String[] ss = samplingPos.split(",");
+		ArrayList<Double> xList = new ArrayList<Double>();
+		for (int i = 0; i < ss.length; i++)
+		{
+			if (!ss[i].trim().isEmpty())
+				xList.add(Double.valueOf(ss[i]));
+		}
+		samplingPos = XMLUtil.getAttributeValue(node, SAMPLING_Y, "");
+		ss = samplingPos.split(",");
+		ArrayList<Double> yList = new ArrayList<Double>();
+		for (int i = 0; i < ss.length; i++)
+		{
+			if (!ss[i].trim().isEmpty())
+				yList.add(Double.valueOf(ss[i]));
+		}
+		final ArrayList<double[]> positions = new ArrayList<double[]>();
+		for (int i = 0; i < xList.size(); i++)
+			positions.add(new double[]{xList.get(i), yList.get(i)});
+		return positions;
+	}
+
+	/**
+	 * Convert a row of the kymographs to the index of a frame of the source sequence.
+	 * When frames were binned, a row is mapped to the center of its bin, and so are
+	 * the rows of a coarse level of the kymograph.
+	 * @param row row in the kymographs
+	 * @return the frame index
+	 * */
+	public int rowToFrame(double row)
+	{
+		row = row * kymographScaleT + (kymographScaleT - 1) / 2d;
+		int frame = (int) Math.round(row * temporalBinning + (temporalBinning - 1) / 2d);
+		if (sourceSequence != null && sourceSequence.getSizeT() > 0)
+			frame = Math.min(frame, sourceSequence.getSizeT() - 1);
+		return frame;
+	}
+
+	/**
+	 * Keeps the kymographs up to date with the source sequence. When new frames
+	 * are added to the source sequence, only these frames are sampled with the
+	 * cached mask and appended to a buffer of rows. The buffer grows by doubling,
+	 * so that the cost of an update is proportional to the number of new frames.
+	 * The kymographs are refreshed with the rows sampled so far at most once every
+	 * {@link #setLiveRefreshDelay(long)} milliseconds, after the anterograde and
+	 * retrograde separation if the kymographs are split.
+	 * 
+	 * @param mask the mask used to extract the kymograph
+	 * @param rawKymograph the kymograph extracted with this mask, before separation
+	 */
+	public synchronized void startLiveUpdate(KymographMask mask, Sequence rawKymograph)
+	{
+		if (sourceSequence == null)
+			throw new IllegalStateException("Cannot start live update without a source sequence");
+		if (temporalBinning != 1)
+			throw new IllegalStateException("Cannot start live update of kymographs with binned frames");
+		stopLiveUpdate();
+		this.mask = mask;
+		numLiveRows = rawKymograph.getSizeY();
+		liveRows = new double[rawKymograph.getSizeC()][];
+		for (int c = 0; c < liveRows.length; c++)
+			liveRows[c] = Arrays.copyOf(rawKymograph.getDataXYAsDouble(0, 0, c), mask.getNumColumns() * numLiveRows);
+		liveDataType = rawKymograph.getDataType_();
+		live = true;
+		sourceSequence.addListener(this);
+		appendNewFrames();
+	}
+
+	public synchronized void stopLiveUpdate()
+	{
+		if (live && sourceSequence != null)
+			sourceSequence.removeListener(this);
+		live = false;
+		liveRows = null;
+	}
+
+	public boolean isLive()
+	{
+		return live;
+	}
+
+	/**
+	 * Set the minimal delay between two refreshes of the kymographs in live update mode
+	 * @param delay delay in milliseconds
+	 * */
+	public void setLiveRefreshDelay(long delay)
+	{
+		this.liveRefreshDelay = delay;
+	}
+
+	/**
+	 * Sample the frames of the source sequence that are not yet in the kymograph, and append them as new rows.
+	 * Only the new rows are sampled, unless the buffer has to grow.
+	 * */
+	private synchronized void appendNewFrames()
+	{
+		if (!live)
+			return;
+		final int sizeT = sourceSequence.getSizeT();
+		if (sizeT <= numLiveRows)
+			return;
+		final int width = mask.getNumColumns();
+		final boolean signed = sourceSequence.isSignedDataType();
+		for (int c = 0; c < liveRows.length; c++)
+		{
+			if (liveRows[c].length < width * sizeT)
+				// double the capacity, so that rows are copied a constant number of times on average
+				liveRows[c] = Arrays.copyOf(liveRows[c], width * Math.max(sizeT, 2 * numLiveRows));
+			for (int t = numLiveRows; t < sizeT; t++)
+				mask.sample(sourceSequence.getDataXY(t, 0, c), signed, liveRows[c], t * width);
+		}
+		numLiveRows = sizeT;
+		scheduleLiveRefresh();
+	}
+
+	/**
+	 * Copy the rows of each channel sampled so far.
+	 * */
+	private double[][] copyLiveRows()
+	{
+		final int length = mask.getNumColumns() * numLiveRows;
+		final double[][] rows = new double[liveRows.length][];
+		for (int c = 0; c < rows.length; c++)
+			rows[c] = Arrays.copyOf(liveRows[c], length);
+		return rows;
+	}
+
+	/**
+	 * Refresh the kymographs with the rows sampled so far after a delay, unless a refresh is already pending.
+	 * Only these rows are shown, not the spare capacity of the buffer. If the kymographs are split, the filtered,
+	 * anterograde and retrograde kymographs are computed from them.
+	 * */
+	private void scheduleLiveRefresh()
+	{
+		if (!liveRefreshPending.compareAndSet(false, true))
+			return;
+		liveRefreshExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				liveRefreshPending.set(false);
+				final int width;
+				final int numRows;
+				final double[][] rows;
+				synchronized (KymographExtractionResult.this)
+				{
+					if (!live)
+						return;
+					width = mask.getNumColumns();
+					numRows = numLiveRows;
+					rows = copyLiveRows();
+				}
+				if (!anterogradeRetrogradeSeparation)
+				{
+					if (kymograph != null)
+						kymograph.setImage(0, 0, KymographSeparator.createImage(rows, width, numRows, liveDataType));
+					return;
+				}
+				final Sequence rawKymograph = new Sequence();
+				rawKymograph.setImage(0, 0, KymographSeparator.createImage(rows, width, numRows, DataType.DOUBLE));
+				rawKymograph.setPixelSizeX(sourceSequence.getPixelSizeX());
+				rawKymograph.setPixelSizeY(sourceSequence.getPixelSizeY());
+				rawKymograph.setTimeInterval(sourceSequence.getTimeInterval());
+				final Sequence[] kymographs = KymographSeparator.separateKymograph(rawKymograph, liveDataType);
+				if (kymograph != null)
+					kymograph.setImage(0, 0, kymographs[0].getImage(0, 0));
+				if (anterogradeKymograph != null)
+					anterogradeKymograph.setImage(0, 0, kymographs[2].getImage(0, 0));
+				if (retrogradeKymograph != null)
+					retrogradeKymograph.setImage(0, 0, kymographs[1].getImage(0, 0));
+			}
+		}, liveRefreshDelay, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
 	public void sequenceChanged(SequenceEvent sequenceEvent)
 	{
+		if (live && sequenceEvent.getSequence() == sourceSequence && sequenceEvent.getSourceType() == SequenceEventSourceType.SEQUENCE_DATA)
+		{
+			appendNewFrames();
+			return;
+		}
 //		System.out.println(sequenceEvent.getSourceType()+" "+sequenceEvent.getType() + sequenceEvent.getSequence().getROI2Ds().size());
 		if (sequenceEvent.getSourceType() == SequenceEventSourceType.SEQUENCE_ROI && (sequenceEvent.getType() == SequenceEventType.ADDED || sequenceEvent.getType() == SequenceEventType.REMOVED))
 		{
@@ -298,7 +724,8 @@ public class KymographExtractionResult implements SequenceListener, GlobalSequen
 	@Override
 	public void sequenceClosed(Sequence sequence)
 	{
-
+		if (sequence == sourceSequence)
+			stopLiveUpdate();
 	}
 
 	public Sequence getAnterogradeKymograph() {
@@ -34,24 +34,33 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JEditorPane;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.border.TitledBorder;
 import javax.swing.tree.DefaultMutableTreeNode;
 
 import icy.canvas.IcyCanvas;
+import icy.gui.viewer.Viewer;
 import icy.image.IcyBufferedImage;
 import icy.main.Icy;
 import icy.painter.Overlay;
@@ -61,15 +70,16 @@ import icy.sequence.Sequence;
 import icy.swimmingPool.SwimmingObject;
 import icy.type.DataType;
 import icy.type.collection.array.ArrayUtil;
+import plugins.kernel.roi.roi2d.ROI2DPolyLine;
 import plugins.kernel.roi.roi2d.ROI2DShape;
 import plugins.nchenouard.isotropicwavelets.IsotropicWaveletType;
-import plugins.tinevez.kymographtracker.spline.CubicSmoothingSpline;
 import plugins.tinevez.pathtracing.InteractiveMultipleDjikstraTracingESC;
 import plugins.tinevez.pathtracing.InteractiveMultipleTracing;
 import plugins.tinevez.pathtracing.PathEvent;
 import plugins.tinevez.pathtracing.PathListener;
 import plugins.tinevez.rieszwavelets.HarmonicTypes;
-import plugins.tinevez.rieszwavelets.RieszConfig;
+import plugins.tinevez.rieszwavelets.KymographSeparator;
+import plugins.tinevez.rieszwavelets.RieszFilterBankCache;
 import plugins.tinevez.rieszwavelets.RieszGeneralization;
 import plugins.tinevez.rieszwavelets.RieszWaveletCoefficients;
 import plugins.tinevez.rieszwavelets.RieszWaveletConfig;
@@ -110,6 +120,14 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 
 	JCheckBox separateAnteroRetroBox;
 
+	JCheckBox liveUpdateBox;
+
+	JCheckBox driftCorrectionBox;
+
+	JCheckBox unwrapClosedContoursBox;
+
+	JCheckBox radialBox;
+
 	JButton extractKymographsButton;
 
 	JButton startTrackingButton;
@@ -118,6 +136,30 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 
 	JFormattedTextField diskRadiusField = new JFormattedTextField( diskFormat );
 
+	JComboBox< SamplingInterpolation > interpolationBox = new JComboBox< SamplingInterpolation >( SamplingInterpolation.values() );
+
+	JComboBox< ProfileAggregation > aggregationBox = new JComboBox< ProfileAggregation >( ProfileAggregation.values() );
+
+	NumberFormat binningFormat = NumberFormat.getIntegerInstance();
+
+	JFormattedTextField binningField = new JFormattedTextField( binningFormat );
+
+	JComboBox< BinningMode > binningModeBox = new JComboBox< BinningMode >( BinningMode.values() );
+
+	JComboBox< BleachCorrection > bleachCorrectionBox = new JComboBox< BleachCorrection >( BleachCorrection.values() );
+
+	JFormattedTextField backgroundWindowField = new JFormattedTextField( binningFormat );
+
+	JFormattedTextField numRaysField = new JFormattedTextField( binningFormat );
+
+	/** Data types of the kymographs, <code>null</code> for the data type of the sequence. */
+	static final DataType[] DATA_TYPES = new DataType[] { null, DataType.FLOAT, DataType.DOUBLE };
+
+	JComboBox< String > dataTypeBox = new JComboBox< String >( new String[] { "same as the sequence", "32-bit float", "64-bit double" } );
+
+	/** Kymographs already extracted, reused if their ROI did not change. */
+	final KymographCache kymographCache = new KymographCache();
+
 	Sequence selectedSequence = null;
 
 	Sequence maxProjectionSequence = null;
@@ -259,12 +301,79 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 		northPanel.add( separateAnteroRetroBox, c );
 		c.gridy++;
 
+		driftCorrectionBox = new JCheckBox( "Correct stage drift" );
+		driftCorrectionBox.setToolTipText( "Estimate the translation of each frame by phase correlation, and shift the paths accordingly" );
+		northPanel.add( driftCorrectionBox, c );
+		c.gridy++;
+
+		liveUpdateBox = new JCheckBox( "Update kymographs when frames are added" );
+		liveUpdateBox.setToolTipText( "Append new rows to the kymographs when the sequence grows, for instance during acquisition" );
+		northPanel.add( liveUpdateBox, c );
+		c.gridy++;
+
+		unwrapClosedContoursBox = new JCheckBox( "Unwrap closed contours" );
+		unwrapClosedContoursBox.setToolTipText( "Extract closed ROIs, such as rings drawn with polygons or ellipses, over their whole perimeter, without a seam where they close" );
+		northPanel.add( unwrapClosedContoursBox, c );
+		c.gridy++;
+
+		radialBox = new JCheckBox( "Radial kymographs, number of rays:" );
+		radialBox.setToolTipText( "Extract one kymograph per ray, from the center of each ROI out to its radius: draw circles around the centers. Radial kymographs are neither cached, corrected for drift nor updated live" );
+		northPanel.add( radialBox, c );
+		c.gridy++;
+		numRaysField.setValue( 8 );
+		northPanel.add( numRaysField, c );
+		c.gridy++;
+
 		northPanel.add( new JLabel( "Radius of the averaging area:" ), c );
 		c.gridy++;
 		diskRadiusField.setValue( 2 );
 		northPanel.add( diskRadiusField, c );
 		c.gridy++;
 
+		northPanel.add( new JLabel( "Sub-pixel interpolation:" ), c );
+		c.gridy++;
+		interpolationBox.setToolTipText( "Interpolation used to read the pixels along the path" );
+		northPanel.add( interpolationBox, c );
+		c.gridy++;
+
+		northPanel.add( new JLabel( "Aggregation across the path:" ), c );
+		c.gridy++;
+		aggregationBox.setToolTipText( "How the pixels across the path are combined; max and median keep the contrast of thick, dim structures" );
+		northPanel.add( aggregationBox, c );
+		c.gridy++;
+
+		northPanel.add( new JLabel( "Frames per kymograph row:" ), c );
+		c.gridy++;
+		binningField.setValue( 1 );
+		binningField.setToolTipText( "Combine consecutive frames in each row of the kymographs, to reduce their height for long movies" );
+		northPanel.add( binningField, c );
+		c.gridy++;
+		binningModeBox.setSelectedItem( BinningMode.MEAN );
+		binningModeBox.setToolTipText( "How the frames of a kymograph row are combined" );
+		northPanel.add( binningModeBox, c );
+		c.gridy++;
+
+		northPanel.add( new JLabel( "Bleach correction:" ), c );
+		c.gridy++;
+		bleachCorrectionBox.setSelectedItem( BleachCorrection.NONE );
+		bleachCorrectionBox.setToolTipText( "Normalize each row by the intensity of its frame, over the whole frame or around the path" );
+		northPanel.add( bleachCorrectionBox, c );
+		c.gridy++;
+
+		northPanel.add( new JLabel( "Background median window (rows, 0 for none):" ), c );
+		c.gridy++;
+		backgroundWindowField.setValue( 0 );
+		backgroundWindowField.setToolTipText( "Subtract from each row the median of the previous rows, column by column, to remove static structures. Kymographs are then stored as floats" );
+		northPanel.add( backgroundWindowField, c );
+		c.gridy++;
+
+		northPanel.add( new JLabel( "Kymograph data type:" ), c );
+		c.gridy++;
+		dataTypeBox.setSelectedIndex( 2 );
+		dataTypeBox.setToolTipText( "Smaller data types reduce the memory used by the kymographs" );
+		northPanel.add( dataTypeBox, c );
+		c.gridy++;
+
 		final JPanel southPanel = new JPanel( new GridLayout( 2, 1 ) );
 
 		extractKymographsButton = new JButton( "Extract kymographs" );
@@ -456,7 +565,6 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 		// compute the Simoncelli's wavelet representation of the sequence
 		final int height = seq.getSizeY();
 		final int width = seq.getSizeX();
-		final boolean isRealImage = true;
 		// Wavelets
 		int numScales = 4;
 		int tmpNumScales = 0;
@@ -475,18 +583,20 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 		// Riesz transform
 		final int order = 8;
 		final HarmonicTypes harmonicType = HarmonicTypes.even;
-		final boolean prepareRieszFilters = true;
-
-		final RieszWaveletConfig config = new RieszWaveletConfig( width, height, isRealImage, numScales, waveletType, prefilter, prepareRieszFilters, order, harmonicType, false );
-		final ArrayList< RieszConfig > rieszConfigList = config.getRieszConfigurations();
-
-		// compute generalization
-		final ArrayList< RieszGeneralization > generalizationList = new ArrayList< RieszGeneralization >();
-		for ( int i = 0; i < numScales; i++ )
-		{
-			final RieszGeneralization rieszGeneralization = new RieszGeneralization( StandardRieszFrames.Simoncelli, rieszConfigList.get( i ) );
-			generalizationList.add( rieszGeneralization );
-		}
+		final StandardRieszFrames frameType = StandardRieszFrames.Simoncelli;
+
+		// the filter bank is shared by all the images of the same size
+		final RieszFilterBankCache.FilterBank filterBank = RieszFilterBankCache.getInstance().get(
+				width, height,
+				numScales,
+				waveletType,
+				prefilter,
+				order,
+				harmonicType,
+				frameType,
+				false );
+		final RieszWaveletConfig config = filterBank.getConfig();
+		final ArrayList< RieszGeneralization > generalizationList = filterBank.getGeneralizations();
 
 		// get the max projection of the sequence
 		final double[] tabValues = ( double[] ) ArrayUtil.arrayToDoubleArray( seq.getImage( 0, 0, 0 ).getDataXY( 0 ), seq.isSignedDataType() );
@@ -499,7 +609,7 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 		}
 
 		// apply the riesz transforms to the wavelet scales
-		final RieszWaveletCoefficients coefficients = config.multiscaleRieszAnalysisInFourier( tabValues, width, height, generalizationList );
+		final RieszWaveletCoefficients coefficients = config.multiscaleRieszAnalysisInFourier( tabValues, width, height, generalizationList, ForkJoinPool.commonPool() );
 		// keep only the 25 percent coefficients in each band
 		final double[] hpR = coefficients.getHPResidual();
 		if ( hpR != null )
@@ -533,7 +643,7 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 		}
 		// reconstruct image from coefficients
 		final Sequence recSeq = new Sequence();
-		final double[] reconstructedImage = config.multiscaleRieszSynthesisInFourier( coefficients, width, height );
+		final double[] reconstructedImage = config.multiscaleRieszSynthesisInFourier( coefficients, width, height, ForkJoinPool.commonPool() );
 		double minV = reconstructedImage[ 0 ];
 		for ( int i = 0; i < reconstructedImage.length; i++ )
 			if ( reconstructedImage[ i ] < minV )
@@ -635,80 +745,455 @@ class KymographExtractorPanel extends ActionPanel implements PathListener
 				return;
 			}
 			diskRadius = Math.max( 1e-6, diskRadius );
+			int binning = 1;
+			int backgroundWindow = 0;
+			try
+			{
+				binning = Math.max( 1, binningFormat.parse( binningField.getText() ).intValue() );
+				backgroundWindow = Math.max( 0, binningFormat.parse( backgroundWindowField.getText() ).intValue() );
+			}
+			catch ( final ParseException e )
+			{
+				e.printStackTrace();
+				return;
+			}
+			if ( backgroundWindow == 1 )
+			{
+				JOptionPane.showMessageDialog( this,
+						"The background median needs a window of at least 2 rows, or 0 for no background subtraction.",
+						"Warning",
+						JOptionPane.WARNING_MESSAGE );
+				return;
+			}
 			final ROItoKymograph extractor = new ROItoKymograph( diskRadius, 1 );
+			extractor.setInterpolation( ( SamplingInterpolation ) interpolationBox.getSelectedItem() );
+			extractor.setAggregation( ( ProfileAggregation ) aggregationBox.getSelectedItem() );
+			extractor.setOutputDataType( DATA_TYPES[ dataTypeBox.getSelectedIndex() ] );
+			extractor.setTemporalBinning( binning, ( BinningMode ) binningModeBox.getSelectedItem() );
+			extractor.setBleachCorrection( ( BleachCorrection ) bleachCorrectionBox.getSelectedItem() );
+			extractor.setBackgroundWindow( backgroundWindow );
+			extractor.setUnwrapClosedContours( unwrapClosedContoursBox.isSelected() );
+
+			final boolean separate = separateAnteroRetroBox.isSelected();
+			if ( radialBox.isSelected() )
+			{
+				int numRays = 8;
+				try
+				{
+					numRays = binningFormat.parse( numRaysField.getText() ).intValue();
+				}
+				catch ( final ParseException e )
+				{
+					e.printStackTrace();
+					return;
+				}
+				if ( numRays < 1 )
+				{
+					JOptionPane.showMessageDialog( this,
+							"Radial kymographs need at least one ray.",
+							"Warning",
+							JOptionPane.WARNING_MESSAGE );
+					return;
+				}
+				extractRadialKymographs( extractor, numRays, separate, binning );
+				return;
+			}
+			// Live kymographs are modified when the sequence grows: they are not
+			// cached. Binned and corrected kymographs cannot be updated frame by
+			// frame.
+			final boolean drift = driftCorrectionBox.isSelected();
+			final boolean corrected = extractor.getBleachCorrection() != BleachCorrection.NONE || backgroundWindow > 0;
+			final boolean live = liveUpdateBox.isSelected() && binning == 1 && !drift && !corrected;
+
+			// Look for the kymographs in the cache, and update incrementally
+			// those of edited ROIs. Compile the masks of the others, then read
+			// the sequence only once.
+			final ArrayList< ROI2D > rois = new ArrayList< ROI2D >();
+			final KymographCache.Key[] keys;
+			final ArrayList< KymographCache.Entry > entries = new ArrayList< KymographCache.Entry >();
+			final ArrayList< Integer > toExtract = new ArrayList< Integer >();
+			final ArrayList< KymographMask > masks = new ArrayList< KymographMask >();
+			// ROIs attached to a frame are the key frames of moving paths,
+			// grouped by name.
+			final LinkedHashMap< String, KeyframedPath > movingPaths = new LinkedHashMap< String, KeyframedPath >();
+			// Paths on a drifting sequence follow the drift of each frame.
+			final ArrayList< ROI2DShape > driftRois = new ArrayList< ROI2DShape >();
 			for ( final ROI2D roi : selectedSequence.getROI2Ds() )
 			{
-				if ( roi instanceof ROI2DShape )
+				if ( !( roi instanceof ROI2DShape ) )
+					continue;
+				if ( roi.getT() < 0 )
+				{
+					if ( drift )
+						driftRois.add( ( ROI2DShape ) roi );
+					else
+						rois.add( roi );
+					continue;
+				}
+				KeyframedPath path = movingPaths.get( roi.getName() );
+				if ( path == null )
+				{
+					path = new KeyframedPath( extractor, selectedSequence.getSizeX(), selectedSequence.getSizeY() );
+					movingPaths.put( roi.getName(), path );
+				}
+				path.addKeyframe( roi.getT(), ( ROI2DShape ) roi );
+			}
+			if ( rois.isEmpty() && movingPaths.isEmpty() && driftRois.isEmpty() )
+				return;
+			keys = new KymographCache.Key[ rois.size() ];
+			for ( int i = 0; i < rois.size(); i++ )
+			{
+				final ROI2DShape roi = ( ROI2DShape ) rois.get( i );
+				KymographCache.Entry entry = null;
+				if ( !live )
+				{
+					keys[ i ] = new KymographCache.Key( selectedSequence, roi, extractor, separate );
+					entry = kymographCache.get( keys[ i ] );
+				}
+				if ( entry == null )
 				{
-					// ArrayList<double[]> samplingPositions =
-					// extractor.computeSamplingPositions(selectedSequence,
-					// (ROI2DShape) roi, true);
-					if ( separateAnteroRetroBox.isSelected() )
+					final KymographMask mask = extractor.compileMask( selectedSequence.getSizeX(), selectedSequence.getSizeY(), roi );
+					final KymographCache.Entry previous = live ? null : kymographCache.removePreviousVersion( keys[ i ] );
+					if ( previous != null )
 					{
-						// Sequence[] kymographs =
-						// extractor.getAnteroRetroKymographSequenceFromDisks(selectedSequence,
-						// samplingPositions);
-
-						Sequence[] kymographs = null;
-						// if (roi instanceof SplineROI)
-						// {
-						// SplineROI roiSpline = (SplineROI) roi;
-						// kymographs =
-						// extractor.getAnteroRetroKymographSequence(selectedSequence,
-						// roiSpline.length, roiSpline.xSpline,
-						// roiSpline.ySpline);
-						// }
-						final CubicSmoothingSpline xSpline = Util.getXsplineFromROI( ( ROI2DShape ) roi );
-						final CubicSmoothingSpline ySpline = Util.getYsplineFromROI( ( ROI2DShape ) roi );
-						final double length = Util.getSplineLength( ( ROI2DShape ) roi );
-						kymographs = extractor.getAnteroRetroKymographSequence( selectedSequence, length, xSpline, ySpline );
-
-						for ( final Sequence kymograph : kymographs )
-							KymographScaleBar.addScaleBarTo( kymograph );
-
-						final Sequence kymo = kymographs[ 0 ];
-						kymo.setName( roi.getName() + "_kymograph" );
-						Icy.getMainInterface().addSequence( kymo );
-
-						final Sequence anteroKymo = kymographs[ 2 ];
-						anteroKymo.setName( roi.getName() + "_anteroKymograph" );
-						Icy.getMainInterface().addSequence( anteroKymo );
-
-						final Sequence retroKymo = kymographs[ 1 ];
-						retroKymo.setName( roi.getName() + "_retroKymograph" );
-						Icy.getMainInterface().addSequence( retroKymo );
-						final KymographExtractionResult result = new KymographExtractionResult();
-						result.roi = roi;
-						result.setKymograph( kymo );
-						result.anterogradeRetrogradeSeparation = true;
-						result.sourceSequence = selectedSequence;
-						result.setAnterogradeKymograph( anteroKymo );
-						result.setRetrogradeKymograph( retroKymo );
-						result.samplingPositions = extractor.samplingPositions;
-						Icy.getMainInterface().getSwimmingPool().add( new SwimmingObject( result ) );
+						extractor.updateKymographSequence( selectedSequence, previous.rawKymograph, previous.mask, mask );
+						if ( separate )
+						{
+							final Sequence[] kymographs = KymographSeparator.separateKymograph( previous.rawKymograph, previous.rawKymograph.getDataType_() );
+							for ( int k = 0; k < kymographs.length; k++ )
+								previous.kymographs[ k ].setImage( 0, 0, kymographs[ k ].getImage( 0, 0 ) );
+						}
+						// The kymographs were updated in place: so is their result.
+						entry = new KymographCache.Entry( mask, previous.rawKymograph, previous.kymographs );
+						entry.result = previous.result;
+						if ( entry.result != null )
+							entry.result.pyramid = null;
+						kymographCache.put( keys[ i ], entry );
 					}
 					else
 					{
-						Sequence kymograph = null;
-						final CubicSmoothingSpline xSpline = Util.getXsplineFromROI( ( ROI2DShape ) roi );
-						final CubicSmoothingSpline ySpline = Util.getYsplineFromROI( ( ROI2DShape ) roi );
-						final double length = Util.getSplineLength( ( ROI2DShape ) roi );
-						kymograph = extractor.getKymographSequence( selectedSequence, length, xSpline, ySpline );
-						KymographScaleBar.addScaleBarTo( kymograph );
-
-						kymograph.setName( roi.getName() + "_kymograph" );
-						Icy.getMainInterface().addSequence( kymograph );
-						final KymographExtractionResult result = new KymographExtractionResult();
-						result.roi = roi;
-						result.setKymograph( kymograph );
-						result.anterogradeRetrogradeSeparation = false;
-						result.sourceSequence = selectedSequence;
-						result.samplingPositions = extractor.samplingPositions;
-						Icy.getMainInterface().getSwimmingPool().add( new SwimmingObject( result ) );
+						toExtract.add( i );
+						masks.add( mask );
+					}
+				}
+				entries.add( entry );
+			}
+
+			// Kymographs that do not fit in memory are extracted to disk, and
+			// shown through a coarse level of their pyramid, built in the same
+			// pass within a sixteenth of the memory.
+			long kymographBytes = 0;
+			final int bytesPerValue = extractor.getOutputDataType( selectedSequence.getDataType_() ).getSize();
+			for ( final KymographMask mask : masks )
+				kymographBytes += ( long ) bytesPerValue * mask.getNumColumns() * extractor.getNumRows( selectedSequence.getSizeT() ) * selectedSequence.getSizeC();
+			final boolean tiled = !separate && !live && kymographBytes > Runtime.getRuntime().maxMemory() / 4;
+			final TiledKymograph[] tiledKymographs = new TiledKymograph[ rois.size() ];
+			final KymographPyramid[] tiledPyramids = new KymographPyramid[ rois.size() ];
+			if ( tiled )
+			{
+				try
+				{
+					final KymographPyramid[] pyramids = new KymographPyramid[ masks.size() ];
+					final long maxPyramidBytes = Runtime.getRuntime().maxMemory() / 16 / masks.size();
+					final TiledKymograph[] tiles = extractor.getTiledKymographs( selectedSequence, masks.toArray( new KymographMask[ masks.size() ] ), null, pyramids, maxPyramidBytes );
+					for ( int j = 0; j < tiles.length; j++ )
+					{
+						tiledKymographs[ toExtract.get( j ) ] = tiles[ j ];
+						tiledPyramids[ toExtract.get( j ) ] = pyramids[ j ];
 					}
 				}
+				catch ( final IOException e )
+				{
+					e.printStackTrace();
+					return;
+				}
 			}
+			else if ( !masks.isEmpty() )
+			{
+				// Long kymographs get a multi-resolution pyramid, built in the
+				// same pass. Live kymographs grow, so they do not get one, and
+				// separated kymographs get the pyramid of the filtered one.
+				final boolean pyramid = !live && !separate && extractor.getNumRows( selectedSequence.getSizeT() ) >= KymographPyramid.MIN_ROWS;
+				final KymographPyramid[] pyramids = pyramid ? new KymographPyramid[ masks.size() ] : null;
+				final Sequence[] kymographSeqs = extractor.getKymographSequences( selectedSequence, masks.toArray( new KymographMask[ masks.size() ] ), pyramids );
+				for ( int j = 0; j < kymographSeqs.length; j++ )
+				{
+					final int i = toExtract.get( j );
+					final Sequence[] kymographs = separate
+							? KymographSeparator.separateKymograph( kymographSeqs[ j ], kymographSeqs[ j ].getDataType_() )
+							: new Sequence[] { kymographSeqs[ j ] };
+					final KymographCache.Entry entry = new KymographCache.Entry( masks.get( j ), kymographSeqs[ j ], kymographs, pyramid ? pyramids[ j ] : null );
+					entries.set( i, entry );
+					if ( !live )
+						kymographCache.put( keys[ i ], entry );
+				}
+			}
+
+			for ( int i = 0; i < rois.size(); i++ )
+			{
+				final ROI2D roi = rois.get( i );
+				if ( tiledKymographs[ i ] != null )
+				{
+					tiledKymographs[ i ].setName( roi.getName() + "_kymograph" );
+					final KymographExtractionResult result = new KymographExtractionResult();
+					result.roi = roi;
+					result.setTiledKymograph( tiledKymographs[ i ], tiledPyramids[ i ] );
+					result.anterogradeRetrogradeSeparation = false;
+					result.sourceSequence = selectedSequence;
+					result.samplingPositions = masks.get( toExtract.indexOf( i ) ).getSamplingPositions();
+					result.temporalBinning = binning;
+					Icy.getMainInterface().getSwimmingPool().add( new SwimmingObject( result ) );
+				}
+				else
+				{
+					final KymographCache.Entry entry = publishEntry( roi, entries.get( i ), separate, binning, live );
+					if ( !live && entry != entries.get( i ) )
+						kymographCache.put( keys[ i ], entry );
+				}
+			}
+
+			// Moving paths and paths corrected for drift have a mask per frame:
+			// they are neither cached nor updated live.
+			for ( final String name : movingPaths.keySet() )
+			{
+				final KeyframedPath path = movingPaths.get( name );
+				final Map.Entry< Integer, ROI2DShape > firstKeyframe = path.getKeyframes().entrySet().iterator().next();
+				final ArrayList< ArrayList< double[] > > rowSamplingPositions = new ArrayList< ArrayList< double[] > >();
+				final Sequence rawKymograph = extractor.getKymographSequence( selectedSequence, path, rowSamplingPositions );
+				addResult( name, firstKeyframe.getValue(), rawKymograph, path.getSamplingPositions( firstKeyframe.getKey() ), rowSamplingPositions, null, separate, binning );
+			}
+			if ( !driftRois.isEmpty() )
+			{
+				final double[][] translations = new DriftEstimator( selectedSequence.getSizeX(), selectedSequence.getSizeY() ).estimateDrift( selectedSequence );
+				final Sequence[] rawKymographs = extractor.getKymographSequences( selectedSequence, driftRois.toArray( new ROI2DShape[ driftRois.size() ] ), translations );
+				final double[][] rowTranslations = extractor.getRowTranslations( translations );
+				for ( int i = 0; i < rawKymographs.length; i++ )
+				{
+					final ROI2DShape roi = driftRois.get( i );
+					final ArrayList< double[] > samplingPositions = new ArrayList< double[] >();
+					for ( final double[] column : extractor.getColumns( roi ) )
+						samplingPositions.add( new double[] { column[ 0 ], column[ 1 ] } );
+					addResult( roi.getName(), roi, rawKymographs[ i ], samplingPositions, null, rowTranslations, separate, binning );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Extracts a radial fan of kymographs around each ROI of the selected
+	 * sequence: one kymograph per ray, from the center of the bounds of the
+	 * ROI out to half their largest side, so that a circle gives its center
+	 * and radius. The rays of all the ROIs are extracted in a single pass
+	 * over the sequence, and each ray is published as a polyline.
+	 */
+	private void extractRadialKymographs( final ROItoKymograph extractor, final int numRays, final boolean separate, final int binning )
+	{
+		final ArrayList< ROI2D > rois = new ArrayList< ROI2D >();
+		final ArrayList< KymographMask > masks = new ArrayList< KymographMask >();
+		for ( final ROI2D roi : selectedSequence.getROI2Ds() )
+		{
+			if ( !( roi instanceof ROI2DShape ) || roi.getT() >= 0 )
+				continue;
+			final Rectangle2D bounds = roi.getBounds2D();
+			final double radius = 0.5 * Math.max( bounds.getWidth(), bounds.getHeight() );
+			rois.add( roi );
+			masks.addAll( Arrays.asList( extractor.compileRadialMasks( selectedSequence.getSizeX(), selectedSequence.getSizeY(), bounds.getCenterX(), bounds.getCenterY(), radius, numRays ) ) );
+		}
+		if ( masks.isEmpty() )
+			return;
+
+		final Sequence[] rawKymographs = extractor.getKymographSequences( selectedSequence, masks.toArray( new KymographMask[ masks.size() ] ) );
+		for ( int i = 0; i < rawKymographs.length; i++ )
+		{
+			final ArrayList< double[] > samplingPositions = masks.get( i ).getSamplingPositions();
+			final double[] first = samplingPositions.get( 0 );
+			final double[] last = samplingPositions.get( samplingPositions.size() - 1 );
+			final ArrayList< Point2D > points = new ArrayList< Point2D >();
+			points.add( new Point2D.Double( first[ 0 ], first[ 1 ] ) );
+			points.add( new Point2D.Double( last[ 0 ], last[ 1 ] ) );
+			final ROI2DPolyLine ray = new ROI2DPolyLine( points );
+			ray.setName( rois.get( i / numRays ).getName() + "_ray" + ( i % numRays ) );
+			addResult( ray.getName(), ray, rawKymographs[ i ], samplingPositions, null, null, separate, binning );
+		}
+	}
+
+	/**
+	 * Shows the kymographs of a cache entry and publishes their result in the
+	 * swimming pool. The result of an entry is published once: if it is still
+	 * in the swimming pool, it is updated and shown again. If it was removed,
+	 * copies of the kymographs are published instead, so that two results
+	 * never share the same sequences and their track ROIs.
+	 *
+	 * @return the entry holding the published kymographs, to cache instead
+	 *         of the specified one.
+	 */
+	private KymographCache.Entry publishEntry( final ROI2D roi, final KymographCache.Entry entry, final boolean separate, final int binning, final boolean live )
+	{
+		final KymographExtractionResult previous = entry.result;
+		if ( previous != null && isPublished( previous ) )
+		{
+			previous.roi = roi;
+			previous.samplingPositions = entry.mask.getSamplingPositions();
+			final Sequence kymo = previous.getKymograph();
+			if ( previous.pyramid == null && kymo.getSizeY() >= KymographPyramid.MIN_ROWS )
+				previous.pyramid = KymographPyramid.build( kymo );
+			showResult( previous );
+			return entry;
+		}
+
+		KymographCache.Entry published = entry;
+		if ( previous != null )
+		{
+			final Sequence[] copies = new Sequence[ entry.kymographs.length ];
+			for ( int k = 0; k < copies.length; k++ )
+				copies[ k ] = copyKymograph( entry.kymographs[ k ] );
+			published = new KymographCache.Entry( entry.mask, separate ? entry.rawKymograph : copies[ 0 ], copies, entry.pyramid );
+		}
+		final KymographExtractionResult result = new KymographExtractionResult();
+		if ( separate )
+		{
+			final Sequence[] kymographs = published.kymographs;
+
+			for ( final Sequence kymograph : kymographs )
+				KymographScaleBar.addScaleBarTo( kymograph );
+
+			final Sequence kymo = kymographs[ 0 ];
+			kymo.setName( roi.getName() + "_kymograph" );
+			Icy.getMainInterface().addSequence( kymo );
+
+			final Sequence anteroKymo = kymographs[ 2 ];
+			anteroKymo.setName( roi.getName() + "_anteroKymograph" );
+			Icy.getMainInterface().addSequence( anteroKymo );
+
+			final Sequence retroKymo = kymographs[ 1 ];
+			retroKymo.setName( roi.getName() + "_retroKymograph" );
+			Icy.getMainInterface().addSequence( retroKymo );
+			result.roi = roi;
+			result.setKymograph( kymo );
+			result.anterogradeRetrogradeSeparation = true;
+			result.sourceSequence = selectedSequence;
+			result.setAnterogradeKymograph( anteroKymo );
+			result.setRetrogradeKymograph( retroKymo );
+			result.samplingPositions = published.mask.getSamplingPositions();
+			result.temporalBinning = binning;
+			// The filtered kymograph is not streamed: build its pyramid from it.
+			if ( !live && kymo.getSizeY() >= KymographPyramid.MIN_ROWS )
+				result.pyramid = ( published.pyramid != null ) ? published.pyramid : KymographPyramid.build( kymo );
+			if ( live )
+				result.startLiveUpdate( published.mask, published.rawKymograph );
+		}
+		else
+		{
+			final Sequence kymograph = published.kymographs[ 0 ];
+			KymographScaleBar.addScaleBarTo( kymograph );
+
+			kymograph.setName( roi.getName() + "_kymograph" );
+			Icy.getMainInterface().addSequence( kymograph );
+			result.roi = roi;
+			result.setKymograph( kymograph );
+			result.anterogradeRetrogradeSeparation = false;
+			result.sourceSequence = selectedSequence;
+			result.samplingPositions = published.mask.getSamplingPositions();
+			result.temporalBinning = binning;
+			if ( !live && kymograph.getSizeY() >= KymographPyramid.MIN_ROWS )
+				result.pyramid = ( published.pyramid != null ) ? published.pyramid : KymographPyramid.build( kymograph );
+			if ( live )
+				result.startLiveUpdate( published.mask, kymograph );
+		}
+		// A pyramid built here is cached with the kymographs.
+		if ( result.pyramid != published.pyramid )
+			published = new KymographCache.Entry( published.mask, published.rawKymograph, published.kymographs, result.pyramid );
+		Icy.getMainInterface().getSwimmingPool().add( new SwimmingObject( result ) );
+		published.result = result;
+		return published;
+	}
+
+	private static boolean isPublished( final KymographExtractionResult result )
+	{
+		for ( final SwimmingObject object : Icy.getMainInterface().getSwimmingPool().getObjects( KymographExtractionResult.class ) )
+			if ( object.getObject() == result )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Brings the kymographs of a result to front, opening again those that
+	 * were closed.
+	 */
+	private static void showResult( final KymographExtractionResult result )
+	{
+		final ArrayList< Sequence > kymographs = new ArrayList< Sequence >();
+		kymographs.add( result.getKymograph() );
+		if ( result.anterogradeRetrogradeSeparation )
+		{
+			kymographs.add( result.getAnterogradeKymograph() );
+			kymographs.add( result.getRetrogradeKymograph() );
+		}
+		for ( final Sequence kymograph : kymographs )
+		{
+			final Viewer viewer = Icy.getMainInterface().getFirstViewer( kymograph );
+			if ( viewer == null )
+				Icy.getMainInterface().addSequence( kymograph );
+			else
+				viewer.toFront();
+		}
+	}
+
+	/**
+	 * Returns a copy of the pixels and calibration of a kymograph, without
+	 * its ROIs and overlays.
+	 */
+	private static Sequence copyKymograph( final Sequence kymograph )
+	{
+		final Sequence copy = new Sequence( kymograph.getName(), kymograph.getImage( 0, 0 ).getCopy() );
+		copy.setPixelSizeX( kymograph.getPixelSizeX() );
+		copy.setPixelSizeY( kymograph.getPixelSizeY() );
+		copy.setTimeInterval( kymograph.getTimeInterval() );
+		for ( int c = 0; c < kymograph.getSizeC(); c++ )
+			copy.setChannelName( c, kymograph.getChannelName( c ) );
+		return copy;
+	}
+
+	/**
+	 * Separates a kymograph if needed, shows it and publishes its result in
+	 * the swimming pool.
+	 *
+	 * @param rowSamplingPositions
+	 *            the sampling positions of each row of the kymograph, or
+	 *            <code>null</code> if all the rows are sampled at
+	 *            <code>samplingPositions</code>.
+	 * @param rowTranslations
+	 *            the translation of the sampling positions of each row of a
+	 *            kymograph corrected for drift, or <code>null</code>.
+	 */
+	private void addResult( final String name, final ROI roi, final Sequence rawKymograph, final ArrayList< double[] > samplingPositions, final ArrayList< ArrayList< double[] > > rowSamplingPositions, final double[][] rowTranslations, final boolean separate, final int binning )
+	{
+		final Sequence[] kymographs = separate
+				? KymographSeparator.separateKymograph( rawKymograph, rawKymograph.getDataType_() )
+				: new Sequence[] { rawKymograph };
+		for ( final Sequence kymograph : kymographs )
+			KymographScaleBar.addScaleBarTo( kymograph );
+		final KymographExtractionResult result = new KymographExtractionResult();
+		result.roi = roi;
+		result.sourceSequence = selectedSequence;
+		result.anterogradeRetrogradeSeparation = separate;
+		result.samplingPositions = samplingPositions;
+		result.rowSamplingPositions = rowSamplingPositions;
+		result.rowTranslations = rowTranslations;
+		result.temporalBinning = binning;
+		kymographs[ 0 ].setName( name + "_kymograph" );
+		Icy.getMainInterface().addSequence( kymographs[ 0 ] );
+		result.setKymograph( kymographs[ 0 ] );
+		if ( separate )
+		{
+			kymographs[ 2 ].setName( name + "_anteroKymograph" );
+			Icy.getMainInterface().addSequence( kymographs[ 2 ] );
+			result.setAnterogradeKymograph( kymographs[ 2 ] );
+			kymographs[ 1 ].setName( name + "_retroKymograph" );
+			Icy.getMainInterface().addSequence( kymographs[ 1 ] );
+			result.setRetrogradeKymograph( kymographs[ 1 ] );
 		}
+		Icy.getMainInterface().getSwimmingPool().add( new SwimmingObject( result ) );
 	}
 
 	// @Override
@@ -0,0 +1,906 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compiled sampling mask of a kymograph.
+ * <p>
+ * Each column of the kymograph averages a set of pixels of the source frame.
+ * The pixels are stored in a compressed-sparse-row layout: the pixel offsets
+ * (<code>x + y * width</code>) of column <code>i</code> are found in
+ * <code>offsets[columnStart[i]]</code> to
+ * <code>offsets[columnStart[i + 1] - 1]</code>. The mask is built once per ROI
+ * and then applied to the raw primitive buffer of each frame.
+ * <p>
+ * Masks compiled with sub-pixel interpolation also store one weight per
+ * offset, so that each column is a weighted sum of its pixels. The
+ * interpolation weights and the averaging over the samples of a column are
+ * folded in these weights when the mask is built.
+ * <p>
+ * Columns aggregated with a maximum or a median are not linear in the
+ * pixels. The offsets of each column are then further grouped by sample, and
+ * the sample values are aggregated in a scratch buffer preallocated for each
+ * thread.
+ */
+public class KymographMask
+{
+
+	/** Width of the frames the mask was compiled for. */
+	final int width;
+
+	/** Height of the frames the mask was compiled for. */
+	final int height;
+
+	/** Index of the first offset of each column, plus a final sentinel. */
+	final int[] columnStart;
+
+	/** Number of pixels averaged in each column. */
+	final int[] counts;
+
+	/** Pixel offsets in the source frame. */
+	final int[] offsets;
+
+	/**
+	 * Weight of each pixel offset, or <code>null</code> if the pixels of a
+	 * column are simply averaged.
+	 */
+	final float[] weights;
+
+	/** How the samples of a column are aggregated. */
+	final ProfileAggregation aggregation;
+
+	/**
+	 * Index of the first offset of each sample, plus a final sentinel, or
+	 * <code>null</code> for linear aggregations.
+	 */
+	final int[] sampleStart;
+
+	/**
+	 * Index of the first sample of each column, plus a final sentinel, or
+	 * <code>null</code> for linear aggregations.
+	 */
+	final int[] columnSampleStart;
+
+	/** Position of the center of each column in the source frame. */
+	final ArrayList< double[] > samplingPositions;
+
+	/** Values of the samples of one frame, for non-linear aggregations. */
+	private final ThreadLocal< double[] > sampleValues = new ThreadLocal< double[] >()
+	{
+		@Override
+		protected double[] initialValue()
+		{
+			return new double[ sampleStart.length - 1 ];
+		}
+	};
+
+	KymographMask( final int width, final int height, final int[] columnStart, final int[] offsets, final ArrayList< double[] > samplingPositions )
+	{
+		this( width, height, columnStart, offsets, null, samplingPositions );
+	}
+
+	KymographMask( final int width, final int height, final int[] columnStart, final int[] offsets, final float[] weights, final ArrayList< double[] > samplingPositions )
+	{
+		this( width, height, columnStart, offsets, weights, ProfileAggregation.MEAN, null, null, samplingPositions );
+	}
+
+	KymographMask( final int width, final int height, final int[] columnStart, final int[] offsets, final float[] weights, final ProfileAggregation aggregation, final int[] sampleStart, final int[] columnSampleStart, final ArrayList< double[] > samplingPositions )
+	{
+		this.width = width;
+		this.height = height;
+		this.columnStart = columnStart;
+		this.offsets = offsets;
+		this.weights = weights;
+		this.aggregation = aggregation;
+		this.sampleStart = sampleStart;
+		this.columnSampleStart = columnSampleStart;
+		this.samplingPositions = samplingPositions;
+		this.counts = new int[ columnStart.length - 1 ];
+		for ( int i = 0; i < counts.length; i++ )
+			counts[ i ] = columnStart[ i + 1 ] - columnStart[ i ];
+	}
+
+	public int getNumColumns()
+	{
+		return counts.length;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public ArrayList< double[] > getSamplingPositions()
+	{
+		return samplingPositions;
+	}
+
+	public ProfileAggregation getAggregation()
+	{
+		return aggregation;
+	}
+
+	/**
+	 * Returns <code>true</code> if this mask samples no pixel, for instance
+	 * when its path lies entirely outside the frames.
+	 */
+	public boolean isEmpty()
+	{
+		return offsets.length == 0;
+	}
+
+	/**
+	 * Returns the smallest rectangle enclosing all the pixels sampled by this
+	 * mask, or an empty rectangle if the mask is empty.
+	 */
+	public Rectangle getBounds()
+	{
+		if ( offsets.length == 0 )
+			return new Rectangle();
+		int minX = width;
+		int maxX = -1;
+		int minY = height;
+		int maxY = -1;
+		for ( final int offset : offsets )
+		{
+			final int x = offset % width;
+			final int y = offset / width;
+			minX = Math.min( minX, x );
+			maxX = Math.max( maxX, x );
+			minY = Math.min( minY, y );
+			maxY = Math.max( maxY, y );
+		}
+		return new Rectangle( minX, minY, maxX - minX + 1, maxY - minY + 1 );
+	}
+
+	/**
+	 * Returns a copy of this mask that samples frames cropped to the specified
+	 * rectangle, instead of full frames. The rectangle must contain the
+	 * bounds of this mask, unless the mask is empty.
+	 */
+	public KymographMask crop( final Rectangle bounds )
+	{
+		if ( !isEmpty() && !bounds.contains( getBounds() ) )
+			throw new IllegalArgumentException( "Cropping rectangle " + bounds + " does not contain the mask bounds " + getBounds() );
+		final int[] croppedOffsets = new int[ offsets.length ];
+		for ( int k = 0; k < offsets.length; k++ )
+		{
+			final int x = offsets[ k ] % width - bounds.x;
+			final int y = offsets[ k ] / width - bounds.y;
+			croppedOffsets[ k ] = x + y * bounds.width;
+		}
+		return new KymographMask( bounds.width, bounds.height, columnStart, croppedOffsets, weights, aggregation, sampleStart, columnSampleStart, samplingPositions );
+	}
+
+	/**
+	 * Returns a mask that samples the columns <code>[from, to)</code> of this
+	 * mask.
+	 */
+	public KymographMask getColumns( final int from, final int to )
+	{
+		final int[] cs = new int[ to - from + 1 ];
+		for ( int i = 0; i < cs.length; i++ )
+			cs[ i ] = columnStart[ from + i ] - columnStart[ from ];
+		final int start = columnStart[ from ];
+		final int end = columnStart[ to ];
+		final float[] w = ( weights == null ) ? null : Arrays.copyOfRange( weights, start, end );
+		int[] ss = null;
+		int[] css = null;
+		if ( sampleStart != null )
+		{
+			css = new int[ to - from + 1 ];
+			for ( int i = 0; i < css.length; i++ )
+				css[ i ] = columnSampleStart[ from + i ] - columnSampleStart[ from ];
+			ss = new int[ css[ css.length - 1 ] + 1 ];
+			for ( int s = 0; s < ss.length; s++ )
+				ss[ s ] = sampleStart[ columnSampleStart[ from ] + s ] - start;
+		}
+		return new KymographMask( width, height, cs, Arrays.copyOfRange( offsets, start, end ), w, aggregation, ss, css,
+				new ArrayList< double[] >( samplingPositions.subList( from, to ) ) );
+	}
+
+	/**
+	 * Returns <code>true</code> if the column <code>i</code> of this mask and
+	 * the column <code>j</code> of the specified mask sample the same pixels
+	 * with the same weights, up to <code>tolerance</code>.
+	 */
+	public boolean isSameColumn( final int i, final KymographMask other, final int j, final float tolerance )
+	{
+		if ( width != other.width || height != other.height || aggregation != other.aggregation )
+			return false;
+		final int n = counts[ i ];
+		if ( n != other.counts[ j ] )
+			return false;
+		final int start = columnStart[ i ];
+		final int otherStart = other.columnStart[ j ];
+		if ( sampleStart != null )
+		{
+			final int numSamples = columnSampleStart[ i + 1 ] - columnSampleStart[ i ];
+			if ( numSamples != other.columnSampleStart[ j + 1 ] - other.columnSampleStart[ j ] )
+				return false;
+			for ( int s = 0; s < numSamples; s++ )
+				if ( sampleStart[ columnSampleStart[ i ] + s ] - start != other.sampleStart[ other.columnSampleStart[ j ] + s ] - otherStart )
+					return false;
+		}
+		for ( int k = 0; k < n; k++ )
+		{
+			if ( offsets[ start + k ] != other.offsets[ otherStart + k ] )
+				return false;
+			final float w = ( weights == null ) ? 1f / n : weights[ start + k ];
+			final float otherW = ( other.weights == null ) ? 1f / n : other.weights[ otherStart + k ];
+			if ( Math.abs( w - otherW ) > tolerance )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Samples one frame and writes one kymograph row.
+	 *
+	 * @param data
+	 *            the primitive array of the frame, as returned by
+	 *            <code>Sequence.getDataXY()</code>.
+	 * @param signed
+	 *            whether integer data must be read as signed values.
+	 * @param out
+	 *            the array to write the kymograph row into.
+	 * @param outOffset
+	 *            the index of the first column of the row in <code>out</code>.
+	 */
+	public void sample( final Object data, final boolean signed, final double[] out, final int outOffset )
+	{
+		if ( sampleStart != null )
+			sampleAggregated( data, signed, out, outOffset );
+		else if ( weights != null )
+			sampleWeighted( data, signed, out, outOffset );
+		else if ( data instanceof byte[] )
+			sample( ( byte[] ) data, signed, out, outOffset );
+		else if ( data instanceof short[] )
+			sample( ( short[] ) data, signed, out, outOffset );
+		else if ( data instanceof int[] )
+			sample( ( int[] ) data, signed, out, outOffset );
+		else if ( data instanceof float[] )
+			sample( ( float[] ) data, out, outOffset );
+		else if ( data instanceof double[] )
+			sample( ( double[] ) data, out, outOffset );
+		else
+			throw new IllegalArgumentException( "Unsupported frame data: " + data );
+	}
+
+	private void sample( final byte[] data, final boolean signed, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			if ( signed )
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += data[ offsets[ k ] ];
+			else
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += data[ offsets[ k ] ] & 0xFF;
+			out[ outOffset + i ] = ( counts[ i ] > 1 ) ? sum / counts[ i ] : sum;
+		}
+	}
+
+	private void sample( final short[] data, final boolean signed, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			if ( signed )
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += data[ offsets[ k ] ];
+			else
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += data[ offsets[ k ] ] & 0xFFFF;
+			out[ outOffset + i ] = ( counts[ i ] > 1 ) ? sum / counts[ i ] : sum;
+		}
+	}
+
+	private void sample( final int[] data, final boolean signed, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			if ( signed )
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += data[ offsets[ k ] ];
+			else
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += data[ offsets[ k ] ] & 0xFFFFFFFFL;
+			out[ outOffset + i ] = ( counts[ i ] > 1 ) ? sum / counts[ i ] : sum;
+		}
+	}
+
+	private void sample( final float[] data, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			for ( int k = columnStart[ i ]; k < end; k++ )
+				sum += data[ offsets[ k ] ];
+			out[ outOffset + i ] = ( counts[ i ] > 1 ) ? sum / counts[ i ] : sum;
+		}
+	}
+
+	private void sample( final double[] data, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			for ( int k = columnStart[ i ]; k < end; k++ )
+				sum += data[ offsets[ k ] ];
+			out[ outOffset + i ] = ( counts[ i ] > 1 ) ? sum / counts[ i ] : sum;
+		}
+	}
+
+	private void sampleWeighted( final Object data, final boolean signed, final double[] out, final int outOffset )
+	{
+		if ( data instanceof byte[] )
+			sampleWeighted( ( byte[] ) data, signed, out, outOffset );
+		else if ( data instanceof short[] )
+			sampleWeighted( ( short[] ) data, signed, out, outOffset );
+		else if ( data instanceof int[] )
+			sampleWeighted( ( int[] ) data, signed, out, outOffset );
+		else if ( data instanceof float[] )
+			sampleWeighted( ( float[] ) data, out, outOffset );
+		else if ( data instanceof double[] )
+			sampleWeighted( ( double[] ) data, out, outOffset );
+		else
+			throw new IllegalArgumentException( "Unsupported frame data: " + data );
+	}
+
+	private void sampleWeighted( final byte[] data, final boolean signed, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			if ( signed )
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += weights[ k ] * data[ offsets[ k ] ];
+			else
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += weights[ k ] * ( data[ offsets[ k ] ] & 0xFF );
+			out[ outOffset + i ] = sum;
+		}
+	}
+
+	private void sampleWeighted( final short[] data, final boolean signed, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			if ( signed )
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += weights[ k ] * data[ offsets[ k ] ];
+			else
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += weights[ k ] * ( data[ offsets[ k ] ] & 0xFFFF );
+			out[ outOffset + i ] = sum;
+		}
+	}
+
+	private void sampleWeighted( final int[] data, final boolean signed, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			if ( signed )
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += weights[ k ] * data[ offsets[ k ] ];
+			else
+				for ( int k = columnStart[ i ]; k < end; k++ )
+					sum += weights[ k ] * ( data[ offsets[ k ] ] & 0xFFFFFFFFL );
+			out[ outOffset + i ] = sum;
+		}
+	}
+
+	private void sampleWeighted( final float[] data, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			for ( int k = columnStart[ i ]; k < end; k++ )
+				sum += weights[ k ] * data[ offsets[ k ] ];
+			out[ outOffset + i ] = sum;
+		}
+	}
+
+	private void sampleWeighted( final double[] data, final double[] out, final int outOffset )
+	{
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			double sum = 0;
+			final int end = columnStart[ i + 1 ];
+			for ( int k = columnStart[ i ]; k < end; k++ )
+				sum += weights[ k ] * data[ offsets[ k ] ];
+			out[ outOffset + i ] = sum;
+		}
+	}
+
+	private void sampleAggregated( final Object data, final boolean signed, final double[] out, final int outOffset )
+	{
+		final double[] values = sampleValues.get();
+		if ( data instanceof byte[] )
+			evaluateSamples( ( byte[] ) data, signed, values );
+		else if ( data instanceof short[] )
+			evaluateSamples( ( short[] ) data, signed, values );
+		else if ( data instanceof int[] )
+			evaluateSamples( ( int[] ) data, signed, values );
+		else if ( data instanceof float[] )
+			evaluateSamples( ( float[] ) data, values );
+		else if ( data instanceof double[] )
+			evaluateSamples( ( double[] ) data, values );
+		else
+			throw new IllegalArgumentException( "Unsupported frame data: " + data );
+
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			final int from = columnSampleStart[ i ];
+			final int to = columnSampleStart[ i + 1 ];
+			if ( from == to )
+			{
+				out[ outOffset + i ] = 0;
+				continue;
+			}
+			if ( aggregation == ProfileAggregation.MAX )
+			{
+				double max = values[ from ];
+				for ( int s = from + 1; s < to; s++ )
+					if ( values[ s ] > max )
+						max = values[ s ];
+				out[ outOffset + i ] = max;
+			}
+			else
+			{
+				out[ outOffset + i ] = median( values, from, to );
+			}
+		}
+	}
+
+	private void evaluateSamples( final byte[] data, final boolean signed, final double[] values )
+	{
+		for ( int s = 0; s < values.length; s++ )
+		{
+			double sum = 0;
+			final int end = sampleStart[ s + 1 ];
+			if ( signed )
+				for ( int k = sampleStart[ s ]; k < end; k++ )
+					sum += weights[ k ] * data[ offsets[ k ] ];
+			else
+				for ( int k = sampleStart[ s ]; k < end; k++ )
+					sum += weights[ k ] * ( data[ offsets[ k ] ] & 0xFF );
+			values[ s ] = sum;
+		}
+	}
+
+	private void evaluateSamples( final short[] data, final boolean signed, final double[] values )
+	{
+		for ( int s = 0; s < values.length; s++ )
+		{
+			double sum = 0;
+			final int end = sampleStart[ s + 1 ];
+			if ( signed )
+				for ( int k = sampleStart[ s ]; k < end; k++ )
+					sum += weights[ k ] * data[ offsets[ k ] ];
+			else
+				for ( int k = sampleStart[ s ]; k < end; k++ )
+					sum += weights[ k ] * ( data[ offsets[ k ] ] & 0xFFFF );
+			values[ s ] = sum;
+		}
+	}
+
+	private void evaluateSamples( final int[] data, final boolean signed, final double[] values )
+	{
+		for ( int s = 0; s < values.length; s++ )
+		{
+			double sum = 0;
+			final int end = sampleStart[ s + 1 ];
+			if ( signed )
+				for ( int k = sampleStart[ s ]; k < end; k++ )
+					sum += weights[ k ] * data[ offsets[ k ] ];
+			else
+				for ( int k = sampleStart[ s ]; k < end; k++ )
+					sum += weights[ k ] * ( data[ offsets[ k ] ] & 0xFFFFFFFFL );
+			values[ s ] = sum;
+		}
+	}
+
+	private void evaluateSamples( final float[] data, final double[] values )
+	{
+		for ( int s = 0; s < values.length; s++ )
+		{
+			double sum = 0;
+			final int end = sampleStart[ s + 1 ];
+			for ( int k = sampleStart[ s ]; k < end; k++ )
+				sum += weights[ k ] * data[ offsets[ k ] ];
+			values[ s ] = sum;
+		}
+	}
+
+	private void evaluateSamples( final double[] data, final double[] values )
+	{
+		for ( int s = 0; s < values.length; s++ )
+		{
+			double sum = 0;
+			final int end = sampleStart[ s + 1 ];
+			for ( int k = sampleStart[ s ]; k < end; k++ )
+				sum += weights[ k ] * data[ offsets[ k ] ];
+			values[ s ] = sum;
+		}
+	}
+
+	/**
+	 * Returns the median of <code>values[from]</code> to
+	 * <code>values[to - 1]</code>, by partial sorting in place.
+	 */
+	static double median( final double[] values, final int from, final int to )
+	{
+		final int n = to - from;
+		final int k = from + n / 2;
+		select( values, from, to - 1, k );
+		if ( ( n & 1 ) == 1 )
+			return values[ k ];
+		// The lower middle value is the maximum of the left part.
+		double lower = values[ from ];
+		for ( int s = from + 1; s < k; s++ )
+			if ( values[ s ] > lower )
+				lower = values[ s ];
+		return 0.5 * ( lower + values[ k ] );
+	}
+
+	/**
+	 * Quickselect: partially sorts <code>values[left]</code> to
+	 * <code>values[right]</code> so that <code>values[k]</code> is the value it
+	 * would have if they were sorted, smaller values being before it and
+	 * larger values after it.
+	 */
+	private static void select( final double[] values, int left, int right, final int k )
+	{
+		while ( right > left )
+		{
+			// Median of three pivot.
+			final int middle = ( left + right ) >>> 1;
+			if ( values[ middle ] < values[ left ] )
+				swap( values, middle, left );
+			if ( values[ right ] < values[ left ] )
+				swap( values, right, left );
+			if ( values[ right ] < values[ middle ] )
+				swap( values, right, middle );
+			final double pivot = values[ middle ];
+
+			int i = left;
+			int j = right;
+			while ( i <= j )
+			{
+				while ( values[ i ] < pivot )
+					i++;
+				while ( values[ j ] > pivot )
+					j--;
+				if ( i <= j )
+				{
+					swap( values, i, j );
+					i++;
+					j--;
+				}
+			}
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	private static void swap( final double[] values, final int i, final int j )
+	{
+		final double tmp = values[ i ];
+		values[ i ] = values[ j ];
+		values[ j ] = tmp;
+	}
+
+	/**
+	 * Accumulates pixels column by column and compiles them into a
+	 * {@link KymographMask}. Pixels outside of the frame are discarded.
+	 * <p>
+	 * Sub-pixel samples added with {@link #addSample(double, double)} are
+	 * expanded into the neighbour pixels of the sample and their interpolation
+	 * weights. The weights of the samples falling partly outside of the frame
+	 * are normalized over the pixels inside the frame. Samples can be given a
+	 * weight in the column, used by linear aggregations only.
+	 */
+	static class Builder
+	{
+		private final int width;
+
+		private final int height;
+
+		private final SamplingInterpolation interpolation;
+
+		private final ProfileAggregation aggregation;
+
+		private int[] columnStart = new int[ 64 ];
+
+		private int[] columnSampleStart = new int[ 64 ];
+
+		private int[] sampleStart = new int[ 256 ];
+
+		private int[] offsets = new int[ 256 ];
+
+		private float[] weights = new float[ 256 ];
+
+		private int numColumns = 0;
+
+		private int numOffsets = 0;
+
+		/** Number of samples of the non-linear aggregations. */
+		private int numSamples = 0;
+
+		/** Sum of the weights of the samples added to the current column. */
+		private double columnWeight = 0;
+
+		/** Whether some pixels have weights other than 1. */
+		private boolean weighted = false;
+
+		private final double[] wx = new double[ 4 ];
+
+		private final double[] wy = new double[ 4 ];
+
+		private final ArrayList< double[] > samplingPositions = new ArrayList< double[] >();
+
+		Builder( final int width, final int height )
+		{
+			this( width, height, SamplingInterpolation.NEAREST );
+		}
+
+		Builder( final int width, final int height, final SamplingInterpolation interpolation )
+		{
+			this( width, height, interpolation, ProfileAggregation.MEAN );
+		}
+
+		Builder( final int width, final int height, final SamplingInterpolation interpolation, final ProfileAggregation aggregation )
+		{
+			this.width = width;
+			this.height = height;
+			this.interpolation = interpolation;
+			this.aggregation = aggregation;
+			// Non-linear aggregations need the weights of each sample.
+			this.weighted = !aggregation.isLinear();
+		}
+
+		/**
+		 * Starts a new column centered on the specified position.
+		 */
+		void startColumn( final double x, final double y )
+		{
+			finishColumn();
+			if ( numColumns + 2 > columnStart.length )
+			{
+				columnStart = Arrays.copyOf( columnStart, 2 * columnStart.length );
+				columnSampleStart = Arrays.copyOf( columnSampleStart, columnStart.length );
+			}
+			columnStart[ numColumns ] = numOffsets;
+			columnSampleStart[ numColumns ] = numSamples;
+			numColumns++;
+			samplingPositions.add( new double[] { x, y } );
+		}
+
+		/**
+		 * Adds a pixel to the current column.
+		 */
+		void add( final int x, final int y )
+		{
+			add( x, y, 1 );
+		}
+
+		/**
+		 * Adds a pixel to the current column, with the specified weight in the
+		 * column.
+		 */
+		void add( final int x, final int y, final double weight )
+		{
+			if ( x < 0 || x >= width || y < 0 || y >= height )
+				return;
+			final int first = numOffsets;
+			if ( aggregation.isLinear() )
+			{
+				push( x + y * width, ( float ) weight );
+				if ( weight != 1 )
+					weighted = true;
+			}
+			else
+			{
+				push( x + y * width, 1f );
+			}
+			commitSample( first, weight );
+		}
+
+		/**
+		 * Adds a sample at a sub-pixel position to the current column, read
+		 * with the interpolation of this builder.
+		 */
+		void addSample( final double x, final double y )
+		{
+			addSample( x, y, 1 );
+		}
+
+		/**
+		 * Adds a sample at a sub-pixel position to the current column, read
+		 * with the interpolation of this builder, with the specified weight in
+		 * the column.
+		 */
+		void addSample( final double x, final double y, final double weight )
+		{
+			final int size;
+			final int x0;
+			final int y0;
+			switch ( interpolation )
+			{
+			case LINEAR:
+			{
+				size = 2;
+				x0 = ( int ) Math.floor( x );
+				y0 = ( int ) Math.floor( y );
+				final double fx = x - x0;
+				final double fy = y - y0;
+				wx[ 0 ] = 1 - fx;
+				wx[ 1 ] = fx;
+				wy[ 0 ] = 1 - fy;
+				wy[ 1 ] = fy;
+				break;
+			}
+			case CUBIC:
+			{
+				size = 4;
+				x0 = ( int ) Math.floor( x ) - 1;
+				y0 = ( int ) Math.floor( y ) - 1;
+				for ( int i = 0; i < 4; i++ )
+				{
+					wx[ i ] = cubicKernel( x - ( x0 + i ) );
+					wy[ i ] = cubicKernel( y - ( y0 + i ) );
+				}
+				break;
+			}
+			case NEAREST:
+			default:
+				add( ( int ) Math.round( x ), ( int ) Math.round( y ), weight );
+				return;
+			}
+
+			final int first = numOffsets;
+			double sum = 0;
+			for ( int j = 0; j < size; j++ )
+			{
+				final int yy = y0 + j;
+				if ( yy < 0 || yy >= height || wy[ j ] == 0 )
+					continue;
+				for ( int i = 0; i < size; i++ )
+				{
+					final int xx = x0 + i;
+					final double w = wx[ i ] * wy[ j ];
+					if ( xx < 0 || xx >= width || w == 0 )
+						continue;
+					push( xx + yy * width, ( float ) w );
+					sum += w;
+				}
+			}
+			if ( Math.abs( sum ) < 1e-9 )
+			{
+				// Sample entirely outside of the frame.
+				numOffsets = first;
+				return;
+			}
+			final double factor = aggregation.isLinear() ? weight / sum : 1 / sum;
+			if ( numOffsets - first > 1 || factor != 1 )
+				weighted = true;
+			for ( int k = first; k < numOffsets; k++ )
+				weights[ k ] *= factor;
+			commitSample( first, weight );
+		}
+
+		private void commitSample( final int first, final double weight )
+		{
+			columnWeight += weight;
+			if ( aggregation.isLinear() )
+				return;
+			if ( numSamples + 2 > sampleStart.length )
+				sampleStart = Arrays.copyOf( sampleStart, 2 * sampleStart.length );
+			sampleStart[ numSamples++ ] = first;
+		}
+
+		private void push( final int offset, final float weight )
+		{
+			if ( numOffsets == offsets.length )
+			{
+				offsets = Arrays.copyOf( offsets, 2 * offsets.length );
+				weights = Arrays.copyOf( weights, offsets.length );
+			}
+			offsets[ numOffsets ] = offset;
+			weights[ numOffsets ] = weight;
+			numOffsets++;
+		}
+
+		/**
+		 * Folds the weighted averaging over the samples of the current column
+		 * into the weights of its pixels, for linear aggregations.
+		 */
+		private void finishColumn()
+		{
+			if ( aggregation.isLinear() && numColumns > 0 && columnWeight > 0 && columnWeight != 1 )
+			{
+				final double norm = 1 / columnWeight;
+				for ( int k = columnStart[ numColumns - 1 ]; k < numOffsets; k++ )
+					weights[ k ] *= norm;
+			}
+			columnWeight = 0;
+		}
+
+		KymographMask build()
+		{
+			finishColumn();
+			final int[] cs = Arrays.copyOf( columnStart, numColumns + 1 );
+			cs[ numColumns ] = numOffsets;
+			final float[] w = weighted ? Arrays.copyOf( weights, numOffsets ) : null;
+			if ( aggregation.isLinear() )
+				return new KymographMask( width, height, cs, Arrays.copyOf( offsets, numOffsets ), w, samplingPositions );
+
+			final int[] css = Arrays.copyOf( columnSampleStart, numColumns + 1 );
+			css[ numColumns ] = numSamples;
+			final int[] ss = Arrays.copyOf( sampleStart, numSamples + 1 );
+			ss[ numSamples ] = numOffsets;
+			return new KymographMask( width, height, cs, Arrays.copyOf( offsets, numOffsets ), w, aggregation, ss, css, samplingPositions );
+		}
+
+		/**
+		 * Keys cubic convolution kernel, with <code>a = -0.5</code>.
+		 */
+		private static double cubicKernel( final double t )
+		{
+			final double at = Math.abs( t );
+			if ( at <= 1 )
+				return ( 1.5 * at - 2.5 ) * at * at + 1;
+			if ( at < 2 )
+				return ( ( -0.5 * at + 2.5 ) * at - 4 ) * at + 2;
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,499 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.tinevez.rieszwavelets.KymographSeparator;
+
+/**
+ * Multi-resolution pyramid of a kymograph, to view and process very long
+ * kymographs at a coarse resolution and only read the full resolution
+ * kymograph around a region of interest.
+ * <p>
+ * Level 0 is the kymograph itself, in memory or stored on disk in a
+ * {@link TiledKymograph}. Each level above averages pairs of rows of the
+ * level below, and pairs of columns as long as the level stays wider than
+ * {@link #MIN_WIDTH}. Levels are added until the coarsest one has at most
+ * {@link #MAX_COARSE_ROWS} rows. The pyramid of a tiled kymograph only stores
+ * the coarse levels that fit in a memory budget: level 0 and the levels
+ * below the first stored one are never held in memory.
+ * <p>
+ * The pyramid is built while the rows of the kymograph are extracted: rows
+ * are pushed in order with {@link #addRows(Object[], int, int, boolean)} and
+ * each of them is propagated through all the levels, so that the kymograph
+ * is read only once.
+ * <p>
+ * The coarse levels are stored as doubles. While their columns are halved,
+ * each level takes a quarter of the level below, so that they take about a
+ * third of the memory of the kymograph if it were stored as doubles: four
+ * thirds of a 16-bit kymograph. Levels narrower than <code>2 *</code>
+ * {@link #MIN_WIDTH} only halve their rows, so that a narrow kymograph gets
+ * coarse levels as large as itself stored as doubles: four times a 16-bit
+ * kymograph.
+ */
+public class KymographPyramid
+{
+
+	/**
+	 * Columns are not averaged any more below this width.
+	 */
+	public static final int MIN_WIDTH = 64;
+
+	/**
+	 * Maximal number of rows of the coarsest level.
+	 */
+	public static final int MAX_COARSE_ROWS = 512;
+
+	/**
+	 * Kymographs with fewer rows than this are displayed and processed
+	 * directly, without a pyramid.
+	 */
+	public static final int MIN_ROWS = 2048;
+
+	private final Sequence kymograph;
+
+	private final TiledKymograph tiledKymograph;
+
+	private final int sizeC;
+
+	private final int[] widths;
+
+	private final int[] heights;
+
+	private final int[] scalesX;
+
+	/**
+	 * Values of the levels above 0, indexed by level and channel,
+	 * <code>null</code> for the levels that are not stored.
+	 */
+	private final double[][][] levels;
+
+	/**
+	 * Number of rows written in each level.
+	 */
+	private final int[] numRows;
+
+	/**
+	 * Row of each level waiting for the next one to be averaged with, indexed
+	 * by level and channel, valid if {@link #hasPending} is set.
+	 */
+	private final double[][][] pending;
+
+	private final boolean[] hasPending;
+
+	private final double[][] input;
+
+	private int numInputRows = 0;
+
+	/**
+	 * Creates an empty pyramid for the specified kymograph. Its rows must
+	 * then be pushed with {@link #addRows(Object[], int, int, boolean)}.
+	 *
+	 * @param kymograph
+	 *            the full resolution kymograph, at level 0.
+	 */
+	public KymographPyramid( final Sequence kymograph )
+	{
+		this( kymograph, null, kymograph.getSizeX(), kymograph.getSizeY(), kymograph.getSizeC(), Long.MAX_VALUE );
+	}
+
+	/**
+	 * Creates an empty pyramid for a kymograph stored on disk. Its rows must
+	 * then be pushed with
+	 * {@link #addRows(Object[], int, int, int, boolean)}, as they are written
+	 * to the tiled kymograph.
+	 *
+	 * @param kymograph
+	 *            the full resolution kymograph, at level 0.
+	 * @param maxBytes
+	 *            the memory budget of the coarse levels, in bytes. The
+	 *            coarsest levels that fit in it are stored, and at least the
+	 *            coarsest one.
+	 */
+	public KymographPyramid( final TiledKymograph kymograph, final long maxBytes )
+	{
+		this( null, kymograph, kymograph.getWidth(), kymograph.getHeight(), kymograph.getSizeC(), maxBytes );
+	}
+
+	private KymographPyramid( final Sequence kymograph, final TiledKymograph tiledKymograph, final int width, final int height, final int sizeC, final long maxBytes )
+	{
+		this.kymograph = kymograph;
+		this.tiledKymograph = tiledKymograph;
+		this.sizeC = sizeC;
+
+		int numLevels = 1;
+		for ( int h = height; h > MAX_COARSE_ROWS; h = ( h + 1 ) / 2 )
+			numLevels++;
+		widths = new int[ numLevels ];
+		heights = new int[ numLevels ];
+		scalesX = new int[ numLevels ];
+		widths[ 0 ] = width;
+		heights[ 0 ] = height;
+		scalesX[ 0 ] = 1;
+		for ( int l = 1; l < numLevels; l++ )
+		{
+			final boolean halveX = widths[ l - 1 ] >= 2 * MIN_WIDTH;
+			widths[ l ] = halveX ? ( widths[ l - 1 ] + 1 ) / 2 : widths[ l - 1 ];
+			scalesX[ l ] = halveX ? 2 * scalesX[ l - 1 ] : scalesX[ l - 1 ];
+			heights[ l ] = ( heights[ l - 1 ] + 1 ) / 2;
+		}
+
+		levels = new double[ numLevels ][][];
+		pending = new double[ numLevels ][][];
+		hasPending = new boolean[ numLevels ];
+		numRows = new int[ numLevels ];
+		long bytes = 0;
+		for ( int l = numLevels - 1; l > 0; l-- )
+		{
+			bytes += 8l * sizeC * widths[ l ] * heights[ l ];
+			if ( bytes <= maxBytes || l == numLevels - 1 )
+				levels[ l ] = new double[ sizeC ][ widths[ l ] * heights[ l ] ];
+			pending[ l ] = new double[ sizeC ][ widths[ l ] ];
+		}
+		input = new double[ sizeC ][ width ];
+	}
+
+	/**
+	 * Builds the pyramid of a kymograph that is already extracted.
+	 */
+	public static KymographPyramid build( final Sequence kymograph )
+	{
+		final KymographPyramid pyramid = new KymographPyramid( kymograph );
+		final Object[] channels = new Object[ pyramid.sizeC ];
+		for ( int c = 0; c < channels.length; c++ )
+			channels[ c ] = kymograph.getDataXY( 0, 0, c );
+		pyramid.addRows( channels, 0, kymograph.getSizeY(), kymograph.isSignedDataType() );
+		pyramid.finish();
+		return pyramid;
+	}
+
+	/**
+	 * Propagates the rows <code>[rStart, rEnd)</code> of the kymograph to the
+	 * coarse levels. Rows must be added in order, starting at row 0.
+	 *
+	 * @param channels
+	 *            the primitive arrays of the channels of the kymograph.
+	 */
+	public void addRows( final Object[] channels, final int rStart, final int rEnd, final boolean signed )
+	{
+		addRows( channels, 0, rStart, rEnd, signed );
+	}
+
+	/**
+	 * Propagates the rows <code>[rStart, rEnd)</code> of the kymograph to the
+	 * coarse levels, from arrays that only hold some rows of the kymograph.
+	 * Rows must be added in order, starting at row 0.
+	 *
+	 * @param channels
+	 *            the primitive arrays of the channels, one row after the
+	 *            other.
+	 * @param firstRow
+	 *            the row of the kymograph at the start of the arrays.
+	 */
+	public void addRows( final Object[] channels, final int firstRow, final int rStart, final int rEnd, final boolean signed )
+	{
+		if ( rStart != numInputRows )
+			throw new IllegalArgumentException( "Expected row " + numInputRows + ", got row " + rStart );
+		final int width = widths[ 0 ];
+		for ( int r = rStart; r < rEnd; r++ )
+		{
+			for ( int c = 0; c < sizeC; c++ )
+				Array1DUtil.arrayToDoubleArray( channels[ c ], ( r - firstRow ) * width, input[ c ], 0, width, signed );
+			push( 1, input );
+		}
+		numInputRows = rEnd;
+	}
+
+	/**
+	 * Writes the last rows of the levels that have an odd number of rows.
+	 * Must be called once all the rows of the kymograph are added.
+	 */
+	public void finish()
+	{
+		for ( int l = 1; l < levels.length; l++ )
+		{
+			if ( hasPending[ l ] )
+			{
+				hasPending[ l ] = false;
+				write( l, pending[ l ] );
+			}
+		}
+	}
+
+	/**
+	 * Adds a row of level <code>level - 1</code> to the specified level.
+	 */
+	private void push( final int level, final double[][] row )
+	{
+		if ( level >= levels.length )
+			return;
+		final int width = widths[ level ];
+		final boolean halveX = scalesX[ level ] != scalesX[ level - 1 ];
+		final int srcWidth = widths[ level - 1 ];
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			final double[] src = row[ c ];
+			final double[] dst = pending[ level ][ c ];
+			for ( int x = 0; x < width; x++ )
+			{
+				final double v;
+				if ( !halveX )
+					v = src[ x ];
+				else if ( 2 * x + 1 < srcWidth )
+					v = 0.5 * ( src[ 2 * x ] + src[ 2 * x + 1 ] );
+				else
+					v = src[ 2 * x ];
+				dst[ x ] = hasPending[ level ] ? 0.5 * ( dst[ x ] + v ) : v;
+			}
+		}
+		if ( hasPending[ level ] )
+		{
+			hasPending[ level ] = false;
+			write( level, pending[ level ] );
+		}
+		else
+		{
+			hasPending[ level ] = true;
+		}
+	}
+
+	/**
+	 * Writes the next row of the specified level and propagates it.
+	 */
+	private void write( final int level, final double[][] row )
+	{
+		final int width = widths[ level ];
+		final int r = numRows[ level ]++;
+		if ( levels[ level ] != null )
+			for ( int c = 0; c < sizeC; c++ )
+				System.arraycopy( row[ c ], 0, levels[ level ][ c ], r * width, width );
+		push( level + 1, row );
+	}
+
+	public int getNumLevels()
+	{
+		return levels.length;
+	}
+
+	public int getWidth( final int level )
+	{
+		return widths[ level ];
+	}
+
+	public int getHeight( final int level )
+	{
+		return heights[ level ];
+	}
+
+	/**
+	 * Returns the number of columns of the kymograph averaged in each column
+	 * of the specified level.
+	 */
+	public int getScaleX( final int level )
+	{
+		return scalesX[ level ];
+	}
+
+	/**
+	 * Returns the number of rows of the kymograph averaged in each row of the
+	 * specified level.
+	 */
+	public int getScaleT( final int level )
+	{
+		return 1 << level;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified level can be read: level 0
+	 * and the coarse levels that are stored.
+	 */
+	public boolean isStored( final int level )
+	{
+		return level == 0 || levels[ level ] != null;
+	}
+
+	/**
+	 * Returns the finest level that has at most the specified number of rows
+	 * and is held in memory, or the coarsest level if there is none.
+	 */
+	public int getLevelForRows( final int maxRows )
+	{
+		for ( int l = ( kymograph == null ) ? 1 : 0; l < levels.length; l++ )
+			if ( heights[ l ] <= maxRows && isStored( l ) )
+				return l;
+		return levels.length - 1;
+	}
+
+	/**
+	 * Returns the kymograph at level 0, or <code>null</code> if it is stored
+	 * on disk.
+	 */
+	public Sequence getKymograph()
+	{
+		return kymograph;
+	}
+
+	/**
+	 * Returns the kymograph stored on disk at level 0, or <code>null</code>
+	 * if it is in memory.
+	 */
+	public TiledKymograph getTiledKymograph()
+	{
+		return tiledKymograph;
+	}
+
+	/**
+	 * Returns the specified level as a sequence, calibrated like the
+	 * kymograph. Level 0 of a kymograph stored on disk is not read whole:
+	 * use {@link #getRegion(int, Rectangle)} instead.
+	 */
+	public Sequence getLevel( final int level )
+	{
+		if ( level == 0 && kymograph != null )
+			return kymograph;
+		if ( level == 0 )
+			throw new IllegalArgumentException( "Level 0 of a kymograph stored on disk can only be read by regions." );
+		return getRegion( level, new Rectangle( 0, 0, widths[ 0 ], heights[ 0 ] ) );
+	}
+
+	/**
+	 * Returns a region of the specified level as a sequence, calibrated like
+	 * the kymograph. Only the rows of the kymograph in the region are read at
+	 * level 0, from disk for a tiled kymograph.
+	 *
+	 * @param level
+	 *            the level.
+	 * @param region
+	 *            the region, in columns and rows of the kymograph at level 0.
+	 *            It is enlarged to whole pixels of the level.
+	 */
+	public Sequence getRegion( final int level, final Rectangle region )
+	{
+		if ( !isStored( level ) )
+			throw new IllegalArgumentException( "Level " + level + " of the pyramid is not stored." );
+		if ( level == 0 && kymograph == null )
+		{
+			try
+			{
+				return tiledKymograph.getRegion( region );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+
+		final int scaleX = scalesX[ level ];
+		final int scaleT = getScaleT( level );
+		final int x0 = Math.max( 0, region.x / scaleX );
+		final int y0 = Math.max( 0, region.y / scaleT );
+		final int x1 = Math.min( widths[ level ], ( region.x + region.width + scaleX - 1 ) / scaleX );
+		final int y1 = Math.min( heights[ level ], ( region.y + region.height + scaleT - 1 ) / scaleT );
+		final int w = Math.max( 0, x1 - x0 );
+		final int h = Math.max( 0, y1 - y0 );
+
+		if ( level == 0 )
+		{
+			final Sequence sequence = crop( kymograph, new Rectangle( x0, y0, w, h ) );
+			sequence.setName( kymograph.getName() + "_level0" );
+			return sequence;
+		}
+
+		final double[][] values = new double[ sizeC ][ w * h ];
+		for ( int c = 0; c < sizeC; c++ )
+			for ( int y = 0; y < h; y++ )
+				System.arraycopy( levels[ level ][ c ], ( y0 + y ) * widths[ level ] + x0, values[ c ], y * w, w );
+
+		final Sequence sequence = new Sequence();
+		sequence.setImage( 0, 0, KymographSeparator.createImage( values, w, h, DataType.DOUBLE ) );
+		if ( kymograph != null )
+		{
+			sequence.setPixelSizeX( kymograph.getPixelSizeX() * scaleX );
+			sequence.setPixelSizeY( kymograph.getPixelSizeY() );
+			sequence.setTimeInterval( kymograph.getTimeInterval() * scaleT );
+			for ( int c = 0; c < sizeC; c++ )
+				sequence.setChannelName( c, kymograph.getChannelName( c ) );
+			sequence.setName( kymograph.getName() + "_level" + level );
+		}
+		else
+		{
+			sequence.setPixelSizeX( tiledKymograph.getPixelSizeX() * scaleX );
+			sequence.setPixelSizeY( tiledKymograph.getPixelSizeY() );
+			sequence.setTimeInterval( tiledKymograph.getTimeInterval() * scaleT );
+			sequence.setName( tiledKymograph.getName() + "_level" + level );
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns a region of a kymograph in memory as a new sequence, in the data
+	 * type of the kymograph and calibrated like it.
+	 *
+	 * @param region
+	 *            the region, clipped to the kymograph.
+	 */
+	public static Sequence crop( final Sequence kymograph, final Rectangle region )
+	{
+		final int width = kymograph.getSizeX();
+		final Rectangle r = region.intersection( new Rectangle( 0, 0, width, kymograph.getSizeY() ) );
+		if ( r.isEmpty() )
+			r.setSize( 0, 0 );
+		final IcyBufferedImage image = new IcyBufferedImage( r.width, r.height, kymograph.getSizeC(), kymograph.getDataType_() );
+		for ( int c = 0; c < kymograph.getSizeC(); c++ )
+		{
+			final Object src = kymograph.getDataXY( 0, 0, c );
+			final Object dst = image.getDataXY( c );
+			for ( int y = 0; y < r.height; y++ )
+				System.arraycopy( src, ( r.y + y ) * width + r.x, dst, y * r.width, r.width );
+		}
+
+		final Sequence sequence = new Sequence();
+		sequence.setImage( 0, 0, image );
+		sequence.setPixelSizeX( kymograph.getPixelSizeX() );
+		sequence.setPixelSizeY( kymograph.getPixelSizeY() );
+		sequence.setTimeInterval( kymograph.getTimeInterval() );
+		for ( int c = 0; c < kymograph.getSizeC(); c++ )
+			sequence.setChannelName( c, kymograph.getChannelName( c ) );
+		sequence.setName( kymograph.getName() );
+		return sequence;
+	}
+
+	/**
+	 * Returns the memory taken by the coarse levels that are stored, in bytes.
+	 */
+	public long getSize()
+	{
+		long size = 0;
+		for ( int l = 1; l < levels.length; l++ )
+			if ( levels[ l ] != null )
+				size += 8l * sizeC * widths[ l ] * heights[ l ];
+		return size;
+	}
+}
@@ -57,6 +57,7 @@ import icy.swimmingPool.SwimmingPoolListener;
 import plugins.fab.trackmanager.TrackGroup;
 import plugins.fab.trackmanager.TrackManager;
 import plugins.fab.trackmanager.TrackSegment;
+import plugins.kernel.roi.roi2d.ROI2DRectangle;
 import plugins.kernel.roi.roi2d.ROI2DShape;
 import plugins.nchenouard.spot.Detection;
 import plugins.tinevez.pathtracing.InteractiveMultipleDjikstraTracingESC;
@@ -94,6 +95,8 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 
 	JButton showButton;
 
+	JButton showRegionButton;
+
 	double alpha = 0.01;
 
 	public KymographTrackerPanel()
@@ -192,6 +195,18 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 		} );
 		c.gridy++;
 
+		showRegionButton = new JButton( "Show rectangles at full resolution" );
+		southPanel1.add( showRegionButton, c );
+		showRegionButton.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				showFullResolutionRegions();
+			}
+		} );
+		c.gridy++;
+
 		removeButton = new JButton( "Delete kymograph" );
 		southPanel1.add( removeButton, c );
 		removeButton.addActionListener( new ActionListener()
@@ -283,6 +298,8 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 			toShow.add( kymographTableModel.getResult( i ) );
 		for ( final KymographExtractionResult kymo : toShow )
 		{
+			if ( kymo.loadKymograph() == null )
+				continue;
 			if ( !Icy.getMainInterface().getSequences().contains( kymo.getKymograph() ) )
 				Icy.getMainInterface().addSequence( kymo.getKymograph() );
 			if ( kymo.getAnterogradeKymograph() != null )
@@ -299,6 +316,50 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 		}
 	}
 
+	/**
+	 * Shows the regions of the selected kymographs under their rectangle ROIs
+	 * at full resolution. Kymographs that do not fit in memory are shown at a
+	 * coarse level: they are only read at full resolution in these regions.
+	 */
+	void showFullResolutionRegions()
+	{
+		final int numSelectedRows = table.getSelectedRowCount();
+		if ( numSelectedRows < 1 )
+		{
+			JOptionPane.showMessageDialog( this,
+					"Please select some kymographs to process in the results table.",
+					"Warning",
+					JOptionPane.WARNING_MESSAGE );
+			return;
+		}
+		final int[] selectedRows = table.getSelectedRows();
+		final ArrayList< KymographExtractionResult > toShow = new ArrayList< KymographExtractionResult >();
+		for ( final int i : selectedRows )
+			toShow.add( kymographTableModel.getResult( i ) );
+		int numRegions = 0;
+		for ( final KymographExtractionResult kymo : toShow )
+		{
+			if ( kymo.getKymograph() == null )
+				continue;
+			for ( final ROI2D roi : kymo.getKymograph().getROI2Ds() )
+			{
+				if ( !( roi instanceof ROI2DRectangle ) )
+					continue;
+				final Sequence region = kymo.getFullResolutionRegion( roi.getBounds2D() );
+				if ( region == null )
+					continue;
+				region.setName( kymo.getKymograph().getName() + "_" + roi.getName() );
+				Icy.getMainInterface().addSequence( region );
+				numRegions++;
+			}
+		}
+		if ( numRegions == 0 )
+			JOptionPane.showMessageDialog( this,
+					"Please draw rectangle ROIs on the selected kymographs, around the regions to show.",
+					"Warning",
+					JOptionPane.WARNING_MESSAGE );
+	}
+
 	void initTracers()
 	{
 		final int numSelectedRows = table.getSelectedRowCount();
@@ -316,6 +377,8 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 			toConvert.add( kymographTableModel.getResult( i ) );
 		for ( final KymographExtractionResult kymo : toConvert )
 		{
+			if ( kymo.loadKymograph() == null )
+				continue;
 			if ( !Icy.getMainInterface().getSequences().contains( kymo.getKymograph() ) )
 				Icy.getMainInterface().addSequence( kymo.getKymograph() );
 			final InteractiveMultipleDjikstraTracingESC tracer = new InteractiveMultipleDjikstraTracingESC( kymo.getKymograph(), alpha, true );
@@ -443,33 +506,13 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 	private TrackSegment computeTrackFromKymograph( final KymographExtractionResult kymo, final ArrayList< double[] > positions )
 	{
 		final TrackSegment ts = new TrackSegment();
-		final ArrayList< double[] > samplingPositions = kymo.samplingPositions;
-		// resample 1D+T positions in the 2D+T space
+		// resample 1D+T positions in the 2D+T space, with the sampling
+		// positions of the row of each point for paths that move over time
 		for ( final double p[] : positions )
 		{
-			final double c = p[ 1 ]; // position on the path
-			// linear interpolation between sampling positions in 2D
-			final int c0 = ( int ) Math.floor( c );
-			final int c1 = ( int ) Math.ceil( c );
-			if ( c1 < samplingPositions.size() && c0 < samplingPositions.size() )
-			{
-				if ( c0 == c1 )
-				{
-					final double x = samplingPositions.get( c0 )[ 0 ];
-					final double y = samplingPositions.get( c0 )[ 1 ];
-					ts.addDetection( new Detection( x, y, 0, ( int ) Math.round( p[ 0 ] ) ) );
-				}
-				else
-				{
-					final double x0 = samplingPositions.get( c0 )[ 0 ];
-					final double y0 = samplingPositions.get( c0 )[ 1 ];
-					final double x1 = samplingPositions.get( c1 )[ 0 ];
-					final double y1 = samplingPositions.get( c1 )[ 1 ];
-					final double x = x0 + ( c - c0 ) * ( x1 - x0 );
-					final double y = y0 + ( c - c0 ) * ( y1 - y0 );
-					ts.addDetection( new Detection( x, y, 0, ( int ) Math.round( p[ 0 ] ) ) );
-				}
-			}
+			final double[] xy = kymo.getSamplingPosition( p[ 0 ], p[ 1 ] );
+			if ( xy != null )
+				ts.addDetection( new Detection( xy[ 0 ], xy[ 1 ], 0, kymo.rowToFrame( p[ 0 ] ) ) );
 		}
 		return ts;
 	}
@@ -623,6 +666,8 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 			toRemove.add( kymographTableModel.getResult( i ) );
 		for ( final KymographExtractionResult r : toRemove )
 		{
+			r.stopLiveUpdate();
+			r.closeTiledKymograph();
 			final ArrayList< SwimmingObject > swimmingOjects = Icy.getMainInterface().getSwimmingPool().getObjects( KymographExtractionResult.class );
 			for ( final SwimmingObject o : swimmingOjects )
 			{
@@ -759,7 +804,9 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 				line[ 0 ] = "null";
 			else
 				line[ 0 ] = result.roi.getName();
-			if ( result.getKymograph() == null )
+			if ( result.getKymograph() == null && result.getTiledKymograph() != null )
+				line[ 1 ] = result.getTiledKymograph().getName();
+			else if ( result.getKymograph() == null )
 				line[ 1 ] = "null";
 			else
 				line[ 1 ] = result.getKymograph().getName();
@@ -769,7 +816,7 @@ class KymographTrackerPanel extends ActionPanel implements SwimmingPoolListener,
 				line[ 1 ] = line[ 1 ].concat( "; " + result.getRetrogradeKymograph().getName() );
 			}
 			line[ 2 ] = String.valueOf( result.anterogradeRetrogradeSeparation );
-			line[ 3 ] = String.valueOf( result.getKymograph().getSizeX() );
+			line[ 3 ] = String.valueOf( result.getKymographWidth() );
 			if ( result.samplingPositions != null && !result.samplingPositions.isEmpty() )
 			{
 				line[ 4 ] = "{" + result.samplingPositions.get( 0 )[ 0 ] + ", " + result.samplingPositions.get( 0 )[ 1 ] + "}";
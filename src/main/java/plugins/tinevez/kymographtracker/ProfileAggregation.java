@@ -0,0 +1,51 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * How the samples taken across the path are combined into one kymograph
+ * column.
+ */
+public enum ProfileAggregation
+{
+	/** Mean of the samples. */
+	MEAN,
+	/**
+	 * Mean of the samples, weighted by a Gaussian of the distance to the path,
+	 * with a standard deviation of half the averaging radius.
+	 */
+	GAUSSIAN,
+	/** Maximum of the samples. */
+	MAX,
+	/** Median of the samples. */
+	MEDIAN;
+
+	/**
+	 * Returns <code>true</code> if the column is a linear combination of the
+	 * samples, and can be folded into the weights of the pixels.
+	 */
+	public boolean isLinear()
+	{
+		return this == MEAN || this == GAUSSIAN;
+	}
+}
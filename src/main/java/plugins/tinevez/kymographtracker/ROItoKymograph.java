@@ -22,22 +22,37 @@ package plugins.tinevez.kymographtracker;
  * #L%
  */
 
+import java.awt.Rectangle;
 import java.awt.geom.PathIterator;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import icy.common.exception.UnsupportedFormatException;
+import icy.file.Loader;
+import icy.file.SequenceFileImporter;
 import icy.gui.frame.progress.AnnounceFrame;
 import icy.gui.frame.progress.ProgressFrame;
 import icy.image.IcyBufferedImage;
 import icy.main.Icy;
 import icy.roi.ROI;
+import icy.sequence.MetaDataUtil;
 import icy.sequence.Sequence;
 import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import ome.xml.meta.OMEXMLMetadata;
 import plugins.kernel.roi.roi2d.ROI2DShape;
 import plugins.nchenouard.isotropicwavelets.IsotropicWaveletType;
 import plugins.tinevez.kymographtracker.spline.CubicSmoothingSpline;
+import plugins.tinevez.kymographtracker.spline.ParametricSmoothingSpline;
 import plugins.tinevez.rieszwavelets.HarmonicTypes;
 import plugins.tinevez.rieszwavelets.KymographSeparator;
-import plugins.tinevez.rieszwavelets.RieszConfig;
+import plugins.tinevez.rieszwavelets.RieszFilterBankCache;
 import plugins.tinevez.rieszwavelets.RieszGeneralization;
 import plugins.tinevez.rieszwavelets.RieszWaveletCoefficients;
 import plugins.tinevez.rieszwavelets.RieszWaveletConfig;
@@ -52,6 +67,104 @@ public class ROItoKymograph
 
 	double diskRadius = 2;
 
+	/**
+	 * Interpolation used to read the pixels sampled along splines.
+	 */
+	SamplingInterpolation interpolation = SamplingInterpolation.NEAREST;
+
+	/**
+	 * How the samples taken across the path are combined into one column.
+	 */
+	ProfileAggregation aggregation = ProfileAggregation.MEAN;
+
+	/**
+	 * Data type of the extracted kymographs. If <code>null</code>, the data
+	 * type of the source sequence is used.
+	 */
+	DataType outputDataType = DataType.DOUBLE;
+
+	/**
+	 * Number of consecutive frames combined into one kymograph row.
+	 */
+	int temporalBinning = 1;
+
+	/**
+	 * How the frames of a bin are combined.
+	 */
+	BinningMode binningMode = BinningMode.MEAN;
+
+	/**
+	 * How rows are normalized to compensate for photobleaching.
+	 */
+	BleachCorrection bleachCorrection = BleachCorrection.NONE;
+
+	/**
+	 * Number of rows of the sliding temporal median subtracted as background,
+	 * or 0 not to subtract any background.
+	 */
+	int backgroundWindow = 0;
+
+	/**
+	 * If <code>true</code>, closed ROIs are unwrapped over their whole
+	 * perimeter instead of being sampled along a spline through their points.
+	 */
+	boolean unwrapClosedContours = false;
+
+	/**
+	 * Margin around the bounding box of a path that defines its
+	 * neighbourhood for bleach correction, in pixels.
+	 */
+	static final int NEIGHBOURHOOD_MARGIN = 10;
+
+	/**
+	 * Number of rows extracted at once when the background is subtracted.
+	 */
+	static final int BACKGROUND_CHUNK = 256;
+
+	/**
+	 * Maximal difference between the weights of two columns of masks for them
+	 * to be considered identical when updating a kymograph.
+	 */
+	static final float COLUMN_TOLERANCE = 1e-4f;
+
+	/**
+	 * Maximal distance between curved segments of ROIs and the line segments
+	 * they are approximated with, in pixels.
+	 */
+	static final double CURVE_FLATNESS = 0.1;
+
+	/**
+	 * Number of points of a closed contour repeated before its start and
+	 * after its end to fit a periodic spline.
+	 */
+	static final int CLOSED_CONTOUR_PADDING = 8;
+
+	/**
+	 * Step of the translations applied to the sampling coordinates to
+	 * correct the drift, in pixels.
+	 */
+	static final double DRIFT_QUANTUM = 0.1;
+
+	/**
+	 * Maximal number of quantized translations whose masks are kept while
+	 * the kymographs of a drifting sequence are extracted.
+	 */
+	static final int MAX_DRIFT_MASKS = 64;
+
+	/**
+	 * Number of rows extracted at a time when the pyramids of the kymographs
+	 * are built in the same pass.
+	 */
+	private static final int PYRAMID_BAND_ROWS = 256;
+
+	/**
+	 * Number of threads used to extract kymographs. Frames are processed
+	 * serially if 1.
+	 */
+	int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private ForkJoinPool pool;
+
 	public ROItoKymograph()
 	{}
 
@@ -61,6 +174,208 @@ public class ROItoKymograph
 		this.resamplingStep = resamplingStep;
 	}
 
+	/**
+	 * Sets the number of threads used to extract kymographs. The time axis
+	 * is split across a fork/join pool of this size. Frames are processed
+	 * serially if 1.
+	 *
+	 * @param parallelism
+	 *            the number of threads, must be at least 1.
+	 */
+	public synchronized void setParallelism( final int parallelism )
+	{
+		if ( parallelism < 1 )
+			throw new IllegalArgumentException( "Parallelism must be at least 1, was " + parallelism );
+		if ( parallelism != this.parallelism && pool != null )
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Sets the interpolation used to read the source frames at the sub-pixel
+	 * positions sampled along splines. The interpolation weights are computed
+	 * once when the mask is compiled, so that a finer
+	 * <code>resamplingStep</code> only costs more taps per frame.
+	 */
+	public void setInterpolation( final SamplingInterpolation interpolation )
+	{
+		this.interpolation = interpolation;
+	}
+
+	public SamplingInterpolation getInterpolation()
+	{
+		return interpolation;
+	}
+
+	/**
+	 * Sets how the samples taken across the path are combined into one
+	 * kymograph column. The Gaussian weights are folded into the mask when it
+	 * is compiled, and the maximum and median are computed in preallocated
+	 * buffers, so that all the aggregations have a similar cost per frame.
+	 */
+	public void setAggregation( final ProfileAggregation aggregation )
+	{
+		this.aggregation = aggregation;
+	}
+
+	public ProfileAggregation getAggregation()
+	{
+		return aggregation;
+	}
+
+	/**
+	 * Sets the number of consecutive frames combined into one kymograph row.
+	 * Frames are combined while they are sampled, so that the kymograph at
+	 * full time resolution is never built. The time interval of the
+	 * kymographs is multiplied by the binning factor.
+	 *
+	 * @param factor
+	 *            the number of frames per row, must be at least 1.
+	 * @param mode
+	 *            how the frames of a row are combined.
+	 */
+	public void setTemporalBinning( final int factor, final BinningMode mode )
+	{
+		if ( factor < 1 )
+			throw new IllegalArgumentException( "Binning factor must be at least 1, was " + factor );
+		this.temporalBinning = factor;
+		this.binningMode = mode;
+	}
+
+	public int getTemporalBinning()
+	{
+		return temporalBinning;
+	}
+
+	public BinningMode getBinningMode()
+	{
+		return binningMode;
+	}
+
+	/**
+	 * Sets how rows are normalized to compensate for photobleaching. The
+	 * intensity of each frame is measured while it is sampled, so that the
+	 * correction needs no extra read of the movie. Rows are scaled so that
+	 * this intensity matches the one of the first frame.
+	 */
+	public void setBleachCorrection( final BleachCorrection bleachCorrection )
+	{
+		this.bleachCorrection = bleachCorrection;
+	}
+
+	public BleachCorrection getBleachCorrection()
+	{
+		return bleachCorrection;
+	}
+
+	/**
+	 * Sets the number of rows of the temporal median subtracted from each row
+	 * as background. The median of the <code>window</code> rows preceding
+	 * each row is maintained column by column while rows are extracted, in
+	 * order. As background-subtracted rows have negative values, kymographs
+	 * are then extracted as floats unless the output data type is a floating
+	 * point type.
+	 *
+	 * @param window
+	 *            the number of rows, at least 2, or 0 not to subtract any
+	 *            background.
+	 */
+	public void setBackgroundWindow( final int window )
+	{
+		if ( window < 0 || window == 1 )
+			throw new IllegalArgumentException( "Background window must be 0 or at least 2, was " + window );
+		this.backgroundWindow = window;
+	}
+
+	public int getBackgroundWindow()
+	{
+		return backgroundWindow;
+	}
+
+	/**
+	 * Sets whether closed ROIs, such as rings drawn with polygons or
+	 * ellipses, are unwrapped over their whole perimeter with
+	 * {@link #compileClosedContourMask(int, int, ROI2DShape)}. Otherwise, all
+	 * the ROIs are sampled along the smoothing spline fitted to their points,
+	 * which leaves the segment closing the contour out.
+	 */
+	public void setUnwrapClosedContours( final boolean unwrapClosedContours )
+	{
+		this.unwrapClosedContours = unwrapClosedContours;
+	}
+
+	public boolean isUnwrapClosedContours()
+	{
+		return unwrapClosedContours;
+	}
+
+	/**
+	 * Returns the number of rows of a kymograph extracted from the specified
+	 * number of frames.
+	 */
+	public int getNumRows( final int sizeT )
+	{
+		return ( sizeT + temporalBinning - 1 ) / temporalBinning;
+	}
+
+	/**
+	 * Returns the weight of a sample at the specified distance from the path.
+	 */
+	private double getSampleWeight( final double distance )
+	{
+		if ( aggregation != ProfileAggregation.GAUSSIAN )
+			return 1;
+		final double sigma = diskRadius / 2;
+		return Math.exp( -distance * distance / ( 2 * sigma * sigma ) );
+	}
+
+	/**
+	 * Sets the data type of the extracted kymographs. Columns are always
+	 * averaged in double precision, then rounded and clamped to the range of
+	 * integer data types.
+	 *
+	 * @param dataType
+	 *            the data type, or <code>null</code> to use the data type of
+	 *            the source sequence.
+	 * @see #setBackgroundWindow(int)
+	 */
+	public void setOutputDataType( final DataType dataType )
+	{
+		this.outputDataType = dataType;
+	}
+
+	public DataType getOutputDataType()
+	{
+		return outputDataType;
+	}
+
+	/**
+	 * Returns the data type of the kymographs extracted from a source of the
+	 * specified data type.
+	 */
+	DataType getOutputDataType( final DataType sourceType )
+	{
+		final DataType dataType = ( outputDataType == null ) ? sourceType : outputDataType;
+		if ( backgroundWindow > 0 && !dataType.isFloat() )
+			return DataType.FLOAT;
+		return dataType;
+	}
+
+	private synchronized ForkJoinPool getPool()
+	{
+		if ( pool == null )
+			pool = new ForkJoinPool( parallelism );
+		return pool;
+	}
+
 	public ArrayList< double[] > resamplePositions( final ArrayList< double[] > positions, final double step )
 	{
 		final ArrayList< double[] > resampledPositions = new ArrayList< double[] >();
@@ -111,31 +426,65 @@ public class ROItoKymograph
 			shiftX = -0.5d;
 			shiftY = -0.5d;
 		}
-		final PathIterator pathIterator = roi.getPathIterator( null );
-		final double[] coords = new double[ 6 ];
 		samplingPositions = new ArrayList< double[] >();
+		for ( final double[] p : getOutline( roi, unwrapClosedContours && isClosed( roi ) ) )
+			samplingPositions.add( new double[] { p[ 0 ] + shiftX, p[ 1 ] + shiftY } );
+		samplingPositions = resamplePositions( samplingPositions, resamplingStep );
+		return samplingPositions;
+	}
+
+	/**
+	 * Returns the vertices of the outline of a ROI. Curved segments are
+	 * flattened into line segments.
+	 *
+	 * @param closeContour
+	 *            if <code>true</code>, the first point of closed sub-paths is
+	 *            repeated at their end.
+	 */
+	static ArrayList< double[] > getOutline( final ROI2DShape roi, final boolean closeContour )
+	{
+		final PathIterator pathIterator = roi.getPathIterator( null, CURVE_FLATNESS );
+		final double[] coords = new double[ 6 ];
+		final ArrayList< double[] > outline = new ArrayList< double[] >();
+		double[] start = null;
 		while ( !pathIterator.isDone() )
 		{
 			final int segType = pathIterator.currentSegment( coords );
 			switch ( segType )
 			{
 			case PathIterator.SEG_CLOSE:
-				break;
-			case PathIterator.SEG_CUBICTO:
-				break;
-			case PathIterator.SEG_LINETO:
-				samplingPositions.add( new double[] { coords[ 0 ] + shiftX, coords[ 1 ] + shiftY } );
+				if ( closeContour && start != null )
+					outline.add( start.clone() );
 				break;
 			case PathIterator.SEG_MOVETO:
-				samplingPositions.add( new double[] { coords[ 0 ] + shiftX, coords[ 1 ] + shiftY } );
+				start = new double[] { coords[ 0 ], coords[ 1 ] };
+				outline.add( start.clone() );
 				break;
-			case PathIterator.SEG_QUADTO:
+			default:
+				// Only lines are left in flattened paths.
+				outline.add( new double[] { coords[ 0 ], coords[ 1 ] } );
 				break;
 			}
 			pathIterator.next();
 		}
-		samplingPositions = resamplePositions( samplingPositions, resamplingStep );
-		return samplingPositions;
+		return outline;
+	}
+
+	/**
+	 * Returns <code>true</code> if the outline of the specified ROI is
+	 * closed, like polygons, ellipses and rectangles.
+	 */
+	public static boolean isClosed( final ROI2DShape roi )
+	{
+		final PathIterator pathIterator = roi.getPathIterator( null, CURVE_FLATNESS );
+		final double[] coords = new double[ 6 ];
+		while ( !pathIterator.isDone() )
+		{
+			if ( pathIterator.currentSegment( coords ) == PathIterator.SEG_CLOSE )
+				return true;
+			pathIterator.next();
+		}
+		return false;
 	}
 
 	public Sequence[] separateKymograph( final Sequence kymographSeq )
@@ -145,7 +494,6 @@ public class ROItoKymograph
 		// compute the Simoncelli's wavelet representation of the sequence
 		final int height = kymographSeq.getSizeY();
 		final int width = kymographSeq.getSizeX();
-		final boolean isRealImage = true;
 		// Wavelets
 		final int numScales = 4;
 		final boolean prefilter = false;
@@ -153,34 +501,28 @@ public class ROItoKymograph
 		// Riesz transform
 		final int order = 6;
 		final HarmonicTypes harmonicType = HarmonicTypes.even;
-		final boolean prepareRieszFilters = true;
+		final StandardRieszFrames frameType = StandardRieszFrames.Simoncelli;
 
-		final RieszWaveletConfig config = new RieszWaveletConfig(
+		// the filter bank is shared by all the images of the same size
+		final RieszFilterBankCache.FilterBank filterBank = RieszFilterBankCache.getInstance().get(
 				width, height,
-				isRealImage,
 				numScales,
 				waveletType,
 				prefilter,
-				prepareRieszFilters,
 				order,
 				harmonicType,
+				frameType,
 				false );
-		final ArrayList< RieszConfig > rieszConfigList = config.getRieszConfigurations();
-
-		// compute generalization
-		final ArrayList< RieszGeneralization > generalizationList = new ArrayList< RieszGeneralization >();
-		for ( int i = 0; i < numScales; i++ )
-		{
-			final RieszGeneralization rieszGeneralization = new RieszGeneralization(
-					StandardRieszFrames.Simoncelli, rieszConfigList.get( i ) );
-			generalizationList.add( rieszGeneralization );
-		}
+		final RieszWaveletConfig config = filterBank.getConfig();
+		final ArrayList< RieszGeneralization > generalizationList = filterBank.getGeneralizations();
 
-		// apply the riesz transforms to the wavelet scales
+		// apply the riesz transforms to the wavelet scales, processing the
+		// scales and their bands on the extraction pool
+		final ForkJoinPool rieszPool = ( parallelism > 1 ) ? getPool() : null;
 		final double[] image = kymographSeq.getDataXYAsDouble( 0, 0, 0 );
 		final RieszWaveletCoefficients anteroCoefficients = config.multiscaleRieszAnalysisInFourier(
 				image, width, height,
-				generalizationList );
+				generalizationList, rieszPool );
 
 		final ArrayList< double[][] > retroBands = new ArrayList< double[][] >( anteroCoefficients.getNumScales() );
 		for ( int i = 0; i < anteroCoefficients.getNumScales(); i++ )
@@ -217,7 +559,7 @@ public class ROItoKymograph
 
 		// reconstruct image from coefficients
 		final Sequence retroSeq = new Sequence();
-		final double[] reconstructedImage = config.multiscaleRieszSynthesisInFourier( retroCoefficients, width, height );
+		final double[] reconstructedImage = config.multiscaleRieszSynthesisInFourier( retroCoefficients, width, height, rieszPool );
 		retroSeq.addImage( 0, new IcyBufferedImage( width, height, reconstructedImage ) );
 
 		for ( int i = 0; i < anteroCoefficients.getNumScales(); i++ )
@@ -232,7 +574,7 @@ public class ROItoKymograph
 		for ( int k = 0; k < anteroLPresidual.length; k++ )
 			anteroLPresidual[ k ] /= 2;
 		final Sequence anteroSeq = new Sequence();
-		final double[] reconstructedImage2 = config.multiscaleRieszSynthesisInFourier( anteroCoefficients, width, height );
+		final double[] reconstructedImage2 = config.multiscaleRieszSynthesisInFourier( anteroCoefficients, width, height, rieszPool );
 		anteroSeq.addImage( 0, new IcyBufferedImage( width, height, reconstructedImage2 ) );
 
 		return new Sequence[] { kymographSeq, anteroSeq, retroSeq };
@@ -252,138 +594,1220 @@ public class ROItoKymograph
 
 	ArrayList< double[] > samplingPositions;
 
-	public Sequence getKymographSequence( final Sequence sequence, final double length, final CubicSmoothingSpline xSpline, final CubicSmoothingSpline ySpline )
+	/**
+	 * Compiles the sampling mask of a kymograph extracted along a smoothing
+	 * spline. Each column aggregates the samples found on the line orthogonal
+	 * to the spline, within <code>diskRadius</code> of it, read with the
+	 * current interpolation.
+	 */
+	public KymographMask compileSplineMask( final int width, final int height, final double length, final CubicSmoothingSpline xSpline, final CubicSmoothingSpline ySpline )
 	{
-		final ArrayList< ArrayList< int[] > > masks = new ArrayList< ArrayList< int[] > >();
-		samplingPositions = new ArrayList< double[] >();
-		// ArrayList<double[]> samplingPositions = new ArrayList<double[]>();
-		// ArrayList<double[]> orthogonalVectors = new ArrayList<double[]>();
+		return compileProfileMask( width, height, getSplineColumns( length, xSpline, ySpline ) );
+	}
+
+	/**
+	 * Returns the columns sampled along a spline, from 0 to
+	 * <code>length</code>, as <code>{x, y, ux, uy}</code> where
+	 * <code>(ux, uy)</code> is the unit normal to the spline.
+	 */
+	private double[][] getSplineColumns( final double length, final CubicSmoothingSpline xSpline, final CubicSmoothingSpline ySpline )
+	{
+		int n = 0;
+		for ( double l = 0; l < length; l += resamplingStep )
+			n++;
+		final double[] abscissae = new double[ n ];
 		double l = 0;
-		while ( l < length )
-		{
-			// samplingPositions.add(new double[]{xSpline.evaluate(l),
-			// ySpline.evaluate(l)});
-			// orthogonalVectors.add(new double[]{ySpline.derivative(l),
-			// -xSpline.derivative(l)});
-			final ArrayList< int[] > mask = new ArrayList< int[] >();
-			final double x = xSpline.evaluate( l );
-			final double y = ySpline.evaluate( l );
-			samplingPositions.add( new double[] { x, y } );
-			final double dx = xSpline.derivative( l );
-			final double dy = ySpline.derivative( l );
-			final double ux = dy / Math.sqrt( dx * dx + dy * dy );
-			final double uy = -dx / Math.sqrt( dx * dx + dy * dy );
-			double tt = -diskRadius;
-			while ( tt <= diskRadius )
-			{
-				final int xx = ( int ) Math.round( x + tt * ux );
-				final int yy = ( int ) Math.round( y + tt * uy );
-				if ( xx >= 0 && xx < sequence.getSizeX() && yy >= 0 && yy < sequence.getSizeY() )
-				{
-					mask.add( new int[] { xx, yy } );
-				}
-				tt += 1d;
-			}
-			masks.add( mask );
+		for ( int j = 0; j < n; j++ )
+		{
+			abscissae[ j ] = l;
 			l += resamplingStep;
 		}
-		final Sequence kymographSeq = new Sequence();
-		kymographSeq.setImage( 0, 0, new IcyBufferedImage( masks.size(), sequence.getSizeT(), 1, DataType.DOUBLE ) );
-		final double[] tabValues = kymographSeq.getImage( 0, 0, 0 ).getDataXYAsDouble( 0 );
-		for ( int t = 0; t < sequence.getSizeT(); t++ )
+
+		// Both splines are evaluated in one sweep along the path.
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final double[] dxs = new double[ n ];
+		final double[] dys = new double[ n ];
+		xSpline.evaluate( abscissae, xs, dxs );
+		ySpline.evaluate( abscissae, ys, dys );
+		final double[][] columns = new double[ n ][];
+		for ( int j = 0; j < n; j++ )
+		{
+			final double norm = Math.sqrt( dxs[ j ] * dxs[ j ] + dys[ j ] * dys[ j ] );
+			columns[ j ] = new double[] { xs[ j ], ys[ j ], dys[ j ] / norm, -dxs[ j ] / norm };
+		}
+		return columns;
+	}
+
+	/**
+	 * Returns the columns of the kymograph extracted along a ROI, as
+	 * <code>{x, y, ux, uy}</code>, sampled along a smoothing spline. Closed
+	 * contours are unwrapped over their whole perimeter if
+	 * {@link #setUnwrapClosedContours(boolean)} is set.
+	 */
+	public double[][] getColumns( final ROI2DShape roi )
+	{
+		if ( unwrapClosedContours && isClosed( roi ) )
+		{
+			final double[][] columns = getClosedContourColumns( roi );
+			if ( columns != null )
+				return columns;
+		}
+		final ParametricSmoothingSpline spline = Util.getSplineFromROI( roi );
+		return getSplineColumns( spline.getLength(), spline.getXSpline(), spline.getYSpline() );
+	}
+
+	/**
+	 * Adds the samples of the profile of half-width <code>diskRadius</code>
+	 * centered on a position, along the specified unit direction.
+	 */
+	private void addProfile( final KymographMask.Builder builder, final double x, final double y, final double ux, final double uy )
+	{
+		double tt = -diskRadius;
+		while ( tt <= diskRadius )
+		{
+			builder.addSample( x + tt * ux, y + tt * uy, getSampleWeight( tt ) );
+			tt += 1d;
+		}
+	}
+
+	/**
+	 * Compiles the sampling mask of a kymograph that unwraps a closed
+	 * contour, such as a ring drawn with a polygon or an ellipse ROI. The
+	 * contour is fitted with a periodic smoothing spline, approximated by
+	 * repeating {@link #CLOSED_CONTOUR_PADDING} points of the contour before
+	 * its start and after its end, so that the kymograph has no seam where
+	 * the contour closes. Columns are sampled over one perimeter, starting
+	 * at the first point of the contour.
+	 */
+	public KymographMask compileClosedContourMask( final int width, final int height, final ROI2DShape roi )
+	{
+		final double[][] columns = getClosedContourColumns( roi );
+		if ( columns == null )
+			return compileSplineMask( width, height, roi );
+		return compileProfileMask( width, height, columns );
+	}
+
+	/**
+	 * Returns the columns of a closed contour, or <code>null</code> if it has
+	 * fewer than 3 distinct vertices.
+	 */
+	private double[][] getClosedContourColumns( final ROI2DShape roi )
+	{
+		// Vertices of the contour, without repeated points.
+		final ArrayList< double[] > points = new ArrayList< double[] >();
+		for ( final double[] p : getOutline( roi, false ) )
+		{
+			final double[] last = points.isEmpty() ? null : points.get( points.size() - 1 );
+			if ( last == null || last[ 0 ] != p[ 0 ] || last[ 1 ] != p[ 1 ] )
+				points.add( p );
+		}
+		while ( points.size() > 1 && Arrays.equals( points.get( 0 ), points.get( points.size() - 1 ) ) )
+			points.remove( points.size() - 1 );
+		final int n = points.size();
+		if ( n < 3 )
+			return null;
+
+		final double[] arcLength = new double[ n ];
+		for ( int i = 1; i < n; i++ )
+			arcLength[ i ] = arcLength[ i - 1 ] + distance( points.get( i - 1 ), points.get( i ) );
+		final double perimeter = arcLength[ n - 1 ] + distance( points.get( n - 1 ), points.get( 0 ) );
+
+		final int pad = Math.min( n, CLOSED_CONTOUR_PADDING );
+		final double[] tTab = new double[ n + 2 * pad ];
+		final double[] xTab = new double[ tTab.length ];
+		final double[] yTab = new double[ tTab.length ];
+		final double[] wTab = new double[ tTab.length ];
+		for ( int k = -pad; k < n + pad; k++ )
 		{
-			// for (double[] p:positions)
-			int cnt = 0;
-			for ( final ArrayList< int[] > mask : masks )
+			final int i = Math.floorMod( k, n );
+			tTab[ k + pad ] = arcLength[ i ] + Math.floorDiv( k, n ) * perimeter;
+			xTab[ k + pad ] = points.get( i )[ 0 ];
+			yTab[ k + pad ] = points.get( i )[ 1 ];
+			wTab[ k + pad ] = 1d;
+		}
+		final double rho = 0.5d;
+		final CubicSmoothingSpline[] splines = CubicSmoothingSpline.createSplines( tTab, new double[][] { xTab, yTab }, wTab, rho );
+		return getSplineColumns( perimeter, splines[ 0 ], splines[ 1 ] );
+	}
+
+	/**
+	 * Compiles the sampling mask of a kymograph whose columns are given
+	 * explicitly, each column sampling a profile of half-width
+	 * <code>diskRadius</code> along a unit direction.
+	 *
+	 * @param columns
+	 *            the columns, as <code>{x, y, ux, uy}</code>.
+	 */
+	KymographMask compileProfileMask( final int width, final int height, final double[][] columns )
+	{
+		final KymographMask.Builder builder = new KymographMask.Builder( width, height, interpolation, aggregation );
+		for ( final double[] c : columns )
+		{
+			builder.startColumn( c[ 0 ], c[ 1 ] );
+			addProfile( builder, c[ 0 ], c[ 1 ], c[ 2 ], c[ 3 ] );
+		}
+		return builder.build();
+	}
+
+	private static double distance( final double[] p1, final double[] p2 )
+	{
+		return Math.sqrt( ( p1[ 0 ] - p2[ 0 ] ) * ( p1[ 0 ] - p2[ 0 ] ) + ( p1[ 1 ] - p2[ 1 ] ) * ( p1[ 1 ] - p2[ 1 ] ) );
+	}
+
+	/**
+	 * Compiles the sampling masks of a radial fan of kymographs: one
+	 * kymograph per ray, sampled every <code>resamplingStep</code> from the
+	 * center to <code>radius</code>, each column averaging a profile of
+	 * half-width <code>diskRadius</code> across the ray. The directions of
+	 * the rays and of their profiles are read from a polar lookup table
+	 * computed once for all the rays. The masks can be extracted in a single
+	 * pass with {@link #getKymographSequences(Sequence, KymographMask[])}.
+	 *
+	 * @param cx
+	 *            the x coordinate of the center.
+	 * @param cy
+	 *            the y coordinate of the center.
+	 * @param radius
+	 *            the length of the rays.
+	 * @param numRays
+	 *            the number of rays, evenly spread around the center,
+	 *            starting along the x axis.
+	 * @return one mask per ray.
+	 */
+	public KymographMask[] compileRadialMasks( final int width, final int height, final double cx, final double cy, final double radius, final int numRays )
+	{
+		if ( numRays < 1 )
+			throw new IllegalArgumentException( "At least one ray is needed, was " + numRays );
+		final double[][] polarTable = getPolarTable( numRays );
+		final double[] cos = polarTable[ 0 ];
+		final double[] sin = polarTable[ 1 ];
+		final KymographMask[] masks = new KymographMask[ numRays ];
+		for ( int k = 0; k < numRays; k++ )
+		{
+			final KymographMask.Builder builder = new KymographMask.Builder( width, height, interpolation, aggregation );
+			double r = 0;
+			while ( r <= radius )
 			{
-				// tabValues[cnt + t*kymographSeq.getSizeX()] =
-				// sequence.getData(t, 0, 0, (int)Math.round(p[1]),
-				// (int)Math.round(p[0]));
-				double sum = 0;
-				for ( final int[] m : mask )
-					sum += sequence.getData( t, 0, 0, m[ 1 ], m[ 0 ] );
-				if ( mask.size() > 1 )
-					sum = sum / mask.size();
-				tabValues[ cnt + t * kymographSeq.getSizeX() ] = sum;
-				cnt++;
+				final double x = cx + r * cos[ k ];
+				final double y = cy + r * sin[ k ];
+				builder.startColumn( x, y );
+				addProfile( builder, x, y, -sin[ k ], cos[ k ] );
+				r += resamplingStep;
 			}
+			masks[ k ] = builder.build();
 		}
+		return masks;
+	}
 
-		// Set metadata.
-		kymographSeq.setPixelSizeX( sequence.getPixelSizeX() );
-		kymographSeq.setPixelSizeY( sequence.getPixelSizeY() );
-		kymographSeq.setTimeInterval( sequence.getTimeInterval() );
-
-		kymographSeq.dataChanged();
-		return kymographSeq;
+	/**
+	 * Returns the cosines and sines of <code>numRays</code> angles evenly
+	 * spread over a turn.
+	 */
+	private static double[][] getPolarTable( final int numRays )
+	{
+		final double[][] table = new double[ 2 ][ numRays ];
+		for ( int k = 0; k < numRays; k++ )
+		{
+			final double angle = 2 * Math.PI * k / numRays;
+			table[ 0 ][ k ] = Math.cos( angle );
+			table[ 1 ][ k ] = Math.sin( angle );
+		}
+		return table;
 	}
 
-	public Sequence getKymographSequenceFromDisks( final Sequence sequence, final ArrayList< double[] > samplingPositions )
+	/**
+	 * Compiles the sampling mask of a kymograph where each column averages the
+	 * pixels found in a disk of radius <code>diskRadius</code> centered on a
+	 * sampling position.
+	 */
+	public KymographMask compileDiskMask( final int width, final int height, final ArrayList< double[] > samplingPositions )
 	{
-		// for each position create a binary disk to average in
-		final ArrayList< ArrayList< int[] > > masks = new ArrayList< ArrayList< int[] > >();
+		final KymographMask.Builder builder = new KymographMask.Builder( width, height, SamplingInterpolation.NEAREST, aggregation );
 		for ( final double[] p : samplingPositions )
 		{
-			int minX = ( int ) Math.floor( p[ 0 ] - diskRadius );
-			if ( minX < 0 )
-				minX = 0;
-			if ( minX > sequence.getSizeX() )
-				minX = sequence.getSizeX() - 1;
-			int maxX = ( int ) Math.ceil( p[ 0 ] + diskRadius );
-			if ( maxX < 0 )
-				maxX = 0;
-			if ( maxX >= sequence.getSizeX() )
-				maxX = sequence.getSizeX() - 1;
-			int minY = ( int ) Math.floor( p[ 1 ] - diskRadius );
-			if ( minY < 0 )
-				minY = 0;
-			if ( minY > sequence.getSizeY() )
-				minY = sequence.getSizeY() - 1;
-			int maxY = ( int ) Math.ceil( p[ 1 ] + diskRadius );
-			if ( maxY < 0 )
-				maxY = 0;
-			if ( maxY >= sequence.getSizeY() )
-				maxY = sequence.getSizeY() - 1;
-			final ArrayList< int[] > mask = new ArrayList< int[] >();
+			builder.startColumn( p[ 0 ], p[ 1 ] );
+			final int minX = Math.max( 0, ( int ) Math.floor( p[ 0 ] - diskRadius ) );
+			final int maxX = Math.min( width - 1, ( int ) Math.ceil( p[ 0 ] + diskRadius ) );
+			final int minY = Math.max( 0, ( int ) Math.floor( p[ 1 ] - diskRadius ) );
+			final int maxY = Math.min( height - 1, ( int ) Math.ceil( p[ 1 ] + diskRadius ) );
 			for ( int y = minY; y <= maxY; y++ )
 				for ( int x = minX; x <= maxX; x++ )
 				{
-					if ( ( p[ 0 ] - x ) * ( p[ 0 ] - x ) + ( p[ 1 ] - y ) * ( p[ 1 ] - y ) <= diskRadius * diskRadius )
-						mask.add( new int[] { x, y } );
+					final double d2 = ( p[ 0 ] - x ) * ( p[ 0 ] - x ) + ( p[ 1 ] - y ) * ( p[ 1 ] - y );
+					if ( d2 <= diskRadius * diskRadius )
+						builder.add( x, y, getSampleWeight( Math.sqrt( d2 ) ) );
 				}
-			masks.add( mask );
 		}
+		return builder.build();
+	}
+
+	public Sequence getKymographSequence( final Sequence sequence, final double length, final CubicSmoothingSpline xSpline, final CubicSmoothingSpline ySpline )
+	{
+		final KymographMask mask = compileSplineMask( sequence.getSizeX(), sequence.getSizeY(), length, xSpline, ySpline );
+		samplingPositions = mask.getSamplingPositions();
+		return getKymographSequence( sequence, mask );
+	}
+
+	public Sequence getKymographSequenceFromDisks( final Sequence sequence, final ArrayList< double[] > samplingPositions )
+	{
+		final KymographMask mask = compileDiskMask( sequence.getSizeX(), sequence.getSizeY(), samplingPositions );
+		return getKymographSequence( sequence, mask );
+	}
+
+	/**
+	 * Compiles the sampling mask of a kymograph extracted along the smoothing
+	 * spline fitted to the points of a ROI.
+	 */
+	public KymographMask compileSplineMask( final int width, final int height, final ROI2DShape roi )
+	{
+		final ParametricSmoothingSpline spline = Util.getSplineFromROI( roi );
+		return compileSplineMask( width, height, spline.getLength(), spline.getXSpline(), spline.getYSpline() );
+	}
+
+	/**
+	 * Compiles the sampling mask of a kymograph extracted along a ROI, sampled
+	 * along a smoothing spline. Closed contours are unwrapped over their
+	 * whole perimeter if {@link #setUnwrapClosedContours(boolean)} is set.
+	 */
+	public KymographMask compileMask( final int width, final int height, final ROI2DShape roi )
+	{
+		return compileProfileMask( width, height, getColumns( roi ) );
+	}
+
+	/**
+	 * Extracts a kymograph by applying a compiled mask to each frame of the
+	 * specified sequence. The kymograph has as many channels as the
+	 * sequence.
+	 */
+	public Sequence getKymographSequence( final Sequence sequence, final KymographMask mask )
+	{
+		return getKymographSequences( sequence, new KymographMask[] { mask } )[ 0 ];
+	}
+
+	/**
+	 * Extracts a kymograph along a path that moves over time. Each row is
+	 * sampled with the mask of its frame, or of the center frame of its bin
+	 * when frames are binned. Consecutive rows that share a mask are
+	 * extracted together, in parallel, like for a static path.
+	 */
+	public Sequence getKymographSequence( final Sequence sequence, final KeyframedPath path )
+	{
+		return getKymographSequence( sequence, path, null );
+	}
+
+	/**
+	 * Extracts a kymograph along a path that moves over time, and returns the
+	 * positions each row was sampled at.
+	 *
+	 * @param rowSamplingPositions
+	 *            a list filled with the sampling positions of each row of the
+	 *            kymograph. Rows sampled with the same mask share the same
+	 *            list. If <code>null</code>, positions are not returned.
+	 * @see #getKymographSequence(Sequence, KeyframedPath)
+	 */
+	public Sequence getKymographSequence( final Sequence sequence, final KeyframedPath path, final ArrayList< ArrayList< double[] > > rowSamplingPositions )
+	{
+		final DataType dataType = getOutputDataType( sequence.getDataType_() );
+		final int sizeT = sequence.getSizeT();
+		final int sizeC = sequence.getSizeC();
+		final int numRows = getNumRows( sizeT );
 		final Sequence kymographSeq = new Sequence();
-		kymographSeq.setImage( 0, 0, new IcyBufferedImage( samplingPositions.size(), sequence.getSizeT(), 1, DataType.DOUBLE ) );
-		final double[] tabValues = kymographSeq.getImage( 0, 0, 0 ).getDataXYAsDouble( 0 );
-		for ( int t = 0; t < sequence.getSizeT(); t++ )
+		kymographSeq.setImage( 0, 0, new IcyBufferedImage( path.getNumColumns(), numRows, sizeC, dataType ) );
+		final Object[][] tabValues = new Object[ 1 ][ sizeC ];
+		for ( int c = 0; c < sizeC; c++ )
+			tabValues[ 0 ][ c ] = kymographSeq.getImage( 0, 0 ).getDataXY( c );
+
+		// Frames are referenced, not copied.
+		final Object[][] frames = new Object[ sizeT ][ sizeC ];
+		for ( int t = 0; t < sizeT; t++ )
+			for ( int c = 0; c < sizeC; c++ )
+				frames[ t ][ c ] = sequence.getDataXY( t, 0, c );
+		final RowCorrections corrections = createCorrections( 1 );
+		int rStart = 0;
+		KymographMask mask = null;
+		for ( int r = 0; r <= numRows; r++ )
 		{
-			// for (double[] p:positions)
-			int cnt = 0;
-			for ( final ArrayList< int[] > mask : masks )
+			final KymographMask rowMask = ( r < numRows ) ? path.getMask( Math.min( sizeT - 1, r * temporalBinning + temporalBinning / 2 ) ) : null;
+			if ( rowMask != null && rowSamplingPositions != null )
+				rowSamplingPositions.add( rowMask.getSamplingPositions() );
+			if ( rowMask != mask )
 			{
-				// tabValues[cnt + t*kymographSeq.getSizeX()] =
-				// sequence.getData(t, 0, 0, (int)Math.round(p[1]),
-				// (int)Math.round(p[0]));
-				double sum = 0;
-				for ( final int[] m : mask )
-					sum += sequence.getData( t, 0, 0, m[ 1 ], m[ 0 ] );
-				if ( mask.size() > 1 )
-					sum = sum / mask.size();
-				tabValues[ cnt + t * kymographSeq.getSizeX() ] = sum;
-				cnt++;
+				if ( mask != null )
+					extractRows( frames, 0, sequence.isSignedDataType(), new KymographMask[] { mask }, tabValues, dataType, rStart, r, sizeT, corrections );
+				mask = rowMask;
+				rStart = r;
 			}
 		}
 
 		// Set metadata.
 		kymographSeq.setPixelSizeX( sequence.getPixelSizeX() );
 		kymographSeq.setPixelSizeY( sequence.getPixelSizeY() );
-		kymographSeq.setTimeInterval( sequence.getTimeInterval() );
-
+		kymographSeq.setTimeInterval( sequence.getTimeInterval() * temporalBinning );
+		for ( int c = 0; c < sizeC; c++ )
+			kymographSeq.setChannelName( c, sequence.getChannelName( c ) );
 		kymographSeq.dataChanged();
 		return kymographSeq;
 	}
 
+	/**
+	 * Extracts several kymographs in a single pass over a sequence that
+	 * drifts, shifting the sampling coordinates of each frame by its
+	 * estimated translation instead of registering the movie. Translations
+	 * are quantized to {@link #DRIFT_QUANTUM} pixels. The masks of a
+	 * quantized translation are compiled by the first task that extracts a
+	 * row with it, and the masks of the last {@link #MAX_DRIFT_MASKS}
+	 * translations used are kept, so that all the rows are extracted in
+	 * parallel with a bounded memory whatever the drift. When frames are
+	 * binned, each row is sampled with the translation of the center frame
+	 * of its bin.
+	 *
+	 * @param rois
+	 *            the ROIs, drawn on the first frame.
+	 * @param drift
+	 *            the translations of each frame, as <code>{dx, dy}</code>, for
+	 *            instance estimated with a {@link DriftEstimator}.
+	 * @return one kymograph per ROI, in the same order.
+	 */
+	public Sequence[] getKymographSequences( final Sequence sequence, final ROI2DShape[] rois, final double[][] drift )
+	{
+		final DataType dataType = getOutputDataType( sequence.getDataType_() );
+		final int sizeX = sequence.getSizeX();
+		final int sizeY = sequence.getSizeY();
+		final int sizeT = sequence.getSizeT();
+		final int sizeC = sequence.getSizeC();
+		final int numRows = getNumRows( sizeT );
+		final double[][][] columns = new double[ rois.length ][][];
+		final Sequence[] kymographSeqs = new Sequence[ rois.length ];
+		final Object[][] tabValues = new Object[ rois.length ][ sizeC ];
+		for ( int i = 0; i < rois.length; i++ )
+		{
+			columns[ i ] = getColumns( rois[ i ] );
+			kymographSeqs[ i ] = new Sequence();
+			kymographSeqs[ i ].setImage( 0, 0, new IcyBufferedImage( columns[ i ].length, numRows, sizeC, dataType ) );
+			for ( int c = 0; c < sizeC; c++ )
+				tabValues[ i ][ c ] = kymographSeqs[ i ].getImage( 0, 0 ).getDataXY( c );
+		}
+
+		// Frames are referenced, not copied.
+		final Object[][] frames = new Object[ sizeT ][ sizeC ];
+		for ( int t = 0; t < sizeT; t++ )
+			for ( int c = 0; c < sizeC; c++ )
+				frames[ t ][ c ] = sequence.getDataXY( t, 0, c );
+		if ( numRows > 0 )
+		{
+			final DriftMasks rowMasks = new DriftMasks( sizeX, sizeY, columns, getRowTranslations( drift ) );
+			extractRows( frames, 0, sequence.isSignedDataType(), rowMasks.get( 0 ), rowMasks, tabValues, dataType, 0, numRows, sizeT, createCorrections( rois.length ) );
+		}
+
+		for ( final Sequence kymographSeq : kymographSeqs )
+		{
+			// Set metadata.
+			kymographSeq.setPixelSizeX( sequence.getPixelSizeX() );
+			kymographSeq.setPixelSizeY( sequence.getPixelSizeY() );
+			kymographSeq.setTimeInterval( sequence.getTimeInterval() * temporalBinning );
+			for ( int c = 0; c < sizeC; c++ )
+				kymographSeq.setChannelName( c, sequence.getChannelName( c ) );
+
+			kymographSeq.dataChanged();
+		}
+		return kymographSeqs;
+	}
+
+	/**
+	 * Returns the translations the rows of kymographs extracted from a
+	 * drifting sequence are sampled with: the translation of the center frame
+	 * of each row, quantized to {@link #DRIFT_QUANTUM} pixels.
+	 *
+	 * @param drift
+	 *            the translations of each frame, as <code>{dx, dy}</code>.
+	 * @return the translations of each row, as <code>{dx, dy}</code>.
+	 * @see #getKymographSequences(Sequence, ROI2DShape[], double[][])
+	 */
+	public double[][] getRowTranslations( final double[][] drift )
+	{
+		final double[][] translations = new double[ getNumRows( drift.length ) ][];
+		for ( int r = 0; r < translations.length; r++ )
+		{
+			final double[] shift = drift[ Math.min( drift.length - 1, r * temporalBinning + temporalBinning / 2 ) ];
+			translations[ r ] = new double[] {
+					Math.round( shift[ 0 ] / DRIFT_QUANTUM ) * DRIFT_QUANTUM,
+					Math.round( shift[ 1 ] / DRIFT_QUANTUM ) * DRIFT_QUANTUM };
+		}
+		return translations;
+	}
+
+	/**
+	 * Updates a kymograph after the mask it was extracted with changed, for
+	 * instance after a control point of its ROI was moved. The columns at the
+	 * start of the kymograph that are sampled identically by both masks are
+	 * kept, and only the following columns are extracted again and spliced
+	 * into the kymograph. Columns are resampled by arc length from the start
+	 * of the path, so the columns after an edit are shifted along the path
+	 * and are always extracted again.
+	 *
+	 * @param sequence
+	 *            the sequence the kymograph was extracted from.
+	 * @param kymographSeq
+	 *            the kymograph extracted with <code>oldMask</code>. It is
+	 *            modified in place.
+	 * @param oldMask
+	 *            the mask the kymograph was extracted with.
+	 * @param newMask
+	 *            the new mask.
+	 * @return the number of columns that were extracted again.
+	 */
+	public int updateKymographSequence( final Sequence sequence, final Sequence kymographSeq, final KymographMask oldMask, final KymographMask newMask )
+	{
+		final int oldNumColumns = oldMask.getNumColumns();
+		final int newNumColumns = newMask.getNumColumns();
+		final DataType dataType = getOutputDataType( sequence.getDataType_() );
+		final IcyBufferedImage oldImage = kymographSeq.getImage( 0, 0 );
+		if ( oldImage == null
+				|| oldImage.getWidth() != oldNumColumns
+				|| oldImage.getHeight() != getNumRows( sequence.getSizeT() )
+				|| oldImage.getSizeC() != sequence.getSizeC()
+				|| oldImage.getDataType_() != dataType )
+		{
+			// Not the kymograph of the old mask: extract it again.
+			kymographSeq.setImage( 0, 0, getKymographSequence( sequence, newMask ).getImage( 0, 0 ) );
+			samplingPositions = newMask.getSamplingPositions();
+			return newNumColumns;
+		}
+
+		final int maxCommon = Math.min( oldNumColumns, newNumColumns );
+		int prefix = 0;
+		while ( prefix < maxCommon && oldMask.isSameColumn( prefix, newMask, prefix, COLUMN_TOLERANCE ) )
+			prefix++;
+		final int numChanged = newNumColumns - prefix;
+		samplingPositions = newMask.getSamplingPositions();
+		if ( numChanged == 0 && oldNumColumns == newNumColumns )
+			return 0;
+
+		final int sizeT = oldImage.getHeight();
+		final int sizeC = oldImage.getSizeC();
+		final IcyBufferedImage changed = ( numChanged > 0 ) ? getKymographSequence( sequence, newMask.getColumns( prefix, newNumColumns ) ).getImage( 0, 0 ) : null;
+		final IcyBufferedImage image = ( oldNumColumns == newNumColumns ) ? oldImage : new IcyBufferedImage( newNumColumns, sizeT, sizeC, dataType );
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			final Object oldData = oldImage.getDataXY( c );
+			final Object data = image.getDataXY( c );
+			final Object changedData = ( changed == null ) ? null : changed.getDataXY( c );
+			for ( int t = 0; t < sizeT; t++ )
+			{
+				if ( image != oldImage )
+					System.arraycopy( oldData, t * oldNumColumns, data, t * newNumColumns, prefix );
+				if ( changedData != null )
+					System.arraycopy( changedData, t * numChanged, data, t * newNumColumns + prefix, numChanged );
+			}
+		}
+
+		if ( image == oldImage )
+			image.dataChanged();
+		else
+			kymographSeq.setImage( 0, 0, image );
+		return numChanged;
+	}
+
+	/**
+	 * Extracts several kymographs in a single pass over the specified
+	 * sequence. Each frame is read once and all its channels are sampled by
+	 * all the masks, so that the kymographs have as many channels as the
+	 * sequence.
+	 *
+	 * @return one kymograph per mask, in the same order.
+	 */
+	public Sequence[] getKymographSequences( final Sequence sequence, final KymographMask[] masks )
+	{
+		return getKymographSequences( sequence, masks, null );
+	}
+
+	/**
+	 * Extracts several kymographs in a single pass over the specified
+	 * sequence, and builds their multi-resolution pyramids in the same pass.
+	 *
+	 * @param pyramids
+	 *            an array of the same length as <code>masks</code>, filled
+	 *            with the pyramids of the kymographs. If <code>null</code>, no
+	 *            pyramid is built.
+	 * @return one kymograph per mask, in the same order.
+	 */
+	public Sequence[] getKymographSequences( final Sequence sequence, final KymographMask[] masks, final KymographPyramid[] pyramids )
+	{
+		final DataType dataType = getOutputDataType( sequence.getDataType_() );
+		final int sizeC = sequence.getSizeC();
+		final Sequence[] kymographSeqs = new Sequence[ masks.length ];
+		final Object[][] tabValues = new Object[ masks.length ][ sizeC ];
+		for ( int i = 0; i < masks.length; i++ )
+		{
+			kymographSeqs[ i ] = new Sequence();
+			kymographSeqs[ i ].setImage( 0, 0, new IcyBufferedImage( masks[ i ].getNumColumns(), getNumRows( sequence.getSizeT() ), sizeC, dataType ) );
+			for ( int c = 0; c < sizeC; c++ )
+				tabValues[ i ][ c ] = kymographSeqs[ i ].getImage( 0, 0 ).getDataXY( c );
+		}
+
+		// Frames are referenced, not copied.
+		final Object[][] frames = new Object[ sequence.getSizeT() ][ sizeC ];
+		for ( int t = 0; t < frames.length; t++ )
+			for ( int c = 0; c < sizeC; c++ )
+				frames[ t ][ c ] = sequence.getDataXY( t, 0, c );
+		final int numRows = getNumRows( frames.length );
+		final RowCorrections corrections = createCorrections( masks.length );
+		if ( pyramids == null )
+		{
+			extractRows( frames, 0, sequence.isSignedDataType(), masks, tabValues, dataType, 0, numRows, frames.length, corrections );
+		}
+		else
+		{
+			// Each band of rows is propagated to the coarse levels as soon as
+			// it is extracted, instead of reading the kymographs again.
+			for ( int i = 0; i < masks.length; i++ )
+				pyramids[ i ] = new KymographPyramid( kymographSeqs[ i ] );
+			for ( int r0 = 0; r0 < numRows; r0 += PYRAMID_BAND_ROWS )
+			{
+				final int r1 = Math.min( numRows, r0 + PYRAMID_BAND_ROWS );
+				extractRows( frames, 0, sequence.isSignedDataType(), masks, tabValues, dataType, r0, r1, frames.length, corrections );
+				for ( int i = 0; i < masks.length; i++ )
+					pyramids[ i ].addRows( tabValues[ i ], r0, r1, dataType.isSigned() );
+			}
+			for ( final KymographPyramid pyramid : pyramids )
+				pyramid.finish();
+		}
+
+		for ( final Sequence kymographSeq : kymographSeqs )
+		{
+			// Set metadata.
+			kymographSeq.setPixelSizeX( sequence.getPixelSizeX() );
+			kymographSeq.setPixelSizeY( sequence.getPixelSizeY() );
+			kymographSeq.setTimeInterval( sequence.getTimeInterval() * temporalBinning );
+			for ( int c = 0; c < sizeC; c++ )
+				kymographSeq.setChannelName( c, sequence.getChannelName( c ) );
+
+			kymographSeq.dataChanged();
+		}
+		return kymographSeqs;
+	}
+
+	/**
+	 * Extracts several kymographs into tiled kymographs backed by temporary
+	 * files, for kymographs that do not fit in memory. Rows are extracted one
+	 * band of tiles at a time and each band is written to the files as soon
+	 * as it is complete, so that the memory used is bounded by one band per
+	 * kymograph. Values are stored in the output data type.
+	 *
+	 * @param dir
+	 *            the directory of the temporary files, or <code>null</code>
+	 *            for the default temporary directory.
+	 * @return one tiled kymograph per mask, in the same order.
+	 */
+	public TiledKymograph[] getTiledKymographs( final Sequence sequence, final KymographMask[] masks, final File dir ) throws IOException
+	{
+		return getTiledKymographs( sequence, masks, dir, null, 0 );
+	}
+
+	/**
+	 * Extracts several kymographs into tiled kymographs backed by temporary
+	 * files, and builds their multi-resolution pyramids in the same pass:
+	 * each band of rows is propagated to the coarse levels as soon as it is
+	 * extracted, so that the tiled kymographs are never read back.
+	 *
+	 * @param pyramids
+	 *            an array of the same length as <code>masks</code>, filled
+	 *            with the pyramids of the kymographs. If <code>null</code>, no
+	 *            pyramid is built.
+	 * @param maxPyramidBytes
+	 *            the memory budget of the coarse levels of each pyramid, in
+	 *            bytes.
+	 * @return one tiled kymograph per mask, in the same order.
+	 * @see #getTiledKymographs(Sequence, KymographMask[], File)
+	 */
+	public TiledKymograph[] getTiledKymographs( final Sequence sequence, final KymographMask[] masks, final File dir, final KymographPyramid[] pyramids, final long maxPyramidBytes ) throws IOException
+	{
+		final DataType dataType = getOutputDataType( sequence.getDataType_() );
+		final int sizeT = sequence.getSizeT();
+		final int sizeC = sequence.getSizeC();
+		final int numRows = getNumRows( sizeT );
+		final TiledKymograph[] kymographs = new TiledKymograph[ masks.length ];
+		final Object[][] rowValues = new Object[ masks.length ][ sizeC ];
+		final int bandRows = TiledKymograph.DEFAULT_TILE_SIZE;
+		for ( int i = 0; i < masks.length; i++ )
+		{
+			kymographs[ i ] = TiledKymograph.createTemporary( masks[ i ].getNumColumns(), numRows, sizeC, dataType, dir );
+			kymographs[ i ].setCalibration( sequence.getPixelSizeX(), sequence.getPixelSizeY(), sequence.getTimeInterval() * temporalBinning );
+			for ( int c = 0; c < sizeC; c++ )
+				rowValues[ i ][ c ] = Array1DUtil.createArray( dataType, masks[ i ].getNumColumns() * bandRows );
+			if ( pyramids != null )
+				pyramids[ i ] = new KymographPyramid( kymographs[ i ], maxPyramidBytes );
+		}
+
+		// Frames are referenced, not copied. Blocks start at a multiple of
+		// the binning factor, so rows can be indexed from the block start.
+		final Object[][] block = new Object[ bandRows * temporalBinning ][ sizeC ];
+		final RowCorrections corrections = createCorrections( masks.length );
+		for ( int t0 = 0; t0 < sizeT; t0 += block.length )
+		{
+			final int t1 = Math.min( sizeT, t0 + block.length );
+			for ( int t = t0; t < t1; t++ )
+				for ( int c = 0; c < sizeC; c++ )
+					block[ t - t0 ][ c ] = sequence.getDataXY( t, 0, c );
+			final int blockRows = getNumRows( t1 - t0 );
+			extractRows( block, 0, sequence.isSignedDataType(), masks, rowValues, dataType, 0, blockRows, t1 - t0, corrections );
+			for ( int i = 0; i < masks.length; i++ )
+			{
+				for ( int c = 0; c < sizeC; c++ )
+					kymographs[ i ].writeRows( c, t0 / temporalBinning, rowValues[ i ][ c ], blockRows );
+				if ( pyramids != null )
+					pyramids[ i ].addRows( rowValues[ i ], t0 / temporalBinning, t0 / temporalBinning, t0 / temporalBinning + blockRows, dataType.isSigned() );
+			}
+			for ( final Object[] channels : block )
+				Arrays.fill( channels, null );
+		}
+		if ( pyramids != null )
+			for ( final KymographPyramid pyramid : pyramids )
+				pyramid.finish();
+		return kymographs;
+	}
+
+	/**
+	 * Extracts several kymographs by streaming the frames of an image file,
+	 * without loading the whole movie in memory. Frames are read one block
+	 * at a time, sampled, then discarded, so that the memory footprint is
+	 * proportional to the size of the kymographs. Only the bounding box of
+	 * the masks is read from the file, which avoids reading the rest of the
+	 * frame for file formats that support sub-region reads.
+	 * <p>
+	 * The first series of the file is read, at plane z = 0. The kymographs
+	 * have as many channels as the file.
+	 *
+	 * @param path
+	 *            the path to the image file.
+	 * @param masks
+	 *            the masks, compiled for frames of the size of the images in
+	 *            the file.
+	 * @return one kymograph per mask, in the same order.
+	 */
+	public Sequence[] getKymographSequences( final String path, final KymographMask[] masks ) throws UnsupportedFormatException, IOException
+	{
+		return getKymographSequences( path, masks, null );
+	}
+
+	/**
+	 * Extracts several kymographs by streaming the frames of an image file,
+	 * and builds their multi-resolution pyramids in the same pass: each block
+	 * of rows is propagated to the coarse levels as soon as it is extracted.
+	 *
+	 * @param pyramids
+	 *            an array of the same length as <code>masks</code>, filled
+	 *            with the pyramids of the kymographs. If <code>null</code>, no
+	 *            pyramid is built.
+	 * @return one kymograph per mask, in the same order.
+	 * @see #getKymographSequences(String, KymographMask[])
+	 */
+	public Sequence[] getKymographSequences( final String path, final KymographMask[] masks, final KymographPyramid[] pyramids ) throws UnsupportedFormatException, IOException
+	{
+		final SequenceFileImporter importer = Loader.getSequenceFileImporter( path, true );
+		if ( importer == null )
+			throw new UnsupportedFormatException( "Could not find an importer for file " + path );
+		if ( !importer.open( path, 0 ) )
+			throw new UnsupportedFormatException( "Could not open file " + path );
+
+		try
+		{
+			final OMEXMLMetadata metadata = importer.getOMEXMLMetaData();
+			final int sizeX = MetaDataUtil.getSizeX( metadata, 0 );
+			final int sizeY = MetaDataUtil.getSizeY( metadata, 0 );
+			final int sizeT = MetaDataUtil.getSizeT( metadata, 0 );
+			final int sizeC = MetaDataUtil.getSizeC( metadata, 0 );
+
+			// Only read the region covered by the masks.
+			Rectangle bounds = null;
+			for ( final KymographMask mask : masks )
+			{
+				if ( mask.getWidth() != sizeX || mask.getHeight() != sizeY )
+					throw new IllegalArgumentException( "Mask compiled for " + mask.getWidth() + "x" + mask.getHeight() + " frames, but file " + path + " has " + sizeX + "x" + sizeY + " frames." );
+				// Empty masks have no bounds, and must not pull the region to (0, 0).
+				if ( !mask.isEmpty() )
+					bounds = ( bounds == null ) ? mask.getBounds() : bounds.union( mask.getBounds() );
+			}
+			if ( bounds == null || bounds.isEmpty() || bleachCorrection == BleachCorrection.FRAME )
+				bounds = new Rectangle( 0, 0, sizeX, sizeY );
+			else if ( bleachCorrection == BleachCorrection.NEIGHBOURHOOD )
+			{
+				bounds.grow( NEIGHBOURHOOD_MARGIN, NEIGHBOURHOOD_MARGIN );
+				bounds = bounds.intersection( new Rectangle( 0, 0, sizeX, sizeY ) );
+			}
+			final KymographMask[] croppedMasks = new KymographMask[ masks.length ];
+			for ( int i = 0; i < masks.length; i++ )
+				croppedMasks[ i ] = masks[ i ].crop( bounds );
+
+			final DataType dataType = getOutputDataType( MetaDataUtil.getDataType( metadata, 0 ) );
+			final Sequence[] kymographSeqs = new Sequence[ masks.length ];
+			final Object[][] tabValues = new Object[ masks.length ][ sizeC ];
+			for ( int i = 0; i < masks.length; i++ )
+			{
+				kymographSeqs[ i ] = new Sequence();
+				kymographSeqs[ i ].setImage( 0, 0, new IcyBufferedImage( masks[ i ].getNumColumns(), getNumRows( sizeT ), sizeC, dataType ) );
+				for ( int c = 0; c < sizeC; c++ )
+					tabValues[ i ][ c ] = kymographSeqs[ i ].getImage( 0, 0 ).getDataXY( c );
+				if ( pyramids != null )
+					pyramids[ i ] = new KymographPyramid( kymographSeqs[ i ] );
+			}
+
+			// One row per thread at a time.
+			final Object[][] block = new Object[ parallelism * temporalBinning ][ sizeC ];
+			final RowCorrections corrections = createCorrections( masks.length );
+			for ( int t0 = 0; t0 < sizeT; t0 += block.length )
+			{
+				final int t1 = Math.min( sizeT, t0 + block.length );
+				boolean signed = false;
+				for ( int t = t0; t < t1; t++ )
+				{
+					final IcyBufferedImage image = importer.getImage( 0, 0, bounds, 0, t );
+					for ( int c = 0; c < sizeC; c++ )
+						block[ t - t0 ][ c ] = image.getDataXY( c );
+					signed = image.isSignedDataType();
+				}
+				extractRows( block, t0, signed, croppedMasks, tabValues, dataType, t0 / temporalBinning, getNumRows( t1 ), sizeT, corrections );
+				if ( pyramids != null )
+					for ( int i = 0; i < masks.length; i++ )
+						pyramids[ i ].addRows( tabValues[ i ], t0 / temporalBinning, getNumRows( t1 ), dataType.isSigned() );
+				for ( final Object[] channels : block )
+					Arrays.fill( channels, null );
+			}
+
+			if ( pyramids != null )
+				for ( final KymographPyramid pyramid : pyramids )
+					pyramid.finish();
+
+			for ( final Sequence kymographSeq : kymographSeqs )
+			{
+				// Set metadata.
+				kymographSeq.setPixelSizeX( MetaDataUtil.getPixelSizeX( metadata, 0, 1d ) );
+				kymographSeq.setPixelSizeY( MetaDataUtil.getPixelSizeY( metadata, 0, 1d ) );
+				kymographSeq.setTimeInterval( MetaDataUtil.getTimeInterval( metadata, 0, 1d ) * temporalBinning );
+
+				kymographSeq.dataChanged();
+			}
+			return kymographSeqs;
+		}
+		finally
+		{
+			importer.close();
+		}
+	}
+
+	/**
+	 * Fills the rows <code>[rStart, rEnd)</code> of a set of kymographs,
+	 * possibly in parallel. Each row combines <code>temporalBinning</code>
+	 * frames, except the last one that can combine fewer.
+	 *
+	 * @param frames
+	 *            the primitive arrays of the channels of the frames, starting
+	 *            at frame <code>firstFrame</code>.
+	 * @param tabValues
+	 *            the primitive arrays of the channels of the kymographs, of
+	 *            the specified data type.
+	 * @param numFrames
+	 *            the total number of frames of the source.
+	 * @param corrections
+	 *            the state of the bleach and background corrections of this
+	 *            extraction, or <code>null</code>. Successive calls must
+	 *            extract successive rows.
+	 */
+	void extractRows( final Object[][] frames, final int firstFrame, final boolean signed, final KymographMask[] masks, final Object[][] tabValues, final DataType dataType, final int rStart, final int rEnd, final int numFrames, final RowCorrections corrections )
+	{
+		extractRows( frames, firstFrame, signed, masks, null, tabValues, dataType, rStart, rEnd, numFrames, corrections );
+	}
+
+	/**
+	 * Fills the rows <code>[rStart, rEnd)</code> of a set of kymographs whose
+	 * masks change from row to row.
+	 *
+	 * @param masks
+	 *            the masks of the first row, used for the bleach correction
+	 *            reference.
+	 * @param rowMasks
+	 *            the masks of each row, or <code>null</code> to sample all
+	 *            the rows with <code>masks</code>.
+	 * @see #extractRows(Object[][], int, boolean, KymographMask[], Object[][],
+	 *      DataType, int, int, int, RowCorrections)
+	 */
+	private void extractRows( final Object[][] frames, final int firstFrame, final boolean signed, final KymographMask[] masks, final RowMasks rowMasks, final Object[][] tabValues, final DataType dataType, final int rStart, final int rEnd, final int numFrames, final RowCorrections corrections )
+	{
+		if ( corrections != null && corrections.referenceIntensities == null && bleachCorrection != BleachCorrection.NONE )
+		{
+			// The first frame extracted is the reference.
+			final int sizeC = frames[ 0 ].length;
+			corrections.referenceIntensities = new double[ masks.length ][ sizeC ];
+			final double[] line = new double[ masks[ 0 ].getWidth() ];
+			for ( int i = 0; i < masks.length; i++ )
+				for ( int c = 0; c < sizeC; c++ )
+					corrections.referenceIntensities[ i ][ c ] = getIntensity( frames[ 0 ][ c ], signed, masks[ i ], line );
+		}
+		if ( corrections == null || corrections.backgrounds == null )
+		{
+			runExtractRowsTask( frames, firstFrame, signed, masks, rowMasks, tabValues, dataType, rStart, rEnd, numFrames, 0, corrections );
+			return;
+		}
+
+		// The background is subtracted in row order, from rows extracted in
+		// double precision a chunk at a time.
+		final int sizeC = tabValues[ 0 ].length;
+		final Object[][] chunk = new Object[ masks.length ][ sizeC ];
+		for ( int i = 0; i < masks.length; i++ )
+			for ( int c = 0; c < sizeC; c++ )
+				chunk[ i ][ c ] = new double[ masks[ i ].getNumColumns() * Math.min( BACKGROUND_CHUNK, rEnd - rStart ) ];
+		for ( int r0 = rStart; r0 < rEnd; r0 += BACKGROUND_CHUNK )
+		{
+			final int r1 = Math.min( rEnd, r0 + BACKGROUND_CHUNK );
+			runExtractRowsTask( frames, firstFrame, signed, masks, rowMasks, chunk, DataType.DOUBLE, r0, r1, numFrames, r0, corrections );
+			for ( int i = 0; i < masks.length; i++ )
+			{
+				final int numColumns = masks[ i ].getNumColumns();
+				if ( corrections.backgrounds[ i ] == null )
+				{
+					corrections.backgrounds[ i ] = new SlidingMedian[ sizeC ];
+					for ( int c = 0; c < sizeC; c++ )
+						corrections.backgrounds[ i ][ c ] = new SlidingMedian( numColumns, backgroundWindow );
+				}
+				for ( int c = 0; c < sizeC; c++ )
+				{
+					final double[] values = ( double[] ) chunk[ i ][ c ];
+					for ( int r = r0; r < r1; r++ )
+					{
+						corrections.backgrounds[ i ][ c ].subtract( values, ( r - r0 ) * numColumns );
+						store( values, ( r - r0 ) * numColumns, dataType, tabValues[ i ][ c ], r * numColumns, numColumns );
+					}
+				}
+			}
+		}
+	}
+
+	private void runExtractRowsTask( final Object[][] frames, final int firstFrame, final boolean signed, final KymographMask[] masks, final RowMasks rowMasks, final Object[][] tabValues, final DataType dataType, final int rStart, final int rEnd, final int numFrames, final int rowOffset, final RowCorrections corrections )
+	{
+		// Aim at a few tasks per thread to balance the load.
+		final int grain = Math.max( 1, ( rEnd - rStart ) / ( 4 * parallelism ) );
+		final ExtractRowsTask task = new ExtractRowsTask( frames, firstFrame, signed, masks, rowMasks, tabValues, dataType, rStart, rEnd, numFrames, rowOffset, corrections, grain );
+		if ( parallelism > 1 && rEnd - rStart > 1 )
+			getPool().invoke( task );
+		else
+			task.compute();
+	}
+
+	/**
+	 * Returns the state of the bleach and background corrections of an
+	 * extraction, or <code>null</code> if no correction is set.
+	 *
+	 * @param numKymographs
+	 *            the number of kymographs extracted together.
+	 */
+	RowCorrections createCorrections( final int numKymographs )
+	{
+		if ( bleachCorrection == BleachCorrection.NONE && backgroundWindow == 0 )
+			return null;
+		final RowCorrections corrections = new RowCorrections();
+		if ( backgroundWindow > 0 )
+			corrections.backgrounds = new SlidingMedian[ numKymographs ][];
+		return corrections;
+	}
+
+	/**
+	 * Returns the mean intensity of a frame used for bleach correction: over
+	 * the whole frame, or over the bounding box of a mask enlarged by
+	 * {@link #NEIGHBOURHOOD_MARGIN}.
+	 *
+	 * @param line
+	 *            a buffer at least as long as the width of the frame.
+	 */
+	private double getIntensity( final Object frame, final boolean signed, final KymographMask mask, final double[] line )
+	{
+		final Rectangle frameBounds = new Rectangle( 0, 0, mask.getWidth(), mask.getHeight() );
+		Rectangle region = frameBounds;
+		if ( bleachCorrection == BleachCorrection.NEIGHBOURHOOD )
+		{
+			if ( mask.isEmpty() )
+				return 0;
+			final Rectangle bounds = mask.getBounds();
+			bounds.grow( NEIGHBOURHOOD_MARGIN, NEIGHBOURHOOD_MARGIN );
+			region = bounds.intersection( frameBounds );
+		}
+		if ( region.isEmpty() )
+			return 0;
+		double sum = 0;
+		for ( int y = region.y; y < region.y + region.height; y++ )
+		{
+			Array1DUtil.arrayToDoubleArray( frame, y * mask.getWidth() + region.x, line, 0, region.width, signed );
+			for ( int x = 0; x < region.width; x++ )
+				sum += line[ x ];
+		}
+		return sum / ( ( double ) region.width * region.height );
+	}
+
+	/**
+	 * Writes a row of double values to a kymograph buffer of the specified
+	 * data type, rounding and clamping them for integer data types.
+	 */
+	private static void store( final double[] values, final int inOffset, final DataType dataType, final Object out, final int outOffset, final int length )
+	{
+		if ( dataType == DataType.DOUBLE )
+		{
+			System.arraycopy( values, inOffset, out, outOffset, length );
+			return;
+		}
+		if ( !dataType.isFloat() )
+			for ( int x = inOffset; x < inOffset + length; x++ )
+				values[ x ] = Math.rint( values[ x ] );
+		Array1DUtil.doubleArrayToSafeArray( values, inOffset, out, outOffset, length, dataType.isSigned() );
+	}
+
+	/**
+	 * State of the bleach and background corrections, carried from one block
+	 * of rows to the next during an extraction.
+	 */
+	static class RowCorrections
+	{
+		/**
+		 * Intensity of the reference frame, indexed by kymograph and channel.
+		 */
+		double[][] referenceIntensities;
+
+		/**
+		 * Background of each channel of each kymograph, created on first use.
+		 * <code>null</code> if no background is subtracted.
+		 */
+		SlidingMedian[][] backgrounds;
+	}
+
+	/**
+	 * Masks of the rows of an extraction where the masks change from row to
+	 * row. Called concurrently by the tasks that extract the rows.
+	 */
+	interface RowMasks
+	{
+		/**
+		 * Returns the masks of the specified kymograph row, one per
+		 * kymograph.
+		 */
+		KymographMask[] get( int row );
+	}
+
+	/**
+	 * Masks of the rows of a drifting sequence: the columns of each ROI are
+	 * shifted by the translation of the frame of the row, quantized to
+	 * {@link #DRIFT_QUANTUM} pixels. Masks are compiled lazily and only those
+	 * of the last {@link #MAX_DRIFT_MASKS} translations used are kept.
+	 */
+	private class DriftMasks implements RowMasks
+	{
+		private final int width;
+
+		private final int height;
+
+		/** Columns of each ROI on the first frame. */
+		private final double[][][] columns;
+
+		/** Quantized translation of each row. */
+		private final double[][] translations;
+
+		private final Map< Long, KymographMask[] > cache = new LinkedHashMap< Long, KymographMask[] >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Long, KymographMask[] > eldest )
+			{
+				return size() > MAX_DRIFT_MASKS;
+			}
+		};
+
+		DriftMasks( final int width, final int height, final double[][][] columns, final double[][] translations )
+		{
+			this.width = width;
+			this.height = height;
+			this.columns = columns;
+			this.translations = translations;
+		}
+
+		@Override
+		public KymographMask[] get( final int row )
+		{
+			final double[] shift = translations[ row ];
+			final long qx = Math.round( shift[ 0 ] / DRIFT_QUANTUM );
+			final long qy = Math.round( shift[ 1 ] / DRIFT_QUANTUM );
+			final Long key = ( qx << 32 ) ^ ( qy & 0xffffffffl );
+			KymographMask[] masks;
+			synchronized ( cache )
+			{
+				masks = cache.get( key );
+			}
+			if ( masks != null )
+				return masks;
+
+			// Compiled outside of the lock, so that tasks compile in parallel.
+			masks = new KymographMask[ columns.length ];
+			for ( int i = 0; i < columns.length; i++ )
+			{
+				final double[][] shifted = new double[ columns[ i ].length ][];
+				for ( int j = 0; j < shifted.length; j++ )
+				{
+					shifted[ j ] = columns[ i ][ j ].clone();
+					shifted[ j ][ 0 ] += shift[ 0 ];
+					shifted[ j ][ 1 ] += shift[ 1 ];
+				}
+				masks[ i ] = compileProfileMask( width, height, shifted );
+			}
+			synchronized ( cache )
+			{
+				cache.put( key, masks );
+			}
+			return masks;
+		}
+	}
+
+	/**
+	 * Fills the rows <code>[rStart, rEnd)</code> of a set of kymographs. Large
+	 * ranges are split in two halves processed in parallel. Each task writes
+	 * to disjoint rows of the output buffers, so no locking is needed.
+	 */
+	class ExtractRowsTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final Object[][] frames;
+
+		final int firstFrame;
+
+		final boolean signed;
+
+		final KymographMask[] masks;
+
+		/** Masks of each row, or <code>null</code> to use masks for all rows. */
+		final RowMasks rowMasks;
+
+		final Object[][] tabValues;
+
+		final DataType dataType;
+
+		final int rStart;
+
+		final int rEnd;
+
+		final int numFrames;
+
+		/** Row of the kymographs stored at the start of the output buffers. */
+		final int rowOffset;
+
+		final RowCorrections corrections;
+
+		final int grain;
+
+		ExtractRowsTask( final Object[][] frames, final int firstFrame, final boolean signed, final KymographMask[] masks, final RowMasks rowMasks, final Object[][] tabValues, final DataType dataType, final int rStart, final int rEnd, final int numFrames, final int rowOffset, final RowCorrections corrections, final int grain )
+		{
+			this.frames = frames;
+			this.firstFrame = firstFrame;
+			this.signed = signed;
+			this.masks = masks;
+			this.rowMasks = rowMasks;
+			this.tabValues = tabValues;
+			this.dataType = dataType;
+			this.rStart = rStart;
+			this.rEnd = rEnd;
+			this.numFrames = numFrames;
+			this.rowOffset = rowOffset;
+			this.corrections = corrections;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( parallelism > 1 && rEnd - rStart > grain )
+			{
+				final int rMiddle = ( rStart + rEnd ) >>> 1;
+				invokeAll(
+						new ExtractRowsTask( frames, firstFrame, signed, masks, rowMasks, tabValues, dataType, rStart, rMiddle, numFrames, rowOffset, corrections, grain ),
+						new ExtractRowsTask( frames, firstFrame, signed, masks, rowMasks, tabValues, dataType, rMiddle, rEnd, numFrames, rowOffset, corrections, grain ) );
+				return;
+			}
+
+			// Binned rows, corrected rows and other data types than double are
+			// accumulated in a double row, then converted.
+			final boolean correctBleaching = corrections != null && corrections.referenceIntensities != null;
+			double[] acc = null;
+			double[] row = null;
+			double[] line = null;
+			double[] frameIntensities = null;
+			for ( int r = rStart; r < rEnd; r++ )
+			{
+				final KymographMask[] masks = ( rowMasks == null ) ? this.masks : rowMasks.get( r );
+				final int t0 = r * temporalBinning;
+				final int t1 = Math.min( numFrames, t0 + temporalBinning );
+				final int sizeC = frames[ t0 - firstFrame ].length;
+				for ( int c = 0; c < sizeC; c++ )
+				{
+					// The whole frame intensity is shared by all the masks.
+					if ( correctBleaching && bleachCorrection == BleachCorrection.FRAME )
+					{
+						if ( line == null )
+						{
+							line = new double[ masks[ 0 ].getWidth() ];
+							frameIntensities = new double[ temporalBinning ];
+						}
+						for ( int t = t0; t < t1; t++ )
+							frameIntensities[ t - t0 ] = getIntensity( frames[ t - firstFrame ][ c ], signed, masks[ 0 ], line );
+					}
+					for ( int i = 0; i < masks.length; i++ )
+					{
+						final int numColumns = masks[ i ].getNumColumns();
+						final int offset = ( r - rowOffset ) * numColumns;
+						if ( t1 - t0 == 1 && dataType == DataType.DOUBLE && !correctBleaching )
+						{
+							masks[ i ].sample( frames[ t0 - firstFrame ][ c ], signed, ( double[] ) tabValues[ i ][ c ], offset );
+							continue;
+						}
+						if ( acc == null || acc.length < numColumns )
+						{
+							acc = new double[ numColumns ];
+							row = new double[ numColumns ];
+						}
+						if ( correctBleaching && line == null )
+							line = new double[ masks[ i ].getWidth() ];
+						for ( int t = t0; t < t1; t++ )
+						{
+							final Object frame = frames[ t - firstFrame ][ c ];
+							final double[] target = ( t == t0 ) ? acc : row;
+							masks[ i ].sample( frame, signed, target, 0 );
+							if ( correctBleaching )
+							{
+								final double intensity = ( frameIntensities != null ) ? frameIntensities[ t - t0 ] : getIntensity( frame, signed, masks[ i ], line );
+								final double factor = ( intensity > 0 ) ? corrections.referenceIntensities[ i ][ c ] / intensity : 1;
+								for ( int x = 0; x < numColumns; x++ )
+									target[ x ] *= factor;
+							}
+							if ( t == t0 )
+								continue;
+							if ( binningMode == BinningMode.MAX )
+							{
+								for ( int x = 0; x < numColumns; x++ )
+									if ( row[ x ] > acc[ x ] )
+										acc[ x ] = row[ x ];
+							}
+							else
+							{
+								for ( int x = 0; x < numColumns; x++ )
+									acc[ x ] += row[ x ];
+							}
+						}
+						if ( binningMode == BinningMode.MEAN && t1 - t0 > 1 )
+							for ( int x = 0; x < numColumns; x++ )
+								acc[ x ] /= ( t1 - t0 );
+						store( acc, 0, dataType, tabValues[ i ][ c ], offset, numColumns );
+					}
+				}
+			}
+		}
+	}
+
 	class CreateKymographThread extends Thread
 	{
 		ArrayList< ROI > rois;
@@ -434,10 +1858,8 @@ public class ROItoKymograph
 //				}
 //				else
 				{
-					final CubicSmoothingSpline xSpline = Util.getXsplineFromROI( ( ROI2DShape ) roi );
-					final CubicSmoothingSpline ySpline = Util.getYsplineFromROI( ( ROI2DShape ) roi );
-					final double length = Util.getSplineLength( ( ROI2DShape ) roi );
-					kymograph = getKymographSequence( seq, length, xSpline, ySpline );
+					final ParametricSmoothingSpline spline = Util.getSplineFromROI( ( ROI2DShape ) roi );
+					kymograph = getKymographSequence( seq, spline.getLength(), spline.getXSpline(), spline.getYSpline() );
 				}
 
 				kymograph.setName( seq.getName() + "_" + roi.getName() + "_kymograph" );
@@ -0,0 +1,123 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Median of the last rows of a kymograph, column by column, used to subtract
+ * a temporal background while rows are extracted. Each row is corrected by
+ * the median of the rows preceding it, so that a structure appearing in a
+ * row is not part of its own background. The values of each column in the
+ * window are kept sorted, so that adding a row and removing the oldest one
+ * costs a binary search and a shift per column instead of a sort.
+ */
+class SlidingMedian
+{
+
+	private final int numColumns;
+
+	private final int window;
+
+	/** Rows in the window, as a ring buffer. */
+	private final double[] history;
+
+	/** Sorted values of the window, column after column. */
+	private final double[] sorted;
+
+	private int count = 0;
+
+	private int next = 0;
+
+	SlidingMedian( final int numColumns, final int window )
+	{
+		if ( window < 2 )
+			throw new IllegalArgumentException( "Background window must be at least 2, was " + window );
+		this.numColumns = numColumns;
+		this.window = window;
+		this.history = new double[ numColumns * window ];
+		this.sorted = new double[ numColumns * window ];
+	}
+
+	/**
+	 * Subtracts the median of the window from a row, then adds the row to the
+	 * window, removing the oldest row if the window is full. The first row,
+	 * which has no preceding rows, is left unchanged.
+	 *
+	 * @param row
+	 *            the array containing the row, modified in place.
+	 * @param offset
+	 *            the offset of the row in the array.
+	 */
+	void subtract( final double[] row, final int offset )
+	{
+		final boolean full = count == window;
+		final int n = count;
+		for ( int x = 0; x < numColumns; x++ )
+		{
+			final int base = x * window;
+			final double value = row[ offset + x ];
+			if ( n > 0 )
+			{
+				final double median = ( n % 2 == 1 )
+						? sorted[ base + n / 2 ]
+						: 0.5 * ( sorted[ base + n / 2 - 1 ] + sorted[ base + n / 2 ] );
+				row[ offset + x ] = value - median;
+			}
+
+			final int h = next * numColumns + x;
+			int size = n;
+			if ( full )
+			{
+				// Remove the oldest value.
+				final int i = search( base, size, history[ h ] );
+				System.arraycopy( sorted, base + i + 1, sorted, base + i, size - i - 1 );
+				size--;
+			}
+			final int i = search( base, size, value );
+			System.arraycopy( sorted, base + i, sorted, base + i + 1, size - i );
+			sorted[ base + i ] = value;
+			history[ h ] = value;
+		}
+		if ( !full )
+			count++;
+		next = ( next + 1 ) % window;
+	}
+
+	/**
+	 * Returns the index of the first value not smaller than the specified one
+	 * among the <code>size</code> sorted values of a column.
+	 */
+	private int search( final int base, final int size, final double value )
+	{
+		int low = 0;
+		int high = size;
+		while ( low < high )
+		{
+			final int middle = ( low + high ) >>> 1;
+			if ( sorted[ base + middle ] < value )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+}
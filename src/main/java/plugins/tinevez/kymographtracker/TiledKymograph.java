@@ -0,0 +1,478 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Kymograph stored on disk in fixed-size tiles, for kymographs that do not
+ * fit in memory. Values are stored in the data type of the kymograph, with
+ * the tiles of each channel one after the other, and the tiles of a band of
+ * rows next to each other.
+ * <p>
+ * The file is read and written with positional reads and writes on its
+ * channel, so it is released, and deleted if temporary, as soon as the
+ * kymograph is closed. Rows are written in order with
+ * {@link #writeRows(int, int, Object, int)} into a band of tiles held in
+ * memory, which is written to the file in one go as soon as its last row is
+ * written, so that the memory used while extracting is bounded by one band
+ * of tiles per channel. Tiles read from the file are kept in memory, at most
+ * {@link #getMaxCachedTiles()} of them, the least recently used one being
+ * dropped first.
+ */
+public class TiledKymograph
+{
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	public static final int DEFAULT_MAX_CACHED_TILES = 256;
+
+	private final int width;
+
+	private final int height;
+
+	private final int sizeC;
+
+	private final DataType dataType;
+
+	private final int tileWidth;
+
+	private final int tileHeight;
+
+	private final int numTilesX;
+
+	private final int numTilesY;
+
+	private final File file;
+
+	private final boolean temporary;
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	/**
+	 * Band of tiles being written, per channel, the tiles one after the
+	 * other. Allocated on the first write.
+	 */
+	private final Object[] bands;
+
+	/**
+	 * Index of the band of tiles being written, per channel, -1 if none.
+	 */
+	private final int[] bandIndices;
+
+	private int maxCachedTiles = DEFAULT_MAX_CACHED_TILES;
+
+	/**
+	 * Tiles read from the file, by tile index, in access order.
+	 */
+	private final LinkedHashMap< Integer, Object > cachedTiles = new LinkedHashMap< Integer, Object >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< Integer, Object > eldest )
+		{
+			return size() > maxCachedTiles;
+		}
+	};
+
+	private String name;
+
+	private double pixelSizeX = 1;
+
+	private double pixelSizeY = 1;
+
+	private double timeInterval = 1;
+
+	/**
+	 * Creates a tiled kymograph backed by the specified file, with tiles of
+	 * {@link #DEFAULT_TILE_SIZE} pixels.
+	 *
+	 * @param dataType
+	 *            the data type of the values stored.
+	 * @param file
+	 *            the backing file. It is created or overwritten.
+	 */
+	public TiledKymograph( final int width, final int height, final int sizeC, final DataType dataType, final File file ) throws IOException
+	{
+		this( width, height, sizeC, dataType, DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE, file, false );
+	}
+
+	TiledKymograph( final int width, final int height, final int sizeC, final DataType dataType, final int tileWidth, final int tileHeight, final File file, final boolean temporary ) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.sizeC = sizeC;
+		this.dataType = dataType;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.numTilesX = ( width + tileWidth - 1 ) / tileWidth;
+		this.numTilesY = ( height + tileHeight - 1 ) / tileHeight;
+		this.file = file;
+		this.temporary = temporary;
+		this.bands = new Object[ sizeC ];
+		this.bandIndices = new int[ sizeC ];
+		Arrays.fill( bandIndices, -1 );
+		this.raf = new RandomAccessFile( file, "rw" );
+		raf.setLength( getTileBytes() * numTilesX * numTilesY * sizeC );
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Creates a tiled kymograph backed by a temporary file, deleted when the
+	 * kymograph is closed.
+	 *
+	 * @param dir
+	 *            the directory of the temporary file, or <code>null</code> for
+	 *            the default temporary directory.
+	 */
+	public static TiledKymograph createTemporary( final int width, final int height, final int sizeC, final DataType dataType, final File dir ) throws IOException
+	{
+		final File file = File.createTempFile( "kymograph", ".tiles", dir );
+		file.deleteOnExit();
+		return new TiledKymograph( width, height, sizeC, dataType, DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE, file, true );
+	}
+
+	private long getTileBytes()
+	{
+		return ( long ) dataType.getSize() * tileWidth * tileHeight;
+	}
+
+	/**
+	 * Returns the position in the file of the first tile of a band.
+	 */
+	private long getBandPosition( final int c, final int ty )
+	{
+		return ( ( long ) c * numTilesY + ty ) * numTilesX * getTileBytes();
+	}
+
+	/**
+	 * Returns a tile of the specified channel, reading it from the file if it
+	 * is not cached.
+	 */
+	private Object getTile( final int c, final int tx, final int ty ) throws IOException
+	{
+		final int index = ( c * numTilesY + ty ) * numTilesX + tx;
+		Object tile = cachedTiles.get( index );
+		if ( tile == null )
+		{
+			tile = Array1DUtil.createArray( dataType, tileWidth * tileHeight );
+			read( getBandPosition( c, ty ) + tx * getTileBytes(), tile );
+			cachedTiles.put( index, tile );
+		}
+		return tile;
+	}
+
+	/**
+	 * Writes rows of one channel of the kymograph. The band of tiles of the
+	 * rows is written to the file when its last row is written.
+	 *
+	 * @param c
+	 *            the channel.
+	 * @param rStart
+	 *            the first row to write.
+	 * @param values
+	 *            the primitive array of the values of the rows, in the data
+	 *            type of the kymograph, one row after the other.
+	 * @param numRows
+	 *            the number of rows to write.
+	 */
+	public synchronized void writeRows( final int c, final int rStart, final Object values, final int numRows ) throws IOException
+	{
+		for ( int r = rStart; r < rStart + numRows; r++ )
+		{
+			final int ty = r / tileHeight;
+			final int y = r - ty * tileHeight;
+			if ( bandIndices[ c ] != ty )
+			{
+				flushBand( c );
+				if ( bands[ c ] == null )
+					bands[ c ] = Array1DUtil.createArray( dataType, numTilesX * tileWidth * tileHeight );
+				// A band written from its middle keeps the rows already in
+				// the file.
+				if ( y > 0 )
+					read( getBandPosition( c, ty ), bands[ c ] );
+				bandIndices[ c ] = ty;
+			}
+			for ( int tx = 0; tx < numTilesX; tx++ )
+			{
+				final int x0 = tx * tileWidth;
+				System.arraycopy( values, ( r - rStart ) * width + x0, bands[ c ], ( tx * tileHeight + y ) * tileWidth, Math.min( tileWidth, width - x0 ) );
+			}
+			if ( y == tileHeight - 1 || r == height - 1 )
+				flushBand( c );
+		}
+	}
+
+	/**
+	 * Writes the band of tiles being written of a channel to the file, and
+	 * drops the cached tiles of this band.
+	 */
+	private void flushBand( final int c ) throws IOException
+	{
+		final int ty = bandIndices[ c ];
+		if ( ty < 0 )
+			return;
+		bandIndices[ c ] = -1;
+		write( getBandPosition( c, ty ), bands[ c ] );
+		clear( bands[ c ] );
+		for ( int tx = 0; tx < numTilesX; tx++ )
+			cachedTiles.remove( ( c * numTilesY + ty ) * numTilesX + tx );
+	}
+
+	/**
+	 * Reads a region of one channel of the kymograph. The rows being written
+	 * are written to the file first.
+	 *
+	 * @param c
+	 *            the channel.
+	 * @param region
+	 *            the region, which must be within the kymograph.
+	 * @param out
+	 *            the primitive array to store the values of the region, in
+	 *            the data type of the kymograph, one row after the other.
+	 */
+	public synchronized void readRegion( final int c, final Rectangle region, final Object out ) throws IOException
+	{
+		flushBand( c );
+		for ( int r = region.y; r < region.y + region.height; r++ )
+		{
+			final int ty = r / tileHeight;
+			final int y = r - ty * tileHeight;
+			int x = region.x;
+			while ( x < region.x + region.width )
+			{
+				final int tx = x / tileWidth;
+				final int length = Math.min( ( tx + 1 ) * tileWidth, region.x + region.width ) - x;
+				System.arraycopy( getTile( c, tx, ty ), y * tileWidth + x - tx * tileWidth, out, ( r - region.y ) * region.width + x - region.x, length );
+				x += length;
+			}
+		}
+	}
+
+	/**
+	 * Reads a region of the kymograph as a new sequence, in the data type of
+	 * the kymograph and calibrated like it.
+	 *
+	 * @param region
+	 *            the region, clipped to the kymograph.
+	 */
+	public Sequence getRegion( final Rectangle region ) throws IOException
+	{
+		final Rectangle r = region.intersection( new Rectangle( 0, 0, width, height ) );
+		if ( r.isEmpty() )
+			r.setSize( 0, 0 );
+		final IcyBufferedImage image = new IcyBufferedImage( r.width, r.height, sizeC, dataType );
+		for ( int c = 0; c < sizeC; c++ )
+			readRegion( c, r, image.getDataXY( c ) );
+
+		final Sequence sequence = new Sequence();
+		sequence.setImage( 0, 0, image );
+		sequence.setPixelSizeX( pixelSizeX );
+		sequence.setPixelSizeY( pixelSizeY );
+		sequence.setTimeInterval( timeInterval );
+		if ( name != null )
+			sequence.setName( name );
+		return sequence;
+	}
+
+	/**
+	 * Writes the bands being written to the file and closes it. The file is
+	 * deleted if it is temporary.
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			for ( int c = 0; c < sizeC; c++ )
+				flushBand( c );
+		}
+		finally
+		{
+			cachedTiles.clear();
+			channel.close();
+			raf.close();
+			if ( temporary )
+				file.delete();
+		}
+	}
+
+	/**
+	 * Reads the values of a primitive array from the file.
+	 */
+	private void read( final long position, final Object values ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( Array.getLength( values ) * dataType.getSize() ).order( ByteOrder.nativeOrder() );
+		// Read through a duplicate, so that the views below start at 0.
+		final ByteBuffer dst = buffer.duplicate();
+		while ( dst.hasRemaining() )
+			if ( channel.read( dst, position + dst.position() ) < 0 )
+				break;
+
+		if ( values instanceof byte[] )
+			buffer.get( ( byte[] ) values );
+		else if ( values instanceof short[] )
+			buffer.asShortBuffer().get( ( short[] ) values );
+		else if ( values instanceof int[] )
+			buffer.asIntBuffer().get( ( int[] ) values );
+		else if ( values instanceof long[] )
+			buffer.asLongBuffer().get( ( long[] ) values );
+		else if ( values instanceof float[] )
+			buffer.asFloatBuffer().get( ( float[] ) values );
+		else
+			buffer.asDoubleBuffer().get( ( double[] ) values );
+	}
+
+	/**
+	 * Writes the values of a primitive array to the file.
+	 */
+	private void write( final long position, final Object values ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( Array.getLength( values ) * dataType.getSize() ).order( ByteOrder.nativeOrder() );
+		if ( values instanceof byte[] )
+			buffer.duplicate().put( ( byte[] ) values );
+		else if ( values instanceof short[] )
+			buffer.asShortBuffer().put( ( short[] ) values );
+		else if ( values instanceof int[] )
+			buffer.asIntBuffer().put( ( int[] ) values );
+		else if ( values instanceof long[] )
+			buffer.asLongBuffer().put( ( long[] ) values );
+		else if ( values instanceof float[] )
+			buffer.asFloatBuffer().put( ( float[] ) values );
+		else
+			buffer.asDoubleBuffer().put( ( double[] ) values );
+
+		while ( buffer.hasRemaining() )
+			channel.write( buffer, position + buffer.position() );
+	}
+
+	private static void clear( final Object values )
+	{
+		if ( values instanceof byte[] )
+			Arrays.fill( ( byte[] ) values, ( byte ) 0 );
+		else if ( values instanceof short[] )
+			Arrays.fill( ( short[] ) values, ( short ) 0 );
+		else if ( values instanceof int[] )
+			Arrays.fill( ( int[] ) values, 0 );
+		else if ( values instanceof long[] )
+			Arrays.fill( ( long[] ) values, 0l );
+		else if ( values instanceof float[] )
+			Arrays.fill( ( float[] ) values, 0f );
+		else
+			Arrays.fill( ( double[] ) values, 0d );
+	}
+
+	public synchronized void setMaxCachedTiles( final int maxCachedTiles )
+	{
+		if ( maxCachedTiles < 1 )
+			throw new IllegalArgumentException( "At least one tile must be cached, was " + maxCachedTiles );
+		this.maxCachedTiles = maxCachedTiles;
+	}
+
+	public int getMaxCachedTiles()
+	{
+		return maxCachedTiles;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getSizeC()
+	{
+		return sizeC;
+	}
+
+	public DataType getDataType()
+	{
+		return dataType;
+	}
+
+	public boolean isSignedDataType()
+	{
+		return dataType.isSigned();
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName( final String name )
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Sets the calibration of the sequences read from the kymograph.
+	 */
+	public void setCalibration( final double pixelSizeX, final double pixelSizeY, final double timeInterval )
+	{
+		this.pixelSizeX = pixelSizeX;
+		this.pixelSizeY = pixelSizeY;
+		this.timeInterval = timeInterval;
+	}
+
+	public double getPixelSizeX()
+	{
+		return pixelSizeX;
+	}
+
+	public double getPixelSizeY()
+	{
+		return pixelSizeY;
+	}
+
+	public double getTimeInterval()
+	{
+		return timeInterval;
+	}
+}
@@ -31,6 +31,7 @@ import java.util.ArrayList;
 import plugins.kernel.roi.roi2d.ROI2DPolyLine;
 import plugins.kernel.roi.roi2d.ROI2DShape;
 import plugins.tinevez.kymographtracker.spline.CubicSmoothingSpline;
+import plugins.tinevez.kymographtracker.spline.ParametricSmoothingSpline;
 
 public class Util {
 
@@ -144,83 +145,36 @@ public class Util {
 
 
 
-	public static CubicSmoothingSpline getXsplineFromROI(ROI2DShape roi)
+	/**
+	 * Fits a smoothing spline through the points of a ROI, parameterized by
+	 * arc length. Prefer it to calling {@link #getXsplineFromROI(ROI2DShape)},
+	 * {@link #getYsplineFromROI(ROI2DShape)} and
+	 * {@link #getSplineLength(ROI2DShape)} in turn, which fit the path three
+	 * times.
+	 */
+	public static ParametricSmoothingSpline getSplineFromROI(ROI2DShape roi)
 	{
 		ArrayList<Point2D> pointList = roi.getPoints();
-		double prevLastPosX = -1;
-		double prevLastPosY = -1;
-		double length = 0;
-		ArrayList<Double> x = new ArrayList<Double>();
-		ArrayList<Double> y = new ArrayList<Double>();
-		ArrayList<Double> w = new ArrayList<Double>();
-		for (Point2D p:pointList)
+		double[] xs = new double[pointList.size()];
+		double[] ys = new double[pointList.size()];
+		for (int i = 0; i < xs.length; i++)
 		{
-			double xx = p.getX();
-			double yy = p.getY();
-			if (!(prevLastPosX == xx && prevLastPosY == yy))
-			{
-				if (prevLastPosX != -1 && prevLastPosY != -1)
-					length += Math.sqrt((xx - prevLastPosX)*(xx - prevLastPosX) + (yy - prevLastPosY)*(yy - prevLastPosY));
-				x.add(length);
-				y.add(xx);
-				prevLastPosX = xx;
-				prevLastPosY = yy;						
-				w.add(1d);
-			}
-		}
-		
-		double[] xTab = new double[x.size()];
-		double[] yTab = new double[x.size()];
-		double[] wTab = new double[x.size()];
-		for (int i = 0; i < xTab.length; i++)
-		{
-			xTab[i] = x.get(i);
-			yTab[i] = y.get(i);
-			wTab[i] = w.get(i);
+			xs[i] = pointList.get(i).getX();
+			ys[i] = pointList.get(i).getY();
 		}
 		double rho = 0.5d;
-		CubicSmoothingSpline smoothingSpline = new CubicSmoothingSpline(xTab, yTab, wTab, rho);
-		return smoothingSpline;
+		return new ParametricSmoothingSpline(xs, ys, xs.length, rho);
+	}
+
+	public static CubicSmoothingSpline getXsplineFromROI(ROI2DShape roi)
+	{
+		return getSplineFromROI(roi).getXSpline();
 	}
 	
 	
 	public static CubicSmoothingSpline getYsplineFromROI(ROI2DShape roi)
 	{
-		ArrayList<Point2D> pointList = roi.getPoints();
-		double prevLastPosX = -1;
-		double prevLastPosY = -1;
-		double length = 0;
-		ArrayList<Double> x = new ArrayList<Double>();
-		ArrayList<Double> y = new ArrayList<Double>();
-		ArrayList<Double> w = new ArrayList<Double>();
-		for (Point2D p:pointList)
-		{
-			double xx = p.getX();
-			double yy = p.getY();
-			if (!(prevLastPosX == xx && prevLastPosY == yy))
-			{
-				if (prevLastPosX != -1 && prevLastPosY != -1)
-					length += Math.sqrt((xx - prevLastPosX)*(xx - prevLastPosX) + (yy - prevLastPosY)*(yy - prevLastPosY));
-				x.add(length);
-				y.add(yy);
-				prevLastPosX = xx;
-				prevLastPosY = yy;						
-				w.add(1d);
-			}
-		}
-		
-		double[] xTab = new double[x.size()];
-		double[] yTab = new double[x.size()];
-		double[] wTab = new double[x.size()];
-		for (int i = 0; i < xTab.length; i++)
-		{
-			xTab[i] = x.get(i);
-			yTab[i] = y.get(i);
-			wTab[i] = w.get(i);
-		}
-		double rho = 0.5d;
-		CubicSmoothingSpline smoothingSpline = new CubicSmoothingSpline(xTab, yTab, wTab, rho);
-		return smoothingSpline;
+		return getSplineFromROI(roi).getYSpline();
 	}
 
 	public static double getSplineLength(ROI2DShape roi)
@@ -123,6 +123,12 @@ public class CubicSmoothingSpline
    private double[] x, y, weight;
    private double rho;
 
+   /**
+    * Coefficients of the polynomials, four per polynomial, used by the batch
+    *  evaluation. Computed lazily.
+    */
+   private double[] coefficients;
+
 
 
    /**
@@ -194,6 +200,68 @@ public class CubicSmoothingSpline
    }
 
 
+   /**
+    * Constructs a spline from polynomials already computed by
+    * {@link #createSplines(double[], double[][], double[], double) createSplines}.
+    *  The arrays are not copied.
+    */
+   private CubicSmoothingSpline (double[] x, double[] y, double[] weight,
+                                 double rho, Polynomial[] splineVector) {
+      this.x = x;
+      this.y = y;
+      this.weight = weight;
+      this.rho = rho;
+      this.splineVector = splineVector;
+   }
+
+
+   /**
+    * Constructs one spline per row of <TT>y</TT>, all with nodes at the same
+    *  <SPAN CLASS="MATH"><I>x</I><SUB>i</SUB></SPAN>, weights and smoothing factor.
+    *  The banded system of the smoothing spline only depends on the
+    *  <SPAN CLASS="MATH"><I>x</I><SUB>i</SUB></SPAN> and the weights: it is built and factorized
+    *  once, then solved for each row of <TT>y</TT>. This is typically used to fit
+    *  the <SPAN CLASS="MATH"><I>x</I></SPAN> and <SPAN CLASS="MATH"><I>y</I></SPAN> coordinates of a
+    *  path parameterized by its arc length.
+    * 
+    * @param x the <SPAN CLASS="MATH"><I>x</I><SUB>i</SUB></SPAN> coordinates, shared by all the splines.
+    * 
+    *    @param y the <SPAN CLASS="MATH"><I>y</I><SUB>i</SUB></SPAN> coordinates of each spline.
+    * 
+    *    @param w the weight for each point, must be <SPAN CLASS="MATH">&gt; 0</SPAN>,
+    *     or <TT>null</TT> for weights equal to 1.
+    * 
+    *    @param rho the smoothing parameter
+    * 
+    *    @return one spline per row of <TT>y</TT>.
+    * 
+    *    @exception IllegalArgumentException if the rows of <TT>y</TT> or
+    *     <TT>w</TT> do not have the length of <TT>x</TT>, or if rho has wrong value.
+    * 
+    */
+   public static CubicSmoothingSpline[] createSplines (double[] x, double[][] y,
+                                                       double[] w, double rho) {
+      for (int k = 0; k < y.length; k++)
+         if (x.length != y[k].length)
+            throw new IllegalArgumentException ("x.length != y[" + k + "].length");
+      if (w != null && x.length != w.length)
+         throw new IllegalArgumentException ("x.length != w.length");
+      if (rho < 0 || rho > 1)
+         throw new IllegalArgumentException ("rho not in [0, 1]");
+
+      final double[] xx = x.clone();
+      final double[] weight = new double[x.length];
+      for (int i = 0; i < weight.length; i++)
+         weight[i] = (w == null) ? 1.0 : w[i];
+
+      final Polynomial[][] polynomials = resolve (xx, y, weight, rho);
+      final CubicSmoothingSpline[] splines = new CubicSmoothingSpline[y.length];
+      for (int k = 0; k < y.length; k++)
+         splines[k] = new CubicSmoothingSpline (xx, y[k].clone(), weight, rho, polynomials[k]);
+      return splines;
+   }
+
+
    /**
     * Evaluates and returns the value of the spline at <SPAN CLASS="MATH"><I>z</I></SPAN>.
     * 
@@ -211,6 +279,58 @@ public class CubicSmoothingSpline
    }
 
 
+   /**
+    * Evaluates the spline and its <SPAN  CLASS="textit">first</SPAN> derivative at each
+    *  abscissa of <TT>z</TT>, in a single sweep. The abscissae are expected in
+    *  increasing order: the polynomial of each abscissa is then found by moving
+    *  a cursor from the one of the previous abscissa, instead of a binary search.
+    *  Abscissae out of order are still evaluated correctly, at the cost of a
+    *  search.
+    * 
+    * @param z arguments of the spline, preferably sorted in increasing order.
+    * 
+    *    @param values array to store the values of the spline, or <TT>null</TT>.
+    * 
+    *    @param derivatives array to store the values of the first derivative,
+    *     or <TT>null</TT>.
+    * 
+    */
+   public void evaluate (double[] z, double[] values, double[] derivatives) {
+      double[] c = getCoefficients();
+      int i = (z.length == 0) ? 0 : getFitPolynomialIndex(z[0]);
+      for (int k = 0; k < z.length; k++) {
+         double zz = z[k];
+         if (k > 0 && zz < z[k-1])
+            i = getFitPolynomialIndex(zz);
+         while (i < x.length && zz > x[i])
+            i++;
+         double t = (i == 0) ? zz - x[0] : zz - x[i-1];
+         int o = 4 * i;
+         if (values != null)
+            values[k] = c[o] + t * (c[o+1] + t * (c[o+2] + t * c[o+3]));
+         if (derivatives != null)
+            derivatives[k] = c[o+1] + t * (2 * c[o+2] + t * 3 * c[o+3]);
+      }
+   }
+
+
+   /**
+    * Returns the coefficients of all the polynomials, padded to four per
+    *  polynomial.
+    */
+   private double[] getCoefficients() {
+      double[] c = coefficients;
+      if (c == null) {
+         c = new double[4 * splineVector.length];
+         for (int i = 0; i < splineVector.length; i++)
+            for (int d = 0; d <= Math.min(3, splineVector[i].getDegree()); d++)
+               c[4 * i + d] = splineVector[i].getCoefficient(d);
+         coefficients = c;
+      }
+      return c;
+   }
+
+
    /**
     * Evaluates and returns the value of the integral of the
     *  spline from <SPAN CLASS="MATH"><I>a</I></SPAN> to <SPAN CLASS="MATH"><I>b</I></SPAN>.
@@ -374,6 +494,16 @@ public class CubicSmoothingSpline
 
 
    private void resolve () {
+      splineVector = resolve (x, new double[][] { y }, weight, rho)[0];
+   }
+
+
+   /**
+    * Computes the polynomials of the splines with nodes at the same
+    *  <SPAN CLASS="MATH"><I>x</I><SUB>i</SUB></SPAN>, factorizing the system once.
+    */
+   private static Polynomial[][] resolve (double[] x, double[][] ys,
+                                         double[] weight, double rho) {
    /*
       taken from D.S.G Pollock's paper, "Smoothing with Cubic Splines",
       Queen Mary, University of London (1993)
@@ -385,7 +515,6 @@ public class CubicSmoothingSpline
       double[] u = new double[x.length];
       double[] v = new double[x.length];
       double[] w = new double[x.length];
-      double[] q = new double[x.length+1];
       double[] sigma = new double[weight.length];
 
       for (int i = 0; i < weight.length; i++) {
@@ -408,7 +537,6 @@ public class CubicSmoothingSpline
       for (int i = 1; i < n; i++) {
          h[i] = x[i+1] - x[i];
          r[i] = 3/h[i];
-         q[i] = 3 * (y[i+1] - y[i])/h[i] - 3 * (y[i] - y[i-1])/h[i - 1];
       }
 
       for (int i = 1; i < n; i++) {
@@ -421,47 +549,62 @@ public class CubicSmoothingSpline
          v[i] = mu * v[i] + h[i];
          w[i] = mu * r[i] * r[i+1] * sigma[i+1];
       }
-      q = Quincunx(u, v, w, q);
-
-      // extrapolation a gauche
-      double[] params = new double[4];
-      double dd;
-      params[0] = y[0] - mu * r[0] * q[1] * sigma[0];
-      dd = y[1] - mu * ((-r[0] - r[1]) * q[1] + r[1] * q[2]) * sigma[1];
-      params[1] = (dd - params[0])/h[0] - q[1] * h[0]/3;
-      splineVector[0] = new Polynomial(params);
-
-      // premier polynome
-      params[0] = y[0] - mu * r[0] * q[1] * sigma[0];
-      dd = y[1] - mu * ((-r[0] - r[1]) * q[1] + r[1] * q[2]) * sigma[1];
-      params[3] = q[1]/(3 * h[0]);
-      params[2] = 0;
-      params[1] = (dd - params[0])/h[0] - q[1] * h[0]/3;
-      splineVector[1] = new Polynomial(params);
-
-      // les polynomes suivants
-      int j;
-      for (j = 1; j < n; j++) {
-         params[3] = (q[j + 1] - q[j])/(3 * h[j]);
-         params[2] = q[j];
-         params[1] = (q[j] + q[j - 1]) * h[j - 1] + splineVector[j].getCoefficient(1);
-         params[0] = r[j - 1] * q[j - 1] + (-r[j-1] - r[j]) * q[j] + r[j] * q[j + 1];
-         params[0] = y[j] - mu * params[0] * sigma[j];
-         splineVector[j+1] = new Polynomial(params);
-      }
+      factorize(u, v, w);
+
+      Polynomial[][] splineVectors = new Polynomial[ys.length][];
+      for (int k = 0; k < ys.length; k++) {
+         double[] y = ys[k];
+         Polynomial[] splineVector = new Polynomial[x.length+1];
+         double[] q = new double[x.length+1];
+         for (int i = 1; i < n; i++)
+            q[i] = 3 * (y[i+1] - y[i])/h[i] - 3 * (y[i] - y[i-1])/h[i - 1];
+         q = substitute(u, v, w, q);
+
+         // extrapolation a gauche
+         double[] params = new double[4];
+         double dd;
+         params[0] = y[0] - mu * r[0] * q[1] * sigma[0];
+         dd = y[1] - mu * ((-r[0] - r[1]) * q[1] + r[1] * q[2]) * sigma[1];
+         params[1] = (dd - params[0])/h[0] - q[1] * h[0]/3;
+         splineVector[0] = new Polynomial(params);
+
+         // premier polynome
+         params[0] = y[0] - mu * r[0] * q[1] * sigma[0];
+         dd = y[1] - mu * ((-r[0] - r[1]) * q[1] + r[1] * q[2]) * sigma[1];
+         params[3] = q[1]/(3 * h[0]);
+         params[2] = 0;
+         params[1] = (dd - params[0])/h[0] - q[1] * h[0]/3;
+         splineVector[1] = new Polynomial(params);
+
+         // les polynomes suivants
+         int j;
+         for (j = 1; j < n; j++) {
+            params[3] = (q[j + 1] - q[j])/(3 * h[j]);
+            params[2] = q[j];
+            params[1] = (q[j] + q[j - 1]) * h[j - 1] + splineVector[j].getCoefficient(1);
+            params[0] = r[j - 1] * q[j - 1] + (-r[j-1] - r[j]) * q[j] + r[j] * q[j + 1];
+            params[0] = y[j] - mu * params[0] * sigma[j];
+            splineVector[j+1] = new Polynomial(params);
+         }
 
-      // extrapolation a droite
-      j = n;
-      params[3] = 0;
-      params[2] = 0;
-      params[1] = splineVector[j].derivative(x[x.length-1]-x[x.length-2]);
-      params[0] = splineVector[j].evaluate(x[x.length-1]-x[x.length-2]);
-      splineVector[n+1] = new Polynomial(params);
+         // extrapolation a droite
+         j = n;
+         params[3] = 0;
+         params[2] = 0;
+         params[1] = splineVector[j].derivative(x[x.length-1]-x[x.length-2]);
+         params[0] = splineVector[j].evaluate(x[x.length-1]-x[x.length-2]);
+         splineVector[n+1] = new Polynomial(params);
+         splineVectors[k] = splineVector;
+      }
+      return splineVectors;
    }
 
 
-   private static double[] Quincunx (double[] u, double[] v,
-                                     double[] w, double[] q) {
+   /**
+    * Computes in place the LDL' factorization of the pentadiagonal system
+    *  with diagonal <TT>u</TT> and upper diagonals <TT>v</TT> and <TT>w</TT>.
+    */
+   private static void factorize (double[] u, double[] v, double[] w) {
       u[0] = 0;
       v[1] = v[1]/u[1];
       w[1] = w[1]/u[1];
@@ -472,6 +615,16 @@ public class CubicSmoothingSpline
          v[j] = (v[j] - u[j - 1] * v[j-1] * w[j-1])/u[j];
          w[j] = w[j]/u[j];
       }
+   }
+
+
+   /**
+    * Solves the system factorized by {@link #factorize(double[], double[], double[]) factorize}
+    *  for the right-hand side <TT>q</TT>, in place.
+    */
+   private static double[] substitute (double[] u, double[] v,
+                                       double[] w, double[] q) {
+      int j;
 
       // forward substitution
       q[1] = q[1] - v[0] * q[0];
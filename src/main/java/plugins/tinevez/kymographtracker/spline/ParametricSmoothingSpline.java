@@ -0,0 +1,119 @@
+package plugins.tinevez.kymographtracker.spline;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Smoothing spline of a 2D path, parameterized by the arc length of the
+ * polyline through its points. The x and y coordinates are fitted with two
+ * {@link CubicSmoothingSpline}s that share their nodes, so the arc length is
+ * computed once and the smoothing system is factorized once for both
+ * coordinates.
+ */
+public class ParametricSmoothingSpline
+{
+
+	private final CubicSmoothingSpline xSpline;
+
+	private final CubicSmoothingSpline ySpline;
+
+	private final double length;
+
+	/**
+	 * Fits the path through the specified points. Consecutive repeated points
+	 * are ignored.
+	 *
+	 * @param xs
+	 *            the x coordinates of the points.
+	 * @param ys
+	 *            the y coordinates of the points.
+	 * @param numPoints
+	 *            the number of points, read at the start of the arrays.
+	 * @param rho
+	 *            the smoothing parameter.
+	 */
+	public ParametricSmoothingSpline( final double[] xs, final double[] ys, final int numPoints, final double rho )
+	{
+		final double[] arcLength = new double[ numPoints ];
+		final double[][] values = new double[ 2 ][ numPoints ];
+		int n = 0;
+		double l = 0;
+		for ( int i = 0; i < numPoints; i++ )
+		{
+			if ( n > 0 )
+			{
+				final double dx = xs[ i ] - values[ 0 ][ n - 1 ];
+				final double dy = ys[ i ] - values[ 1 ][ n - 1 ];
+				if ( dx == 0 && dy == 0 )
+					continue;
+				l += Math.sqrt( dx * dx + dy * dy );
+			}
+			arcLength[ n ] = l;
+			values[ 0 ][ n ] = xs[ i ];
+			values[ 1 ][ n ] = ys[ i ];
+			n++;
+		}
+
+		final CubicSmoothingSpline[] splines = CubicSmoothingSpline.createSplines(
+				trim( arcLength, n ),
+				new double[][] { trim( values[ 0 ], n ), trim( values[ 1 ], n ) },
+				null, rho );
+		this.xSpline = splines[ 0 ];
+		this.ySpline = splines[ 1 ];
+		this.length = l;
+	}
+
+	private static double[] trim( final double[] array, final int length )
+	{
+		if ( array.length == length )
+			return array;
+		final double[] trimmed = new double[ length ];
+		System.arraycopy( array, 0, trimmed, 0, length );
+		return trimmed;
+	}
+
+	/**
+	 * Returns the spline of the x coordinate, as a function of the arc
+	 * length.
+	 */
+	public CubicSmoothingSpline getXSpline()
+	{
+		return xSpline;
+	}
+
+	/**
+	 * Returns the spline of the y coordinate, as a function of the arc
+	 * length.
+	 */
+	public CubicSmoothingSpline getYSpline()
+	{
+		return ySpline;
+	}
+
+	/**
+	 * Returns the length of the polyline through the points.
+	 */
+	public double getLength()
+	{
+		return length;
+	}
+}
@@ -25,6 +25,7 @@ package plugins.tinevez.rieszwavelets;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.SwingUtilities;
 
@@ -36,6 +37,8 @@ import icy.main.Icy;
 import icy.preferences.ApplicationPreferences;
 import icy.preferences.GeneralPreferences;
 import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
 import plugins.nchenouard.isotropicwavelets.IsotropicWaveletType;
 
 public class KymographSeparator
@@ -43,12 +46,33 @@ public class KymographSeparator
 
 	public static Sequence[] separateKymograph( final Sequence kymographSeq )
 	{
+		return separateKymograph( kymographSeq, DataType.DOUBLE );
+	}
+
+	/**
+	 * Separates the anterograde and retrograde traces of a kymograph.
+	 * Computations are done in double precision, and the output images are
+	 * converted to the specified data type. The filtered kymograph has
+	 * negative values, so it is stored as floats when the specified data type
+	 * is an integer type; the anterograde and retrograde kymographs are
+	 * offset to be positive.
+	 *
+	 * @param kymographSeq
+	 *            the kymograph to separate.
+	 * @param dataType
+	 *            the data type of the output kymographs. If <code>null</code>,
+	 *            the data type of the input kymograph is used.
+	 * @return the filtered, anterograde and retrograde kymographs.
+	 */
+	public static Sequence[] separateKymograph( final Sequence kymographSeq, final DataType dataType )
+	{
+		final DataType outputType = ( dataType == null ) ? kymographSeq.getDataType_() : dataType;
+
 		// separate anterograde and retrograde traces
 
 		// compute the Simoncelli's wavelet representation of the sequence
 		final int height = kymographSeq.getSizeY();
 		final int width = kymographSeq.getSizeX();
-		final boolean isRealImage = true;
 		// Wavelets
 		final int numScales = 4;
 		final boolean prefilter = false;
@@ -56,34 +80,69 @@ public class KymographSeparator
 		// Riesz transform
 		final int order = 6;
 		final HarmonicTypes harmonicType = HarmonicTypes.even;
-		final boolean prepareRieszFilters = true;
+		final StandardRieszFrames frameType = StandardRieszFrames.Simoncelli;
 
-		final RieszWaveletConfig config = new RieszWaveletConfig(
+		// the filter bank is shared by all the images of the same size
+		final RieszFilterBankCache.FilterBank filterBank = RieszFilterBankCache.getInstance().get(
 				width, height,
-				isRealImage,
 				numScales,
 				waveletType,
 				prefilter,
-				prepareRieszFilters,
 				order,
 				harmonicType,
+				frameType,
 				false );
-		final ArrayList< RieszConfig > rieszConfigList = config.getRieszConfigurations();
+		final RieszWaveletConfig config = filterBank.getConfig();
+		final ArrayList< RieszGeneralization > generalizationList = filterBank.getGeneralizations();
+
+		// apply the riesz transforms to the wavelet scales, sharing the
+		// filter bank between all the channels
+		final int sizeC = kymographSeq.getSizeC();
+		final double[][] filtered = new double[ sizeC ][];
+		final double[][] antero = new double[ sizeC ][];
+		final double[][] retro = new double[ sizeC ][];
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			final double[][] separated = separateChannel( kymographSeq.getDataXYAsDouble( 0, 0, c ), width, height, config, generalizationList );
+			filtered[ c ] = separated[ 0 ];
+			antero[ c ] = separated[ 1 ];
+			retro[ c ] = separated[ 2 ];
+		}
+
+		final Sequence filteredSeq = new Sequence();
+		final DataType filteredType = outputType.isFloat() ? outputType : DataType.FLOAT;
+		filteredSeq.addImage( 0, createImage( filtered, width, height, filteredType ) );
+		final Sequence anteroSeq = new Sequence();
+		anteroSeq.addImage( 0, createImage( antero, width, height, outputType ) );
+		final Sequence retroSeq = new Sequence();
+		retroSeq.addImage( 0, createImage( retro, width, height, outputType ) );
 
-		// compute generalization
-		final ArrayList< RieszGeneralization > generalizationList = new ArrayList< RieszGeneralization >();
-		for ( int i = 0; i < numScales; i++ )
+		final Sequence[] out = new Sequence[] { filteredSeq, anteroSeq, retroSeq };
+		for ( final Sequence sequence : out )
 		{
-			final RieszGeneralization rieszGeneralization = new RieszGeneralization(
-					StandardRieszFrames.Simoncelli, rieszConfigList.get( i ) );
-			generalizationList.add( rieszGeneralization );
+			// Set metadata.
+			sequence.setPixelSizeX( kymographSeq.getPixelSizeX() );
+			sequence.setPixelSizeY( kymographSeq.getPixelSizeY() );
+			sequence.setTimeInterval( kymographSeq.getTimeInterval() );
+			for ( int c = 0; c < sizeC; c++ )
+				sequence.setChannelName( c, kymographSeq.getChannelName( c ) );
 		}
+		return out;
+	}
 
-		// apply the riesz transforms to the wavelet scales
-		final double[] image = kymographSeq.getDataXYAsDouble( 0, 0, 0 );
+	/**
+	 * Separates the anterograde and retrograde traces of one channel of a
+	 * kymograph.
+	 *
+	 * @return the filtered, anterograde and retrograde images.
+	 */
+	private static double[][] separateChannel( final double[] image, final int width, final int height, final RieszWaveletConfig config, final ArrayList< RieszGeneralization > generalizationList )
+	{
+		// scales and bands are processed on the common pool
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
 		final RieszWaveletCoefficients anteroCoefficients = config.multiscaleRieszAnalysisInFourier(
 				image, width, height,
-				generalizationList );
+				generalizationList, pool );
 
 		final ArrayList< double[][] > retroBands = new ArrayList< double[][] >( anteroCoefficients.getNumScales() );
 		for ( int i = 0; i < anteroCoefficients.getNumScales(); i++ )
@@ -126,8 +185,7 @@ public class KymographSeparator
 			retroLPResidual[ k ] = 0.;
 
 		// reconstruct image from coefficients
-		final Sequence retroSeq = new Sequence();
-		final double[] reconstructedImage = config.multiscaleRieszSynthesisInFourier( retroCoefficients, width, height );
+		final double[] reconstructedImage = config.multiscaleRieszSynthesisInFourier( retroCoefficients, width, height, pool );
 
 		// Ensure the image does not have negative pixels.
 		double minRetro = Double.POSITIVE_INFINITY;
@@ -139,7 +197,6 @@ public class KymographSeparator
 			final double d = reconstructedImage[ i ];
 			reconstructedImage[ i ] = d - minRetro + Float.MIN_NORMAL;
 		}
-		retroSeq.addImage( 0, new IcyBufferedImage( width, height, reconstructedImage ) );
 
 		for ( int i = 0; i < anteroCoefficients.getNumScales(); i++ )
 		{
@@ -159,8 +216,7 @@ public class KymographSeparator
 		for ( int k = 0; k < anteroLPresidual.length; k++ )
 			anteroLPresidual[ k ] = 0.;
 
-		final Sequence anteroSeq = new Sequence();
-		final double[] reconstructedImage2 = config.multiscaleRieszSynthesisInFourier( anteroCoefficients, width, height );
+		final double[] reconstructedImage2 = config.multiscaleRieszSynthesisInFourier( anteroCoefficients, width, height, pool );
 
 		// Ensure the image does not have negative pixels.
 		double minAntero = Double.POSITIVE_INFINITY;
@@ -172,7 +228,6 @@ public class KymographSeparator
 			final double d = reconstructedImage2[ i ];
 			reconstructedImage2[ i ] = d - minAntero + Float.MIN_NORMAL;
 		}
-		anteroSeq.addImage( 0, new IcyBufferedImage( width, height, reconstructedImage2 ) );
 
 
 		// Generate filtered kymograph
@@ -185,19 +240,32 @@ public class KymographSeparator
 					anteroCoeffs[ j ][ k ] = retroCoeffs[ j ][ k ];
 		}
 
-		final Sequence filteredSeq = new Sequence();
-		final double[] reconstructedImage3 = config.multiscaleRieszSynthesisInFourier( anteroCoefficients, width, height );
-		filteredSeq.addImage( 0, new IcyBufferedImage( width, height, reconstructedImage3 ) );
+		final double[] reconstructedImage3 = config.multiscaleRieszSynthesisInFourier( anteroCoefficients, width, height, pool );
 
-		final Sequence[] out = new Sequence[] { filteredSeq, anteroSeq, retroSeq };
-		for ( final Sequence sequence : out )
+		return new double[][] { reconstructedImage3, reconstructedImage2, reconstructedImage };
+	}
+
+	/**
+	 * Creates an image of the specified data type from the double values of
+	 * its channels. Values are rounded to the nearest integer and clamped to
+	 * the range of integer data types.
+	 */
+	public static IcyBufferedImage createImage( final double[][] channels, final int width, final int height, final DataType dataType )
+	{
+		if ( channels.length == 1 && dataType == DataType.DOUBLE )
+			return new IcyBufferedImage( width, height, channels[ 0 ] );
+
+		final IcyBufferedImage image = new IcyBufferedImage( width, height, channels.length, dataType );
+		for ( int c = 0; c < channels.length; c++ )
 		{
-			// Set metadata.
-			sequence.setPixelSizeX( kymographSeq.getPixelSizeX() );
-			sequence.setPixelSizeY( kymographSeq.getPixelSizeY() );
-			sequence.setTimeInterval( kymographSeq.getTimeInterval() );
+			final double[] data = channels[ c ];
+			if ( !dataType.isFloat() )
+				for ( int i = 0; i < data.length; i++ )
+					data[ i ] = Math.rint( data[ i ] );
+			Array1DUtil.doubleArrayToSafeArray( data, image.getDataXY( c ), dataType.isSigned() );
 		}
-		return out;
+		image.dataChanged();
+		return image;
 	}
 
 	/*
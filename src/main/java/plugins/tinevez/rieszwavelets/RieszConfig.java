@@ -22,6 +22,12 @@ package plugins.tinevez.rieszwavelets;
  * #L%
  */
 
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
 
 /**
@@ -48,6 +54,28 @@ public class RieszConfig
 	int width; // width of the filters
 	int height; // height of the filters
 
+	/**
+	 * Minimal number of pixels of the filters for the bands to be processed in parallel
+	 * */
+	static final int PARALLEL_MIN_PIXELS = 1 << 15;
+
+	/**
+	 * FFT plan and scratch buffers of each thread, reused from one transform to the next.
+	 * FFT plans are not thread-safe, so each thread has its own. Scratch buffers are
+	 * softly referenced, so that they can be reclaimed when memory is low. The buffer of
+	 * a workspace is only used by operations that do not wait for other tasks, while its
+	 * bands are acquired for a whole transform: a thread that runs another transform
+	 * while waiting for its tasks gets new bands.
+	 * */
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>()
+	{
+		@Override
+		protected Workspace initialValue()
+		{
+			return new Workspace(width, height);
+		}
+	};
+
 	/**
 	 * Initialize the Riesz configuration object. Filters are precomputed.
 	 * 
@@ -250,61 +278,102 @@ public class RieszConfig
 	 * */
 	public double[][] analysis(double[] image, RieszGeneralization generalization, boolean inputInFourier, boolean outputInFourier)
 	{
-		double[] dataFFT;
-		if (inputInFourier)
-		{
-			dataFFT = image;
-		}
-		else
-		{
-			// compute the FFT of the image
-			dataFFT = new double[width*height*2];
-			for (int i = 0; i < (width*height); i++)
-				dataFFT[2*i] = image[i];
-			DoubleFFT_2D fft = new DoubleFFT_2D(height, width);
-			fft.complexForward(dataFFT);
-		}
-		// apply Riesz transform
-		double[][] bandFFT = new double[numChannels][width*height*2];
-		for (int i = 0; i < numChannels; i++)
+		return analysis(image, generalization, inputInFourier, outputInFourier, null);
+	}
+
+	/**
+	 * Compute generalized Riesz transform coefficients for a 2D image with input and output possibly in the Fourier domain,
+	 * processing the bands in parallel. The result does not depend on the number of threads.
+	 * @param image the 2D image to analyze as a 1D array
+	 * @param generalization the generalization based on a linear combination the circular harmonics
+	 * @param inputInFourier true if Fourier domain representation of the image is provided as input, false if it is in space domain
+	 * @param outputInFourier true if output coefficients are provided in Fourier domain, false for space domain
+	 * @param pool the pool on which to process the bands, or null to process them in the calling thread
+	 * @return a set of 2D images as 1D array, each of which corresponds to one band of the generalized Riesz transform
+	 * */
+	public double[][] analysis(double[] image, final RieszGeneralization generalization, boolean inputInFourier, boolean outputInFourier, ForkJoinPool pool)
+	{
+		if (width*height < PARALLEL_MIN_PIXELS)
+			pool = null;
+		Workspace workspace = workspaces.get();
+		double[][] scratch = workspace.acquireBands(numChannels + 1);
+		try
 		{
-			for (int t = 0; t < (width*height); t++)
+			final double[] dataFFT;
+			if (inputInFourier)
 			{
-				bandFFT[i][2*t] = dataFFT[2*t]*filters[i][2*t] - dataFFT[2*t + 1]*filters[i][2*t + 1];
-				bandFFT[i][2*t + 1] = dataFFT[2*t]*filters[i][2*t  + 1] + dataFFT[2*t + 1]*filters[i][2*t];
+				dataFFT = image;
 			}
-		}
-		// combine bands
-		bandFFT = generalization.combineBandsForwardComplex(bandFFT);
-		//generalization.printForwardMatrix();
-		if (outputInFourier)
-		{
-			return bandFFT;
-		}
-		else
-		{
-			// compute the inverse FFT of each band
-			if (generalization.realCoefficients)
+			else
 			{
-				DoubleFFT_2D fft = new DoubleFFT_2D(height, width);
-				double[][] bands = new double[bandFFT.length][width*height];
-				for (int i = 0; i < bandFFT.length; i++)
+				// compute the FFT of the image, which is real
+				dataFFT = scratch[numChannels];
+				System.arraycopy(image, 0, dataFFT, 0, width*height);
+				workspace.fft.realForwardFull(dataFFT);
+			}
+			// apply Riesz transform
+			final double[][] filteredFFT = Arrays.copyOf(scratch, numChannels);
+			parallelFor(pool, numChannels, new LoopBody()
+			{
+				@Override
+				public void run(int i)
 				{
-					fft.complexInverse(bandFFT[i], true);
-					for (int j = 0; j < width*height; j++)
+					for (int t = 0; t < (width*height); t++)
 					{
-						bands[i][j] = bandFFT[i][2*j];
+						filteredFFT[i][2*t] = dataFFT[2*t]*filters[i][2*t] - dataFFT[2*t + 1]*filters[i][2*t + 1];
+						filteredFFT[i][2*t + 1] = dataFFT[2*t]*filters[i][2*t  + 1] + dataFFT[2*t + 1]*filters[i][2*t];
 					}
 				}
-				return bands;
-			}
+			});
+			// combine bands, in place if they are only used to compute the real coefficients
+			final double[][] bandFFT;
+			if (!outputInFourier && generalization.realCoefficients)
+				bandFFT = generalization.combineBandsForwardComplex(filteredFFT, filteredFFT);
 			else
+				bandFFT = generalization.combineBandsForwardComplex(filteredFFT);
+			//generalization.printForwardMatrix();
+			if (outputInFourier)
 			{
-				DoubleFFT_2D fft = new DoubleFFT_2D(height, width);
-				for (int i = 0; i < bandFFT.length; i++)
-					fft.complexInverse(bandFFT[i], true);
 				return bandFFT;
 			}
+			else
+			{
+				// compute the inverse FFT of each band
+				if (generalization.realCoefficients)
+				{
+					// bands are real: invert them two at a time
+					final double[][] bands = new double[bandFFT.length][width*height];
+					parallelFor(pool, (bandFFT.length + 1)/2, new LoopBody()
+					{
+						@Override
+						public void run(int k)
+						{
+							int i = 2*k;
+							if (i + 1 < bandFFT.length)
+								workspaces.get().inverseReal(bandFFT[i], bandFFT[i + 1], bands[i], bands[i + 1]);
+							else
+								workspaces.get().inverseReal(bandFFT[i], null, bands[i], null);
+						}
+					});
+					return bands;
+				}
+				else
+				{
+					parallelFor(pool, bandFFT.length, new LoopBody()
+					{
+						@Override
+						public void run(int i)
+						{
+							workspaces.get().fft.complexInverse(bandFFT[i], true);
+						}
+					});
+					return bandFFT;
+				}
+			}
+		}
+		finally
+		{
+			workspace.releaseBands();
 		}
 	}
 
@@ -318,50 +387,156 @@ public class RieszConfig
 	 * */
 	public double[] synthesis(double[][] rieszBands, RieszGeneralization generalization, boolean inputInFourier, boolean outputInFourier)
 	{
-		double[][] rieszBandsFFT;
-		// project to Fourier domain
-		if (inputInFourier)
-		{
-			rieszBandsFFT = rieszBands;
-		}
-		else
+		return synthesis(rieszBands, generalization, inputInFourier, outputInFourier, null);
+	}
+
+	/**
+	 * Reconstruct a 2D image from a set of Riesz coefficients, processing the bands in parallel.
+	 * The result does not depend on the number of threads.
+	 * @param rieszBands set of Riesz coefficients
+	 * @param generalization the Riesz generalization used for computing the coefficients
+	 * @param inputInFourier true if Riesz coefficients are provided in the Fourier domain, false else.
+	 * @param outputInFourier true if the reconstructed image is to be returned in the Fourier domain, false if the space representation is returned.
+	 * @param pool the pool on which to process the bands, or null to process them in the calling thread
+	 * @return reconstructed image as a 1D array
+	 * */
+	public double[] synthesis(final double[][] rieszBands, RieszGeneralization generalization, boolean inputInFourier, boolean outputInFourier, ForkJoinPool pool)
+	{
+		if (width*height < PARALLEL_MIN_PIXELS)
+			pool = null;
+		Workspace workspace = workspaces.get();
+		double[][] scratch = workspace.acquireBands(rieszBands.length + 1);
+		try
 		{
-			rieszBandsFFT = new double[rieszBands.length][2*width*height];
-			for (int i = 0; i < rieszBands.length; i++)
+			double[][] rieszBandsFFT;
+			// project to Fourier domain
+			if (inputInFourier)
 			{
-				DoubleFFT_2D fft = new DoubleFFT_2D(height, width);
-				for (int j = 0; j < width*height; j++)
-					rieszBandsFFT[i][2*j] = rieszBands[i][j];
-				fft.complexForward(rieszBandsFFT[i]);
+				rieszBandsFFT = rieszBands;
 			}
-		}
-		// project bands with backward generalization matrix
-		rieszBandsFFT = generalization.combineBandsBackwardComplex(rieszBandsFFT);
-		// apply inverse Riesz transform
-		double[] reconstructionFFT = new double[width*height*2];
-		for (int i = 0; i < numChannels; i++)
-		{
-			for (int t = 0; t < (width*height); t++)
+			else
+			{
+				// bands are real: transform them two at a time
+				final double[][] transformed = Arrays.copyOf(scratch, rieszBands.length);
+				parallelFor(pool, (rieszBands.length + 1)/2, new LoopBody()
+				{
+					@Override
+					public void run(int k)
+					{
+						int i = 2*k;
+						if (i + 1 < rieszBands.length)
+							workspaces.get().forwardReal(rieszBands[i], rieszBands[i + 1], transformed[i], transformed[i + 1]);
+						else
+							workspaces.get().forwardReal(rieszBands[i], null, transformed[i], null);
+					}
+				});
+				rieszBandsFFT = transformed;
+			}
+			// project bands with backward generalization matrix, in place if they have been transformed
+			final double[][] combinedFFT = generalization.combineBandsBackwardComplex(rieszBandsFFT, Arrays.copyOf(scratch, rieszBands.length));
+			// apply inverse Riesz transform
+			final double[] reconstructionFFT;
+			if (outputInFourier)
+				reconstructionFFT = new double[width*height*2];
+			else
 			{
-				reconstructionFFT[2*t] += rieszBandsFFT[i][2*t]*filters[i][2*t] + rieszBandsFFT[i][2*t + 1]*filters[i][2*t + 1]; // complex conjugate filter
-				reconstructionFFT[2*t + 1] += -rieszBandsFFT[i][2*t]*filters[i][2*t  + 1] + rieszBandsFFT[i][2*t + 1]*filters[i][2*t]; // complex conjugate filter
+				reconstructionFFT = scratch[scratch.length - 1];
+				Arrays.fill(reconstructionFFT, 0);
 			}
+			// split the pixels in blocks, keeping the order of the sum over the channels
+			final int blockSize = Math.max(1024, (width*height + 63)/64);
+			parallelFor(pool, (width*height + blockSize - 1)/blockSize, new LoopBody()
+			{
+				@Override
+				public void run(int k)
+				{
+					int end = Math.min(width*height, (k + 1)*blockSize);
+					for (int i = 0; i < numChannels; i++)
+					{
+						for (int t = k*blockSize; t < end; t++)
+						{
+							reconstructionFFT[2*t] += combinedFFT[i][2*t]*filters[i][2*t] + combinedFFT[i][2*t + 1]*filters[i][2*t + 1]; // complex conjugate filter
+							reconstructionFFT[2*t + 1] += -combinedFFT[i][2*t]*filters[i][2*t  + 1] + combinedFFT[i][2*t + 1]*filters[i][2*t]; // complex conjugate filter
+						}
+					}
+				}
+			});
+			double[] reconstruction;
+			// project to Fourier domain
+			if (outputInFourier)
+			{
+				reconstruction = reconstructionFFT;
+			}
+			else
+			{
+				workspace.fft.complexInverse(reconstructionFFT, true);
+				reconstruction = new double[width*height];
+				for (int t = 0; t < (width*height); t++)
+					reconstruction[t] = reconstructionFFT[2*t];
+			}
+			return reconstruction;
+		}
+		finally
+		{
+			workspace.releaseBands();
 		}
-		double[] reconstruction;
-		// project to Fourier domain
-		if (outputInFourier)
+	}
+
+	/**
+	 * Body of a loop run by {@link RieszConfig#parallelFor(ForkJoinPool, int, LoopBody)}
+	 * */
+	interface LoopBody
+	{
+		void run(int i);
+	}
+
+	/**
+	 * Run the iterations 0 to n - 1 of a loop, in parallel if a pool is given. Iterations must be
+	 * independent of each other.
+	 * @param pool the pool on which to run the iterations, or null to run them in the calling thread
+	 * @param n number of iterations
+	 * @param body body of the loop
+	 * */
+	static void parallelFor(ForkJoinPool pool, int n, LoopBody body)
+	{
+		if (pool == null || n < 2)
 		{
-			reconstruction = reconstructionFFT;
+			for (int i = 0; i < n; i++)
+				body.run(i);
+			return;
 		}
+		LoopTask task = new LoopTask(body, 0, n);
+		if (ForkJoinTask.inForkJoinPool())
+			task.invoke();
 		else
+			pool.invoke(task);
+	}
+
+	private static class LoopTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		final LoopBody body;
+		final int start;
+		final int end;
+
+		LoopTask(LoopBody body, int start, int end)
 		{
-			DoubleFFT_2D fft = new DoubleFFT_2D(height, width);
-			fft.complexInverse(reconstructionFFT, true);
-			reconstruction = new double[width*height];
-			for (int t = 0; t < (width*height); t++)
-				reconstruction[t] = reconstructionFFT[2*t];
+			this.body = body;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start == 1)
+			{
+				body.run(start);
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new LoopTask(body, start, middle), new LoopTask(body, middle, end));
 		}
-		return reconstruction;
 	}
 
 	/**
@@ -382,7 +557,7 @@ public class RieszConfig
 				for (int j = 0; j < rieszBands[i].length; j++)
 					complexBands[i][2*j] = rieszBands[i][j];
 			}
-			complexBands = generalization.combineBandsBackwardComplex(complexBands);
+			generalization.combineBandsBackwardComplex(complexBands, complexBands);
 			// steer coefficients
 			double c, s, r, i;
 			for (int b = 0; b < complexBands.length; b++)
@@ -411,14 +586,14 @@ public class RieszConfig
 					}
 			}
 			// project bands with backward generalization matrix
-			complexBands = generalization.combineBandsForwardComplex(complexBands);
+			generalization.combineBandsForwardComplex(complexBands, complexBands);
 			for (int b = 0; b < rieszBands.length; b++)
 				for (int k = 0; k < rieszBands[b].length; k++)
 					rieszBands[b][k] = complexBands[b][2*k];
 		}
 		else
 		{
-			rieszBands = generalization.combineBandsBackwardComplex(rieszBands);
+			generalization.combineBandsBackwardComplex(rieszBands, rieszBands);
 			// steer coefficients
 			double c, s, r, i;
 			for (int b = 0; b < rieszBands.length; b++)
@@ -446,10 +621,150 @@ public class RieszConfig
 						rieszBands[b][2*k + 1] = r*s + i*c;
 					}
 			}	
-			double[][] combinedBands = generalization.combineBandsForwardComplex(rieszBands);
-			for (int b = 0; b < rieszBands.length; b++)
-				rieszBands[b] = combinedBands[b];
+			generalization.combineBandsForwardComplex(rieszBands, rieszBands);
 
 		}		
 	}
+
+	/**
+	 * FFT plan and scratch buffers of one thread for filters of a given size
+	 * */
+	static class Workspace
+	{
+		final int width;
+		final int height;
+		final DoubleFFT_2D fft;
+		SoftReference<double[]> buffer = new SoftReference<double[]>(null);
+		SoftReference<double[][]> bands = new SoftReference<double[][]>(null);
+		int bandsDepth = 0;
+
+		Workspace(int width, int height)
+		{
+			this.width = width;
+			this.height = height;
+			this.fft = new DoubleFFT_2D(height, width);
+		}
+
+		/**
+		 * Get a scratch buffer for one complex image
+		 * @return an array of length 2*width*height, with unspecified content
+		 * */
+		double[] getBuffer()
+		{
+			double[] b = buffer.get();
+			if (b == null)
+			{
+				b = new double[2*width*height];
+				buffer = new SoftReference<double[]>(b);
+			}
+			return b;
+		}
+
+		/**
+		 * Acquire scratch buffers for complex bands, until {@link #releaseBands()} is called.
+		 * If they are already acquired by a transform running in the same thread, new
+		 * buffers are returned.
+		 * @param numBands number of bands
+		 * @return an array of numBands arrays of length 2*width*height, with unspecified content
+		 * */
+		double[][] acquireBands(int numBands)
+		{
+			bandsDepth++;
+			if (bandsDepth > 1)
+				return new double[numBands][2*width*height];
+			double[][] b = bands.get();
+			if (b == null || b.length < numBands)
+			{
+				b = new double[numBands][2*width*height];
+				bands = new SoftReference<double[][]>(b);
+			}
+			if (b.length == numBands)
+				return b;
+			return Arrays.copyOf(b, numBands);
+		}
+
+		void releaseBands()
+		{
+			bandsDepth--;
+		}
+
+		/**
+		 * Compute the FFT of one or two real images at once. The images are transformed as the
+		 * real and imaginary parts of one complex image, and their spectra are separated using
+		 * the Hermitian symmetry of the spectrum of a real image.
+		 * @param a first real image
+		 * @param b second real image, or null
+		 * @param aFFT array to store the spectrum of a, of length 2*width*height
+		 * @param bFFT array to store the spectrum of b, of length 2*width*height, or null
+		 * */
+		void forwardReal(double[] a, double[] b, double[] aFFT, double[] bFFT)
+		{
+			double[] z = getBuffer();
+			for (int j = 0; j < width*height; j++)
+			{
+				z[2*j] = a[j];
+				z[2*j + 1] = (b == null) ? 0 : b[j];
+			}
+			fft.complexForward(z);
+			for (int y = 0; y < height; y++)
+			{
+				int my = (height - y) % height;
+				for (int x = 0; x < width; x++)
+				{
+					int t = 2*(x + y*width);
+					int m = 2*((width - x) % width + my*width);
+					// A = (Z + conj(Z(-k)))/2, B = (Z - conj(Z(-k)))/2i
+					aFFT[t] = 0.5*(z[t] + z[m]);
+					aFFT[t + 1] = 0.5*(z[t + 1] - z[m + 1]);
+					if (bFFT != null)
+					{
+						bFFT[t] = 0.5*(z[t + 1] + z[m + 1]);
+						bFFT[t + 1] = 0.5*(z[m] - z[t]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Compute the real part of the inverse FFT of one or two spectra at once. The Hermitian
+		 * parts of the spectra are combined in one complex spectrum whose inverse FFT has the
+		 * first image as real part and the second one as imaginary part.
+		 * @param aFFT first spectrum, of length 2*width*height
+		 * @param bFFT second spectrum, of length 2*width*height, or null
+		 * @param a array to store the real part of the inverse FFT of aFFT
+		 * @param b array to store the real part of the inverse FFT of bFFT, or null
+		 * */
+		void inverseReal(double[] aFFT, double[] bFFT, double[] a, double[] b)
+		{
+			double[] z = getBuffer();
+			for (int y = 0; y < height; y++)
+			{
+				int my = (height - y) % height;
+				for (int x = 0; x < width; x++)
+				{
+					int t = 2*(x + y*width);
+					int m = 2*((width - x) % width + my*width);
+					// Z = herm(A) + i herm(B), with herm(A) = (A + conj(A(-k)))/2
+					double ar = 0.5*(aFFT[t] + aFFT[m]);
+					double ai = 0.5*(aFFT[t + 1] - aFFT[m + 1]);
+					double br = 0;
+					double bi = 0;
+					if (bFFT != null)
+					{
+						br = 0.5*(bFFT[t] + bFFT[m]);
+						bi = 0.5*(bFFT[t + 1] - bFFT[m + 1]);
+					}
+					z[t] = ar - bi;
+					z[t + 1] = ai + br;
+				}
+			}
+			fft.complexInverse(z, true);
+			for (int j = 0; j < width*height; j++)
+			{
+				a[j] = z[2*j];
+				if (b != null)
+					b[j] = z[2*j + 1];
+			}
+		}
+	}
 }
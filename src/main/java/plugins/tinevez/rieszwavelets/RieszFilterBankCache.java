@@ -0,0 +1,255 @@
+package plugins.tinevez.rieszwavelets;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import plugins.nchenouard.isotropicwavelets.IsotropicWaveletType;
+
+/**
+ * Process-wide cache of Riesz-wavelet filter banks: the
+ * {@link RieszWaveletConfig}, with its Riesz filters prepared for each scale,
+ * and the {@link RieszGeneralization} of each scale. Building them costs a
+ * few full-size arrays per scale, which dominates the separation of small
+ * kymographs; kymographs of the same size share the same filter bank.
+ * <p>
+ * Filter banks are only read by the analysis and the synthesis, so they can
+ * be shared between threads. The cache is bounded by the memory taken by the
+ * Riesz filters, the least recently used filter banks being evicted first.
+ * Filter banks larger than the bound are built but not cached.
+ */
+public class RieszFilterBankCache
+{
+
+	private static final RieszFilterBankCache INSTANCE = new RieszFilterBankCache( Runtime.getRuntime().maxMemory() / 16 );
+
+	public static RieszFilterBankCache getInstance()
+	{
+		return INSTANCE;
+	}
+
+	private final LinkedHashMap< Key, FilterBank > filterBanks = new LinkedHashMap< Key, FilterBank >( 16, 0.75f, true );
+
+	private long maxBytes;
+
+	private long bytes = 0;
+
+	/**
+	 * @param maxBytes
+	 *            the maximal memory taken by the cached Riesz filters, in
+	 *            bytes.
+	 */
+	public RieszFilterBankCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the filter bank for images of the specified size, building it
+	 * if it is not cached. The Riesz filters are prepared for each scale, and
+	 * the images are real.
+	 */
+	public FilterBank get( final int width, final int height, final int numScales, final IsotropicWaveletType waveletType, final boolean prefilter, final int order, final HarmonicTypes harmonicType, final StandardRieszFrames frameType, final boolean isotropicPadding )
+	{
+		final Key key = new Key( width, height, numScales, waveletType, prefilter, order, harmonicType, frameType, isotropicPadding );
+		synchronized ( this )
+		{
+			final FilterBank filterBank = filterBanks.get( key );
+			if ( filterBank != null )
+				return filterBank;
+		}
+
+		// Build outside of the lock, so that other sizes can still be read.
+		final FilterBank filterBank = new FilterBank( key );
+		synchronized ( this )
+		{
+			final FilterBank other = filterBanks.get( key );
+			if ( other != null )
+				return other;
+			if ( filterBank.bytes <= maxBytes )
+			{
+				filterBanks.put( key, filterBank );
+				bytes += filterBank.bytes;
+				evict();
+			}
+		}
+		return filterBank;
+	}
+
+	/**
+	 * Removes the least recently used filter banks until the cache is within
+	 * its bound.
+	 */
+	private void evict()
+	{
+		for ( final Iterator< FilterBank > it = filterBanks.values().iterator(); it.hasNext() && bytes > maxBytes; )
+		{
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the memory taken by the cached Riesz filters, in bytes.
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public synchronized int size()
+	{
+		return filterBanks.size();
+	}
+
+	public synchronized void clear()
+	{
+		filterBanks.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Riesz-wavelet configuration and generalizations of each scale, shared
+	 * by all the images of the same size.
+	 */
+	public static class FilterBank
+	{
+		private final RieszWaveletConfig config;
+
+		private final ArrayList< RieszGeneralization > generalizations;
+
+		private final long bytes;
+
+		private FilterBank( final Key key )
+		{
+			config = new RieszWaveletConfig( key.width, key.height, true, key.numScales, key.waveletType, key.prefilter, true, key.order, key.harmonicType, key.isotropicPadding );
+			generalizations = new ArrayList< RieszGeneralization >( key.numScales );
+			long b = 0;
+			for ( final RieszConfig rieszConfig : config.rieszConfigList )
+			{
+				generalizations.add( new RieszGeneralization( key.frameType, rieszConfig ) );
+				for ( final double[] filter : rieszConfig.filters )
+					b += 8l * filter.length;
+			}
+			bytes = b;
+		}
+
+		public RieszWaveletConfig getConfig()
+		{
+			return config;
+		}
+
+		/**
+		 * Returns the generalization of each scale, in a new list.
+		 */
+		public ArrayList< RieszGeneralization > getGeneralizations()
+		{
+			return new ArrayList< RieszGeneralization >( generalizations );
+		}
+	}
+
+	private static class Key
+	{
+		final int width;
+
+		final int height;
+
+		final int numScales;
+
+		final IsotropicWaveletType waveletType;
+
+		final boolean prefilter;
+
+		final int order;
+
+		final HarmonicTypes harmonicType;
+
+		final StandardRieszFrames frameType;
+
+		final boolean isotropicPadding;
+
+		private final int hash;
+
+		Key( final int width, final int height, final int numScales, final IsotropicWaveletType waveletType, final boolean prefilter, final int order, final HarmonicTypes harmonicType, final StandardRieszFrames frameType, final boolean isotropicPadding )
+		{
+			this.width = width;
+			this.height = height;
+			this.numScales = numScales;
+			this.waveletType = waveletType;
+			this.prefilter = prefilter;
+			this.order = order;
+			this.harmonicType = harmonicType;
+			this.frameType = frameType;
+			this.isotropicPadding = isotropicPadding;
+
+			int h = width;
+			h = 31 * h + height;
+			h = 31 * h + numScales;
+			h = 31 * h + waveletType.hashCode();
+			h = 31 * h + ( prefilter ? 1 : 0 );
+			h = 31 * h + order;
+			h = 31 * h + harmonicType.hashCode();
+			h = 31 * h + frameType.hashCode();
+			h = 31 * h + ( isotropicPadding ? 1 : 0 );
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return width == other.width
+					&& height == other.height
+					&& numScales == other.numScales
+					&& waveletType == other.waveletType
+					&& prefilter == other.prefilter
+					&& order == other.order
+					&& harmonicType == other.harmonicType
+					&& frameType == other.frameType
+					&& isotropicPadding == other.isotropicPadding;
+		}
+	}
+}
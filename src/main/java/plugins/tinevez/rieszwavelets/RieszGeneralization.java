@@ -23,6 +23,7 @@ package plugins.tinevez.rieszwavelets;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 /**
@@ -46,6 +47,11 @@ public class RieszGeneralization
 	double[][] weightMatrixBackward; // weight of the linear combination of Riesz bands for the backward transform	
 	boolean realCoefficients; // true if coefficients are real for a real input, false otherwise
 
+	/**
+	 * Number of coefficients combined at a time, small enough for the coefficients of all the bands to stay in cache
+	 * */
+	static final int COMBINE_BLOCK_SIZE = 256;
+
 	/**
 	 * Initialize the Riesz generalization based on a standard Riesz frame and a given configuration of the Riesz transform
 	 * @param frameType standard generalization for the Riesz transform
@@ -549,7 +555,19 @@ public class RieszGeneralization
 	 * */
 	public double[][] combineBandsForwardComplex(double[][] bands)
 	{
-		return combineBandsComplex(bands, weightMatrixForward);
+		return combineBandsComplex(bands, weightMatrixForward, null);
+	}
+
+	/**
+	 * Combine Riesz coefficients in the Fourier domain according to the forward generalization matrix
+	 * @param bands Riesz coefficients in the Fourier domain. One subarray per band.
+	 * @param output arrays in which to store the combined coefficients, see {@link #combineBandsComplex(double[][], double[][], double[][])}
+	 * @return combined Riesz coefficients in the Fourier domain
+	 * 
+	 * */
+	public double[][] combineBandsForwardComplex(double[][] bands, double[][] output)
+	{
+		return combineBandsComplex(bands, weightMatrixForward, output);
 	}
 
 	/**
@@ -560,7 +578,19 @@ public class RieszGeneralization
 	 * */
 	public double[][] combineBandsBackwardComplex(double[][] bands)
 	{
-		return combineBandsComplex(bands, weightMatrixBackward);
+		return combineBandsComplex(bands, weightMatrixBackward, null);
+	}
+
+	/**
+	 * Combine Riesz coefficients in the Fourier domain according to the backward generalization matrix
+	 * @param bands Riesz coefficients in the Fourier domain. One subarray per band.
+	 * @param output arrays in which to store the combined coefficients, see {@link #combineBandsComplex(double[][], double[][], double[][])}
+	 * @return combined Riesz coefficients in the Fourier domain
+	 * 
+	 * */
+	public double[][] combineBandsBackwardComplex(double[][] bands, double[][] output)
+	{
+		return combineBandsComplex(bands, weightMatrixBackward, output);
 	}
 
 	/**
@@ -571,26 +601,118 @@ public class RieszGeneralization
 	 * 
 	 * */
 	public double[][] combineBandsComplex(double[][] bands, double[][] weightMatrix)
+	{
+		return combineBandsComplex(bands, weightMatrix, null);
+	}
+
+	/**
+	 * Combine Riesz coefficients in the Fourier domain according to a given mixing matrix.
+	 * Coefficients are combined by blocks, whose real and imaginary parts are first copied to separate arrays,
+	 * so that the sums over the bands run over contiguous arrays. Diagonal matrices only scale each band.
+	 * @param bands Riesz coefficients in the Fourier domain. One subarray per band.
+	 * @param weightMatrix matrix defining weights for the linear combination of Riesz bands
+	 * @param output arrays in which to store the combined coefficients, of the length of the bands, or null to allocate them.
+	 * Null subarrays are allocated. The bands themselves can be given, for the coefficients to be combined in place.
+	 * @return combined Riesz coefficients in the Fourier domain
+	 * 
+	 * */
+	public double[][] combineBandsComplex(double[][] bands, double[][] weightMatrix, double[][] output)
 	{
 		int numCoefficients = bands[0].length/2;
-		double[][] projectedBands = new double[weightMatrix[0].length/2][numCoefficients*2];
-		for (int i = 0; i < projectedBands.length; i++)
+		int numOutputs = weightMatrix[0].length/2;
+		double[][] projectedBands = (output == null) ? new double[numOutputs][] : output;
+		for (int i = 0; i < numOutputs; i++)
+			if (projectedBands[i] == null)
+				projectedBands[i] = new double[numCoefficients*2];
+
+		if (isDiagonal(weightMatrix, bands.length))
 		{
-			for (int t = 0; t < numCoefficients; t++ )
+			// each band is only scaled
+			for (int i = 0; i < numOutputs; i++)
 			{
-				double val = 0;
-				for (int j = 0; j < bands.length; j++)
-					val += bands[j][2*t]*weightMatrix[j][2*i] - bands[j][2*t + 1]*weightMatrix[j][2*i + 1];
-				projectedBands[i][2*t] = val;
-				val = 0;
-				for (int j = 0; j < bands.length; j++)
-					val += bands[j][2*t]*weightMatrix[j][2*i + 1] + bands[j][2*t + 1]*weightMatrix[j][2*i];
-				projectedBands[i][2*t + 1] = val;
+				double wr = weightMatrix[i][2*i];
+				double wi = weightMatrix[i][2*i + 1];
+				double[] band = bands[i];
+				double[] projectedBand = projectedBands[i];
+				if (wr == 1 && wi == 0)
+				{
+					if (projectedBand != band)
+						System.arraycopy(band, 0, projectedBand, 0, numCoefficients*2);
+					continue;
+				}
+				for (int t = 0; t < numCoefficients; t++)
+				{
+					double re = band[2*t];
+					double im = band[2*t + 1];
+					projectedBand[2*t] = re*wr - im*wi;
+					projectedBand[2*t + 1] = re*wi + im*wr;
+				}
+			}
+			return projectedBands;
+		}
 
+		double[][] blockRe = new double[bands.length][COMBINE_BLOCK_SIZE];
+		double[][] blockIm = new double[bands.length][COMBINE_BLOCK_SIZE];
+		double[] sumRe = new double[COMBINE_BLOCK_SIZE];
+		double[] sumIm = new double[COMBINE_BLOCK_SIZE];
+		for (int start = 0; start < numCoefficients; start += COMBINE_BLOCK_SIZE)
+		{
+			int blockSize = Math.min(COMBINE_BLOCK_SIZE, numCoefficients - start);
+			// read the whole block before writing it, for the bands to be combined in place
+			for (int j = 0; j < bands.length; j++)
+			{
+				double[] band = bands[j];
+				double[] re = blockRe[j];
+				double[] im = blockIm[j];
+				for (int t = 0; t < blockSize; t++)
+				{
+					re[t] = band[2*(start + t)];
+					im[t] = band[2*(start + t) + 1];
+				}
+			}
+			for (int i = 0; i < numOutputs; i++)
+			{
+				Arrays.fill(sumRe, 0, blockSize, 0);
+				Arrays.fill(sumIm, 0, blockSize, 0);
+				for (int j = 0; j < bands.length; j++)
+				{
+					double wr = weightMatrix[j][2*i];
+					double wi = weightMatrix[j][2*i + 1];
+					double[] re = blockRe[j];
+					double[] im = blockIm[j];
+					for (int t = 0; t < blockSize; t++)
+					{
+						sumRe[t] += re[t]*wr - im[t]*wi;
+						sumIm[t] += re[t]*wi + im[t]*wr;
+					}
+				}
+				double[] projectedBand = projectedBands[i];
+				for (int t = 0; t < blockSize; t++)
+				{
+					projectedBand[2*(start + t)] = sumRe[t];
+					projectedBand[2*(start + t) + 1] = sumIm[t];
+				}
 			}
 		}
 		return projectedBands;
 	}
+
+	/**
+	 * Check whether a mixing matrix combines each band with itself only
+	 * @param weightMatrix matrix defining weights for the linear combination of Riesz bands
+	 * @param numBands number of bands to combine
+	 * @return true if the matrix is square and its off-diagonal weights are 0
+	 * */
+	static boolean isDiagonal(double[][] weightMatrix, int numBands)
+	{
+		if (weightMatrix.length != numBands || weightMatrix[0].length != 2*numBands)
+			return false;
+		for (int j = 0; j < numBands; j++)
+			for (int i = 0; i < numBands; i++)
+				if (i != j && (weightMatrix[j][2*i] != 0 || weightMatrix[j][2*i + 1] != 0))
+					return false;
+		return true;
+	}
 	
 	/**
 	 * Get the standard Riesz generalization
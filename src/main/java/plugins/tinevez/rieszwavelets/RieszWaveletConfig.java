@@ -27,6 +27,8 @@ import icy.main.Icy;
 import icy.sequence.Sequence;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import plugins.nchenouard.isotropicwavelets.IsotropicWaveletTransform;
 import plugins.nchenouard.isotropicwavelets.IsotropicWaveletType;
@@ -174,19 +176,38 @@ public class RieszWaveletConfig
 	 * @return set of Riesz-wavelet coefficients
 	 * */
 	public RieszWaveletCoefficients multiscaleRieszAnalysisInFourier(double[] image, int width, int height, ArrayList<RieszGeneralization> generalizationList)
+	{
+		return multiscaleRieszAnalysisInFourier(image, width, height, generalizationList, null);
+	}
+
+	/**
+	 * Perform generalized Riesz-wavelet analysis of a 2D image in the Fourier domain,
+	 * processing the scales and their bands in parallel. The result does not depend on the number of threads.
+	 * @param image Fourier representation of the 2D image to analyze
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param generalizationList Riesz generalization configuration for each wavelet scale
+	 * @param pool the pool on which to process the scales, or null to process them in the calling thread
+	 * @return set of Riesz-wavelet coefficients
+	 * */
+	public RieszWaveletCoefficients multiscaleRieszAnalysisInFourier(double[] image, int width, int height, final ArrayList<RieszGeneralization> generalizationList, final ForkJoinPool pool)
 	{
 		// perform wavelet analysis first
-		WaveletAnalysisResults waveletProjection = IsotropicWaveletTransform.isotropicBandlimitedAnalysis(image, width, height, waveletsConfig, true);
+		final WaveletAnalysisResults waveletProjection = IsotropicWaveletTransform.isotropicBandlimitedAnalysis(image, width, height, waveletsConfig, true);
 		// perform Riesz analysis for each scale
-		ArrayList<double[][]> coefficients = new ArrayList<double[][]>(waveletProjection.getNumScales());
-		for (int i = 0; i < waveletProjection.getNumScales(); i++)
+		final double[][][] rieszWaveletBands = new double[waveletProjection.getNumScales()][][];
+		RieszConfig.parallelFor(pool, rieszWaveletBands.length, new RieszConfig.LoopBody()
 		{
-			double[] band = waveletProjection.getWaveletBand(i);
-			RieszConfig rieszConfig = rieszConfigList.get(i);
-			RieszGeneralization generalization = generalizationList.get(i);
-			double[][] rieszWaveletBand = rieszConfig.analysis(band, generalization, true, false);
-			coefficients.add(rieszWaveletBand);
-		}
+			@Override
+			public void run(int i)
+			{
+				double[] band = waveletProjection.getWaveletBand(i);
+				RieszConfig rieszConfig = rieszConfigList.get(i);
+				RieszGeneralization generalization = generalizationList.get(i);
+				rieszWaveletBands[i] = rieszConfig.analysis(band, generalization, true, false, pool);
+			}
+		});
+		ArrayList<double[][]> coefficients = new ArrayList<double[][]>(Arrays.asList(rieszWaveletBands));
 		return new RieszWaveletCoefficients(this, generalizationList, coefficients, waveletProjection.getHPResidual(), waveletProjection.getLPResidual(), waveletProjection.getPadX(), waveletProjection.getPadY());
 	}
 
@@ -199,20 +220,38 @@ public class RieszWaveletConfig
 	 */	
 	public double[] multiscaleRieszSynthesisInFourier(RieszWaveletCoefficients coefficients, int width, int height)
 	{
-		double[][] waveletBands = new double[coefficients.getNumScales()][];
+		return multiscaleRieszSynthesisInFourier(coefficients, width, height, null);
+	}
+
+	/**
+	 * Synthesize a 2D image from as set of Riesz-wavelet coefficients, processing the scales
+	 * and their bands in parallel. The result does not depend on the number of threads.
+	 * @param coefficients the Riesz-wavelet coefficients
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param pool the pool on which to process the scales, or null to process them in the calling thread
+	 * @return the 2D image as a <code>double[]</code> array
+	 */
+	public double[] multiscaleRieszSynthesisInFourier(final RieszWaveletCoefficients coefficients, int width, int height, final ForkJoinPool pool)
+	{
+		final double[][] waveletBands = new double[coefficients.getNumScales()][];
 		double[] lpResidual = coefficients.getLPResidual();
 		double[] hpResidual = coefficients.getHPResidual();
 		
-		for (int i = 0; i < this.getNumScales(); i++)
+		RieszConfig.parallelFor(pool, this.getNumScales(), new RieszConfig.LoopBody()
 		{
-			double[][] rieszBands = coefficients.getRieszBandsAtScale(i);
-			RieszConfig rieszConfig = rieszConfigList.get(i);
-			RieszGeneralization generalization = coefficients.generalizationList.get(i);
-			waveletBands[i] = rieszConfig.synthesis(rieszBands, generalization, false, true);
-//			Sequence seq = new Sequence("scale "+i);
-//			seq.addImage(0, new IcyBufferedImage(rieszConfig.width, rieszConfig.height, waveletBands[i]));
-//			Icy.getMainInterface().addSequence(seq);
-		}
+			@Override
+			public void run(int i)
+			{
+				double[][] rieszBands = coefficients.getRieszBandsAtScale(i);
+				RieszConfig rieszConfig = rieszConfigList.get(i);
+				RieszGeneralization generalization = coefficients.generalizationList.get(i);
+				waveletBands[i] = rieszConfig.synthesis(rieszBands, generalization, false, true, pool);
+//				Sequence seq = new Sequence("scale "+i);
+//				seq.addImage(0, new IcyBufferedImage(rieszConfig.width, rieszConfig.height, waveletBands[i]));
+//				Icy.getMainInterface().addSequence(seq);
+			}
+		});
 		WaveletAnalysisResults waveletCoefficients = new WaveletAnalysisResults(waveletBands, lpResidual, hpResidual, coefficients.rieszWaveletConfig.waveletsConfig, true);
 		double[] reconstruction = IsotropicWaveletTransform.isotropicBandlimitedSynthesis(waveletCoefficients);
 		if (waveletCoefficients.getWaveletFilters().getHeight() > height || waveletCoefficients.getWaveletFilters().getWidth() > width)
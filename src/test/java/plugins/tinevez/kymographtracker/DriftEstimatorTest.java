@@ -0,0 +1,110 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+public class DriftEstimatorTest
+{
+
+	/**
+	 * Creates a sequence of a few Gaussian spots, translated in each frame by
+	 * the specified shifts.
+	 */
+	private static Sequence createSequence( final int width, final int height, final double[][] shifts )
+	{
+		final Random random = new Random( 1l );
+		final double[][] spots = new double[ 12 ][];
+		for ( int k = 0; k < spots.length; k++ )
+			spots[ k ] = new double[] { width / 4 + random.nextDouble() * width / 2, height / 4 + random.nextDouble() * height / 2, 1000 + 1000 * random.nextDouble() };
+		final double sigma = Math.max( width, height ) / 40d;
+
+		final Sequence sequence = new Sequence();
+		for ( int t = 0; t < shifts.length; t++ )
+		{
+			final IcyBufferedImage image = new IcyBufferedImage( width, height, 1, DataType.USHORT );
+			final short[] data = ( short[] ) image.getDataXY( 0 );
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					double value = 100;
+					for ( final double[] spot : spots )
+					{
+						final double dx = x - spot[ 0 ] - shifts[ t ][ 0 ];
+						final double dy = y - spot[ 1 ] - shifts[ t ][ 1 ];
+						value += spot[ 2 ] * Math.exp( -( dx * dx + dy * dy ) / ( 2 * sigma * sigma ) );
+					}
+					data[ y * width + x ] = ( short ) Math.round( value );
+				}
+			}
+			sequence.setImage( t, 0, image );
+		}
+		return sequence;
+	}
+
+	private static void checkDrift( final int width, final int height, final int maxSize, final double[][] shifts, final double tolerance )
+	{
+		final Sequence sequence = createSequence( width, height, shifts );
+		final double[][] drift = new DriftEstimator( width, height, maxSize ).estimateDrift( sequence );
+		assertEquals( shifts.length, drift.length );
+		for ( int t = 0; t < shifts.length; t++ )
+		{
+			assertEquals( "dx of frame " + t, shifts[ t ][ 0 ], drift[ t ][ 0 ], tolerance );
+			assertEquals( "dy of frame " + t, shifts[ t ][ 1 ], drift[ t ][ 1 ], tolerance );
+		}
+	}
+
+	@Test
+	public void testIntegerShifts()
+	{
+		checkDrift( 64, 48, DriftEstimator.DEFAULT_MAX_SIZE, new double[][] { { 0, 0 }, { 3, -2 }, { -5, 4 }, { 0, 7 }, { 6, 0 } }, 0.25 );
+	}
+
+	@Test
+	public void testSubPixelShifts()
+	{
+		checkDrift( 64, 64, DriftEstimator.DEFAULT_MAX_SIZE, new double[][] { { 0, 0 }, { 1.5, -0.5 }, { -2.25, 3.75 } }, 0.35 );
+	}
+
+	@Test
+	public void testDownsampledFrames()
+	{
+		// Frames downsampled by 3.
+		checkDrift( 96, 72, 32, new double[][] { { 0, 0 }, { 6, -3 }, { -9, 6 }, { 4, 2 } }, 1.5 );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testRejectsOtherFrameSizes()
+	{
+		new DriftEstimator( 32, 32 ).estimateDrift( createSequence( 32, 30, new double[][] { { 0, 0 } } ) );
+	}
+}
@@ -0,0 +1,112 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import plugins.kernel.roi.roi2d.ROI2DPolyLine;
+
+public class KeyframedPathTest
+{
+
+	private static ROI2DPolyLine createSegment( final double x0, final double y0, final double x1, final double y1 )
+	{
+		return new ROI2DPolyLine( Arrays.asList( new Point2D[] { new Point2D.Double( x0, y0 ), new Point2D.Double( x1, y1 ) } ) );
+	}
+
+	private static void assertPositions( final String message, final double x0, final double dx, final double y, final ArrayList< double[] > positions )
+	{
+		for ( int j = 0; j < positions.size(); j++ )
+			assertArrayEquals( message + ", column " + j, new double[] { x0 + j * dx, y }, positions.get( j ), 1e-9 );
+	}
+
+	@Test
+	public void testColumnsAreInterpolatedBetweenKeyframes()
+	{
+		// A horizontal segment moving down by 10 pixels in 10 frames.
+		final KeyframedPath path = new KeyframedPath( new ROItoKymograph( 2, 1 ), 64, 64 );
+		path.addKeyframe( 10, createSegment( 10, 20, 50, 20 ) );
+		path.addKeyframe( 20, createSegment( 10, 30, 50, 30 ) );
+		assertEquals( 41, path.getNumColumns() );
+
+		assertPositions( "Key frame", 10, 1, 20, path.getSamplingPositions( 10 ) );
+		assertPositions( "Frame 13", 10, 1, 23, path.getSamplingPositions( 13 ) );
+		assertPositions( "Frame 15", 10, 1, 25, path.getSamplingPositions( 15 ) );
+		assertPositions( "Key frame", 10, 1, 30, path.getSamplingPositions( 20 ) );
+
+		// Frames outside the key frames use the nearest one.
+		assertPositions( "Before", 10, 1, 20, path.getSamplingPositions( 0 ) );
+		assertPositions( "After", 10, 1, 30, path.getSamplingPositions( 25 ) );
+	}
+
+	@Test
+	public void testFramesOfALevelShareTheirMask()
+	{
+		// A displacement of a bit less than 2 x MAX_DISPLACEMENT gives 3
+		// levels: the 11 frames are rounded to the key frames or to the
+		// middle.
+		final double dy = 1.9 * KeyframedPath.MAX_DISPLACEMENT;
+		final KeyframedPath path = new KeyframedPath( new ROItoKymograph( 2, 1 ), 64, 64 );
+		path.addKeyframe( 0, createSegment( 10, 20, 30, 20 ) );
+		path.addKeyframe( 10, createSegment( 10, 20 + dy, 30, 20 + dy ) );
+
+		assertSame( path.getMask( 0 ), path.getMask( 2 ) );
+		assertNotSame( path.getMask( 2 ), path.getMask( 3 ) );
+		assertSame( path.getMask( 3 ), path.getMask( 7 ) );
+		assertNotSame( path.getMask( 7 ), path.getMask( 8 ) );
+		assertSame( path.getMask( 8 ), path.getMask( 9 ) );
+		assertPositions( "Frame 9", 10, 1, 20 + dy, path.getSamplingPositions( 9 ) );
+		assertPositions( "Frame 6", 10, 1, 20 + dy / 2, path.getSamplingPositions( 6 ) );
+	}
+
+	@Test
+	public void testShorterKeyframesAreStretched()
+	{
+		final KeyframedPath path = new KeyframedPath( new ROItoKymograph( 2, 1 ), 64, 64 );
+		path.addKeyframe( 0, createSegment( 10, 20, 30, 20 ) );
+		assertEquals( 21, path.getNumColumns() );
+
+		// The longest key frame sets the number of columns.
+		path.addKeyframe( 4, createSegment( 10, 40, 50, 40 ) );
+		assertEquals( 41, path.getNumColumns() );
+		assertPositions( "Short key frame", 10, 0.5, 20, path.getSamplingPositions( 0 ) );
+		assertPositions( "Long key frame", 10, 1, 40, path.getSamplingPositions( 4 ) );
+		assertEquals( 41, path.getMask( 2 ).getNumColumns() );
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void testPathNeedsAKeyframe()
+	{
+		new KeyframedPath( new ROItoKymograph(), 64, 64 ).getMask( 0 );
+	}
+}
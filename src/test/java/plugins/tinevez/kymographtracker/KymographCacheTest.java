@@ -0,0 +1,185 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.kernel.roi.roi2d.ROI2DPolyLine;
+import plugins.kernel.roi.roi2d.ROI2DShape;
+
+public class KymographCacheTest
+{
+
+	private static Sequence createSequence( final int width, final int height, final int sizeC, final int sizeT, final DataType dataType )
+	{
+		final Sequence sequence = new Sequence();
+		for ( int t = 0; t < sizeT; t++ )
+			sequence.setImage( t, 0, new IcyBufferedImage( width, height, sizeC, dataType ) );
+		return sequence;
+	}
+
+	private static ROI2DPolyLine createPolyLine( final double... coords )
+	{
+		final Point2D[] points = new Point2D[ coords.length / 2 ];
+		for ( int i = 0; i < points.length; i++ )
+			points[ i ] = new Point2D.Double( coords[ 2 * i ], coords[ 2 * i + 1 ] );
+		return new ROI2DPolyLine( Arrays.asList( points ) );
+	}
+
+	/**
+	 * Returns an entry with a kymograph of 20 columns and 10 rows, whose size
+	 * is the same for all the entries.
+	 */
+	private static KymographCache.Entry createEntry()
+	{
+		final KymographMask.Builder builder = new KymographMask.Builder( 64, 64 );
+		for ( int i = 0; i < 20; i++ )
+		{
+			builder.startColumn( i, 5 );
+			builder.add( i, 5 );
+		}
+		final Sequence kymograph = createSequence( 20, 10, 1, 1, DataType.FLOAT );
+		return new KymographCache.Entry( builder.build(), kymograph, new Sequence[] { kymograph } );
+	}
+
+	@Test
+	public void testSizeOf()
+	{
+		assertEquals( 2 * 10 * 20 * 2 * 3, KymographCache.sizeOf( createSequence( 10, 20, 2, 3, DataType.USHORT ) ) );
+		assertEquals( 8 * 7 * 5, KymographCache.sizeOf( createSequence( 7, 5, 1, 1, DataType.DOUBLE ) ) );
+	}
+
+	@Test
+	public void testKeys()
+	{
+		final Sequence source = createSequence( 64, 64, 1, 1, DataType.USHORT );
+		final ROItoKymograph extractor = new ROItoKymograph();
+		final KymographCache.Key key = new KymographCache.Key( source, createPolyLine( 1, 2, 30, 40 ), extractor, false );
+
+		// Another ROI with the same points.
+		assertEquals( key, new KymographCache.Key( source, createPolyLine( 1, 2, 30, 40 ), extractor, false ) );
+		assertEquals( key.hashCode(), new KymographCache.Key( source, createPolyLine( 1, 2, 30, 40 ), extractor, false ).hashCode() );
+
+		assertNotEquals( key, new KymographCache.Key( source, createPolyLine( 1, 2, 30, 41 ), extractor, false ) );
+		assertNotEquals( key, new KymographCache.Key( source, createPolyLine( 1, 2, 30, 40 ), extractor, true ) );
+		// The source is compared by identity.
+		assertNotEquals( key, new KymographCache.Key( createSequence( 64, 64, 1, 1, DataType.USHORT ), createPolyLine( 1, 2, 30, 40 ), extractor, false ) );
+		extractor.setTemporalBinning( 2, BinningMode.MEAN );
+		assertNotEquals( key, new KymographCache.Key( source, createPolyLine( 1, 2, 30, 40 ), extractor, false ) );
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted()
+	{
+		final Sequence source = createSequence( 64, 64, 1, 1, DataType.USHORT );
+		final ROItoKymograph extractor = new ROItoKymograph();
+		final KymographCache.Key a = new KymographCache.Key( source, createPolyLine( 0, 0, 10, 0 ), extractor, false );
+		final KymographCache.Key b = new KymographCache.Key( source, createPolyLine( 0, 0, 20, 0 ), extractor, false );
+		final KymographCache.Key c = new KymographCache.Key( source, createPolyLine( 0, 0, 30, 0 ), extractor, false );
+		final KymographCache.Entry entry = createEntry();
+
+		// Room for two entries.
+		final KymographCache cache = new KymographCache( 2 * entry.size + 1 );
+		cache.put( a, entry );
+		cache.put( b, createEntry() );
+		assertEquals( 2 * entry.size, cache.getMemoryUsed() );
+		assertSame( entry, cache.get( a ) );
+		cache.put( c, createEntry() );
+
+		// b is the least recently used.
+		assertEquals( 2, cache.size() );
+		assertNull( cache.get( b ) );
+		assertSame( entry, cache.get( a ) );
+		assertEquals( 1, cache.getEvictions() );
+		assertEquals( 2, cache.getHits() );
+		assertEquals( 1, cache.getMisses() );
+
+		// Entries that do not fit are not cached.
+		cache.setMemoryBudget( entry.size - 1 );
+		assertEquals( 0, cache.size() );
+		assertEquals( 0, cache.getMemoryUsed() );
+		cache.put( a, entry );
+		assertEquals( 0, cache.size() );
+	}
+
+	@Test
+	public void testEntriesOfASourceAreInvalidated()
+	{
+		final Sequence source1 = createSequence( 64, 64, 1, 1, DataType.USHORT );
+		final Sequence source2 = createSequence( 64, 64, 1, 1, DataType.USHORT );
+		final ROItoKymograph extractor = new ROItoKymograph();
+		final ROI2DShape roi = createPolyLine( 0, 0, 10, 0 );
+		final KymographCache.Key key1 = new KymographCache.Key( source1, roi, extractor, false );
+		final KymographCache.Key key2 = new KymographCache.Key( source2, roi, extractor, false );
+		final KymographCache.Entry entry = createEntry();
+
+		final KymographCache cache = new KymographCache();
+		cache.put( key1, entry );
+		cache.put( key2, entry );
+		cache.sequenceClosed( source1 );
+		assertNull( cache.get( key1 ) );
+		assertSame( entry, cache.get( key2 ) );
+		assertEquals( entry.size, cache.getMemoryUsed() );
+		cache.invalidate( source2 );
+		assertEquals( 0, cache.size() );
+	}
+
+	@Test
+	public void testPreviousVersionOfAnEditedRoi()
+	{
+		final Sequence source = createSequence( 64, 64, 1, 1, DataType.USHORT );
+		final ROItoKymograph extractor = new ROItoKymograph();
+		final ROI2DPolyLine roi = createPolyLine( 0, 0, 10, 0 );
+		final KymographCache.Key before = new KymographCache.Key( source, roi, extractor, false );
+		final KymographCache.Entry entry = createEntry();
+		final KymographCache cache = new KymographCache();
+		cache.put( before, entry );
+
+		// Same ROI after one of its points was moved.
+		final ROI2DShape edited = createPolyLine( 0, 0, 12, 3 );
+		assertNull( "Another ROI", cache.removePreviousVersion( new KymographCache.Key( source, edited, extractor, false ) ) );
+		roi.setPoints( edited.getPoints() );
+		final KymographCache.Key after = new KymographCache.Key( source, roi, extractor, false );
+		assertNotEquals( before, after );
+
+		// Kymographs with a background subtracted are not updated.
+		extractor.setBackgroundWindow( 3 );
+		assertNull( cache.removePreviousVersion( new KymographCache.Key( source, roi, extractor, false ) ) );
+		extractor.setBackgroundWindow( 0 );
+
+		assertSame( entry, cache.removePreviousVersion( after ) );
+		assertEquals( 0, cache.size() );
+		assertEquals( 0, cache.getMemoryUsed() );
+	}
+}
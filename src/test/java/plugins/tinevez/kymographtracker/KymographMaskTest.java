@@ -0,0 +1,287 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KymographMaskTest
+{
+
+	private static final int WIDTH = 23;
+
+	private static final int HEIGHT = 17;
+
+	/**
+	 * Returns a frame whose pixels all have different values.
+	 */
+	private static double[] createFrame()
+	{
+		final double[] frame = new double[ WIDTH * HEIGHT ];
+		for ( int y = 0; y < HEIGHT; y++ )
+			for ( int x = 0; x < WIDTH; x++ )
+				frame[ x + y * WIDTH ] = x + 100 * y;
+		return frame;
+	}
+
+	private static double[] crop( final double[] frame, final Rectangle crop )
+	{
+		final double[] cropped = new double[ crop.width * crop.height ];
+		for ( int y = 0; y < crop.height; y++ )
+			System.arraycopy( frame, ( crop.y + y ) * WIDTH + crop.x, cropped, y * crop.width, crop.width );
+		return cropped;
+	}
+
+	@Test
+	public void testColumnsAverageTheirPixels()
+	{
+		final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT );
+		builder.startColumn( 2, 3 );
+		builder.add( 2, 3 );
+		builder.add( 4, 3 );
+		builder.add( 3, 5 );
+		// Pixels outside of the frame are discarded.
+		builder.startColumn( 0, 0 );
+		builder.add( -1, 0 );
+		builder.add( 0, 0 );
+		builder.add( 0, HEIGHT );
+		final KymographMask mask = builder.build();
+
+		final double[] row = new double[ 3 ];
+		mask.sample( createFrame(), false, row, 1 );
+		assertArrayEquals( new double[] { 0, ( 302 + 304 + 503 ) / 3d, 0 }, row, 1e-12 );
+		assertEquals( new Rectangle( 0, 0, 5, 6 ), mask.getBounds() );
+	}
+
+	@Test
+	public void testInterpolationReproducesLinearFrames()
+	{
+		final double[] frame = createFrame();
+		for ( final SamplingInterpolation interpolation : new SamplingInterpolation[] { SamplingInterpolation.LINEAR, SamplingInterpolation.CUBIC } )
+		{
+			final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT, interpolation );
+			builder.startColumn( 3.25, 4.5 );
+			builder.addSample( 3.25, 4.5 );
+			builder.startColumn( 10, 10 );
+			builder.addSample( 9.6, 10.1 );
+			builder.addSample( 10.4, 9.7 );
+			builder.addSample( 11, 11 );
+			final double[] row = new double[ 2 ];
+			builder.build().sample( frame, false, row, 0 );
+			// Weights are stored as floats.
+			assertEquals( interpolation.toString(), 453.25, row[ 0 ], 1e-3 );
+			assertEquals( interpolation.toString(), ( 1019.6 + 980.4 + 1111 ) / 3, row[ 1 ], 1e-3 );
+		}
+	}
+
+	@Test
+	public void testSamplesOnTheBorders()
+	{
+		final double[] frame = createFrame();
+		final double[] row = new double[ 3 ];
+
+		// Nearest pixel.
+		final KymographMask.Builder nearest = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.NEAREST );
+		nearest.startColumn( 3.4, 5.6 );
+		nearest.addSample( 3.4, 5.6 );
+		nearest.build().sample( frame, false, row, 0 );
+		assertEquals( 603, row[ 0 ], 0 );
+
+		// The weights of the pixels inside the frame are normalized, and
+		// samples entirely outside of the frame are discarded.
+		final KymographMask.Builder linear = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.LINEAR );
+		linear.startColumn( WIDTH - 0.5, 4 );
+		linear.addSample( WIDTH - 0.5, 4 );
+		linear.startColumn( 0, 0 );
+		linear.addSample( -0.25, 2.5 );
+		linear.addSample( -3, 2 );
+		linear.startColumn( 0, 0 );
+		linear.addSample( -3, 2 );
+		linear.build().sample( frame, false, row, 0 );
+		assertArrayEquals( new double[] { WIDTH - 1 + 400, 250, 0 }, row, 1e-4 );
+	}
+
+	@Test
+	public void testAggregationsOfPixels()
+	{
+		final double[] frame = createFrame();
+		final ProfileAggregation[] aggregations = ProfileAggregation.values();
+		final double[] expected = new double[ aggregations.length ];
+		for ( int a = 0; a < aggregations.length; a++ )
+		{
+			// Pixel values 1, 7, 3 and 100, with weights 1, 1, 2 and 4.
+			final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.NEAREST, aggregations[ a ] );
+			builder.startColumn( 1, 0 );
+			builder.add( 1, 0 );
+			builder.add( 7, 0 );
+			builder.add( 3, 0, 2 );
+			builder.add( 0, 1, 4 );
+			builder.add( WIDTH, 1, 8 );
+			final double[] row = new double[ 1 ];
+			builder.build().sample( frame, false, row, 0 );
+			expected[ a ] = row[ 0 ];
+		}
+		assertArrayEquals( new double[] { ( 1 + 7 + 2 * 3 + 4 * 100 ) / 8d, ( 1 + 7 + 2 * 3 + 4 * 100 ) / 8d, 100, 5 }, expected, 1e-12 );
+	}
+
+	@Test
+	public void testAggregationsOfIntegerFrames()
+	{
+		// Unsigned 16-bit values above 32767, and negative signed bytes.
+		final short[] unsigned = new short[ WIDTH * HEIGHT ];
+		unsigned[ 0 ] = ( short ) 65535;
+		unsigned[ 1 ] = ( short ) 40000;
+		unsigned[ 2 ] = 1;
+		final byte[] signed = new byte[ WIDTH * HEIGHT ];
+		signed[ 0 ] = -5;
+		signed[ 1 ] = -1;
+		signed[ 2 ] = 3;
+		final double[] row = new double[ 2 ];
+		for ( final ProfileAggregation aggregation : new ProfileAggregation[] { ProfileAggregation.MAX, ProfileAggregation.MEDIAN } )
+		{
+			final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.NEAREST, aggregation );
+			builder.startColumn( 1, 0 );
+			for ( int x = 0; x < 3; x++ )
+				builder.add( x, 0 );
+			final KymographMask mask = builder.build();
+			mask.sample( unsigned, false, row, 0 );
+			mask.sample( signed, true, row, 1 );
+			if ( aggregation == ProfileAggregation.MAX )
+				assertArrayEquals( new double[] { 65535, 3 }, row, 0 );
+			else
+				assertArrayEquals( new double[] { 40000, -1 }, row, 0 );
+		}
+	}
+
+	/**
+	 * Returns the aggregation of interpolated values 302.5, 354 and 10.75,
+	 * with weights 1, 3 and 4.
+	 */
+	private static double sampleInterpolated( final ProfileAggregation aggregation )
+	{
+		final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.LINEAR, aggregation );
+		builder.startColumn( 3, 3 );
+		builder.addSample( 2.5, 3, 1 );
+		builder.addSample( 4, 3.5, 3 );
+		builder.addSample( 10.75, 0, 4 );
+		final double[] row = new double[ 1 ];
+		builder.build().sample( createFrame(), false, row, 0 );
+		return row[ 0 ];
+	}
+
+	@Test
+	public void testAggregationsOfInterpolatedSamples()
+	{
+		// Weights are stored as floats.
+		assertEquals( ( 302.5 + 3 * 354 + 4 * 10.75 ) / 8, sampleInterpolated( ProfileAggregation.MEAN ), 1e-4 );
+		assertEquals( 354, sampleInterpolated( ProfileAggregation.MAX ), 1e-4 );
+		assertEquals( 302.5, sampleInterpolated( ProfileAggregation.MEDIAN ), 1e-4 );
+	}
+
+	@Test
+	public void testMedianMatchesSorting()
+	{
+		final Random random = new Random( 1l );
+		for ( int n = 1; n < 40; n++ )
+		{
+			for ( int repeat = 0; repeat < 20; repeat++ )
+			{
+				// Few distinct values, to have ties.
+				final double[] values = new double[ n + 6 ];
+				for ( int i = 0; i < values.length; i++ )
+					values[ i ] = random.nextInt( 1 + n / 2 ) + 0.25 * random.nextInt( 2 );
+				final double[] sorted = Arrays.copyOfRange( values, 3, 3 + n );
+				Arrays.sort( sorted );
+				final double expected = ( n % 2 == 1 ) ? sorted[ n / 2 ] : 0.5 * ( sorted[ n / 2 - 1 ] + sorted[ n / 2 ] );
+				final double[] work = values.clone();
+				assertEquals( expected, KymographMask.median( work, 3, 3 + n ), 0 );
+				// Values outside of the range are left untouched.
+				assertArrayEquals( Arrays.copyOfRange( values, 0, 3 ), Arrays.copyOfRange( work, 0, 3 ), 0 );
+				assertArrayEquals( Arrays.copyOfRange( values, 3 + n, values.length ), Arrays.copyOfRange( work, 3 + n, values.length ), 0 );
+			}
+		}
+	}
+
+	private static void checkCrop( final KymographMask mask, final double[] frame )
+	{
+		final Rectangle bounds = mask.getBounds();
+		for ( final Rectangle crop : new Rectangle[] { bounds, new Rectangle( bounds.x - 1, bounds.y - 2, bounds.width + 3, bounds.height + 2 ) } )
+		{
+			final KymographMask croppedMask = mask.crop( crop );
+			assertEquals( crop.width, croppedMask.getWidth() );
+			assertEquals( crop.height, croppedMask.getHeight() );
+			final double[] expected = new double[ mask.getNumColumns() ];
+			final double[] actual = new double[ mask.getNumColumns() ];
+			mask.sample( frame, false, expected, 0 );
+			croppedMask.sample( crop( frame, crop ), false, actual, 0 );
+			assertArrayEquals( "Cropped to " + crop, expected, actual, 0 );
+		}
+	}
+
+	@Test
+	public void testCropSamplesTheSameValues()
+	{
+		final double[] frame = createFrame();
+		final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT );
+		for ( int i = 0; i < 12; i++ )
+		{
+			builder.startColumn( 5 + i, 6 );
+			for ( int k = -2; k <= 2; k++ )
+				builder.add( 5 + i, 6 + k + i % 3 );
+		}
+		final KymographMask mask = builder.build();
+		assertEquals( new Rectangle( 5, 4, 12, 7 ), mask.getBounds() );
+		checkCrop( mask, frame );
+
+		for ( final ProfileAggregation aggregation : ProfileAggregation.values() )
+		{
+			for ( final SamplingInterpolation interpolation : SamplingInterpolation.values() )
+			{
+				final KymographMask.Builder subPixel = new KymographMask.Builder( WIDTH, HEIGHT, interpolation, aggregation );
+				for ( int i = 0; i < 12; i++ )
+				{
+					subPixel.startColumn( 5 + i, 6 );
+					for ( int k = -2; k <= 2; k++ )
+						subPixel.addSample( 5 + i + 0.3, 6 + k + 0.6, 3 - Math.abs( k ) );
+				}
+				checkCrop( subPixel.build(), frame );
+			}
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testCropMustContainTheMask()
+	{
+		final KymographMask.Builder builder = new KymographMask.Builder( WIDTH, HEIGHT );
+		builder.startColumn( 3, 3 );
+		builder.add( 3, 3 );
+		builder.add( 4, 3 );
+		builder.build().crop( new Rectangle( 4, 0, 5, 5 ) );
+	}
+}
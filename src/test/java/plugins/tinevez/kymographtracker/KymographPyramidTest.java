@@ -0,0 +1,270 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+public class KymographPyramidTest
+{
+
+	/** Wide enough for the columns of level 1 to be averaged. */
+	private static final int WIDTH = 2 * KymographPyramid.MIN_WIDTH + 7;
+
+	/** Odd number of rows at several levels. */
+	private static final int HEIGHT = 4 * KymographPyramid.MAX_COARSE_ROWS + 5;
+
+	private static final int SIZE_C = 2;
+
+	private static Sequence createKymograph( final Random random )
+	{
+		final IcyBufferedImage image = new IcyBufferedImage( WIDTH, HEIGHT, SIZE_C, DataType.USHORT );
+		for ( int c = 0; c < SIZE_C; c++ )
+		{
+			final short[] data = ( short[] ) image.getDataXY( c );
+			for ( int i = 0; i < data.length; i++ )
+				data[ i ] = ( short ) random.nextInt( 65536 );
+		}
+		final Sequence kymograph = new Sequence();
+		kymograph.setImage( 0, 0, image );
+		return kymograph;
+	}
+
+	/**
+	 * Averages pairs of rows, and pairs of columns if requested. The last row
+	 * or column of an odd size is copied.
+	 */
+	private static double[] naiveDownsample( final double[] values, final int width, final int height, final boolean halveX )
+	{
+		final int w = halveX ? ( width + 1 ) / 2 : width;
+		final int h = ( height + 1 ) / 2;
+		final double[] downsampled = new double[ w * h ];
+		for ( int y = 0; y < h; y++ )
+		{
+			for ( int x = 0; x < w; x++ )
+			{
+				double sum = 0;
+				int n = 0;
+				for ( int yy = 2 * y; yy < Math.min( height, 2 * y + 2 ); yy++ )
+				{
+					final int x0 = halveX ? 2 * x : x;
+					final int x1 = halveX ? Math.min( width, 2 * x + 2 ) : x + 1;
+					for ( int xx = x0; xx < x1; xx++ )
+					{
+						sum += values[ yy * width + xx ];
+						n++;
+					}
+				}
+				downsampled[ y * w + x ] = sum / n;
+			}
+		}
+		return downsampled;
+	}
+
+	private static double[] getValues( final Sequence sequence, final int c )
+	{
+		return Array1DUtil.arrayToDoubleArray( sequence.getDataXY( 0, 0, c ), sequence.isSignedDataType() );
+	}
+
+	@Test
+	public void testLevelsMatchNaiveAveraging()
+	{
+		final Sequence kymograph = createKymograph( new Random( 1l ) );
+		final KymographPyramid pyramid = KymographPyramid.build( kymograph );
+		assertEquals( 4, pyramid.getNumLevels() );
+		assertSame( kymograph, pyramid.getLevel( 0 ) );
+		assertTrue( pyramid.getHeight( pyramid.getNumLevels() - 1 ) <= KymographPyramid.MAX_COARSE_ROWS );
+
+		for ( int c = 0; c < SIZE_C; c++ )
+		{
+			double[] expected = getValues( kymograph, c );
+			for ( int l = 1; l < pyramid.getNumLevels(); l++ )
+			{
+				final boolean halveX = pyramid.getScaleX( l ) != pyramid.getScaleX( l - 1 );
+				assertEquals( pyramid.getWidth( l - 1 ) >= 2 * KymographPyramid.MIN_WIDTH, halveX );
+				expected = naiveDownsample( expected, pyramid.getWidth( l - 1 ), pyramid.getHeight( l - 1 ), halveX );
+				final Sequence level = pyramid.getLevel( l );
+				assertEquals( pyramid.getWidth( l ), level.getSizeX() );
+				assertEquals( pyramid.getHeight( l ), level.getSizeY() );
+				assertEquals( 1 << l, pyramid.getScaleT( l ) );
+				assertArrayEquals( "Level " + l + ", channel " + c, expected, getValues( level, c ), 1e-9 );
+			}
+		}
+	}
+
+	@Test
+	public void testRegionsMatchLevels()
+	{
+		final Sequence kymograph = createKymograph( new Random( 2l ) );
+		final KymographPyramid pyramid = KymographPyramid.build( kymograph );
+		// Region in rows and columns of the kymograph, not aligned on the
+		// pixels of the coarse levels.
+		final Rectangle region = new Rectangle( 13, 301, 70, 555 );
+		for ( int l = 0; l < pyramid.getNumLevels(); l++ )
+		{
+			final int scaleX = pyramid.getScaleX( l );
+			final int scaleT = pyramid.getScaleT( l );
+			final int x0 = region.x / scaleX;
+			final int y0 = region.y / scaleT;
+			final int x1 = ( region.x + region.width + scaleX - 1 ) / scaleX;
+			final int y1 = ( region.y + region.height + scaleT - 1 ) / scaleT;
+			final Sequence level = pyramid.getLevel( l );
+			final Sequence crop = pyramid.getRegion( l, region );
+			assertEquals( x1 - x0, crop.getSizeX() );
+			assertEquals( y1 - y0, crop.getSizeY() );
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final double[] values = getValues( level, c );
+				final double[] expected = new double[ ( x1 - x0 ) * ( y1 - y0 ) ];
+				for ( int y = y0; y < y1; y++ )
+					System.arraycopy( values, y * level.getSizeX() + x0, expected, ( y - y0 ) * ( x1 - x0 ), x1 - x0 );
+				assertArrayEquals( "Level " + l + ", channel " + c, expected, getValues( crop, c ), 0 );
+			}
+		}
+	}
+
+	@Test
+	public void testRowsAddedInBandsMatchBuild()
+	{
+		final Sequence kymograph = createKymograph( new Random( 3l ) );
+		final KymographPyramid expected = KymographPyramid.build( kymograph );
+
+		// Rows pushed as they are extracted, in bands.
+		final KymographPyramid pyramid = new KymographPyramid( kymograph );
+		final Object[] channels = new Object[ SIZE_C ];
+		for ( int c = 0; c < SIZE_C; c++ )
+			channels[ c ] = kymograph.getDataXY( 0, 0, c );
+		for ( int r0 = 0; r0 < HEIGHT; r0 += 100 )
+			pyramid.addRows( channels, r0, Math.min( HEIGHT, r0 + 100 ), false );
+		pyramid.finish();
+
+		assertEquals( expected.getNumLevels(), pyramid.getNumLevels() );
+		for ( int l = 1; l < pyramid.getNumLevels(); l++ )
+			for ( int c = 0; c < SIZE_C; c++ )
+				assertArrayEquals( "Level " + l + ", channel " + c, getValues( expected.getLevel( l ), c ), getValues( pyramid.getLevel( l ), c ), 0 );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testRowsMustBeAddedInOrder()
+	{
+		final Sequence kymograph = createKymograph( new Random( 4l ) );
+		final KymographPyramid pyramid = new KymographPyramid( kymograph );
+		final Object[] channels = new Object[] { kymograph.getDataXY( 0, 0, 0 ), kymograph.getDataXY( 0, 0, 1 ) };
+		pyramid.addRows( channels, 0, 10, false );
+		pyramid.addRows( channels, 11, 20, false );
+	}
+
+	@Test
+	public void testLevelForRows()
+	{
+		final KymographPyramid pyramid = KymographPyramid.build( createKymograph( new Random( 5l ) ) );
+		// Heights of 2053, 1027, 514 and 257 rows.
+		assertEquals( 0, pyramid.getLevelForRows( HEIGHT ) );
+		assertEquals( 1, pyramid.getLevelForRows( HEIGHT - 1 ) );
+		assertEquals( 2, pyramid.getLevelForRows( 514 ) );
+		assertEquals( 3, pyramid.getLevelForRows( 513 ) );
+		// The coarsest level is used when no level is small enough.
+		assertEquals( 3, pyramid.getLevelForRows( 1 ) );
+	}
+
+	@Test
+	public void testTiledPyramidMatchesInMemoryPyramid() throws IOException
+	{
+		final Sequence kymograph = createKymograph( new Random( 6l ) );
+		final KymographPyramid expected = KymographPyramid.build( kymograph );
+
+		final TiledKymograph tiled = TiledKymographTest.createTiledKymograph( WIDTH, HEIGHT, DataType.USHORT );
+		final KymographPyramid pyramid = new KymographPyramid( tiled, Long.MAX_VALUE );
+		// Rows are pushed to the pyramid as they are written, in bands.
+		final int bandRows = 100;
+		for ( int r0 = 0; r0 < HEIGHT; r0 += bandRows )
+		{
+			final int numRows = Math.min( bandRows, HEIGHT - r0 );
+			final Object[] band = new Object[ SIZE_C ];
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				band[ c ] = new short[ numRows * WIDTH ];
+				System.arraycopy( kymograph.getDataXY( 0, 0, c ), r0 * WIDTH, band[ c ], 0, numRows * WIDTH );
+				tiled.writeRows( c, r0, band[ c ], numRows );
+			}
+			pyramid.addRows( band, r0, r0, r0 + numRows, false );
+		}
+		pyramid.finish();
+
+		assertSame( tiled, pyramid.getTiledKymograph() );
+		assertEquals( expected.getNumLevels(), pyramid.getNumLevels() );
+		for ( int l = 1; l < pyramid.getNumLevels(); l++ )
+			for ( int c = 0; c < SIZE_C; c++ )
+				assertArrayEquals( "Level " + l + ", channel " + c, getValues( expected.getLevel( l ), c ), getValues( pyramid.getLevel( l ), c ), 0 );
+
+		// Level 0 is read from the tiles.
+		final Rectangle region = new Rectangle( 20, 1000, 50, 40 );
+		final Sequence crop = pyramid.getRegion( 0, region );
+		for ( int c = 0; c < SIZE_C; c++ )
+			assertArrayEquals( "Channel " + c, getValues( expected.getRegion( 0, region ), c ), getValues( crop, c ), 0 );
+		// Level 0 is never displayed whole.
+		assertTrue( pyramid.getLevelForRows( Integer.MAX_VALUE ) > 0 );
+		tiled.close();
+	}
+
+	@Test
+	public void testMemoryBudget() throws IOException
+	{
+		final TiledKymograph tiled = TiledKymographTest.createTiledKymograph( WIDTH, HEIGHT, DataType.USHORT );
+		final KymographPyramid pyramid = new KymographPyramid( tiled, 0 );
+		final int coarsest = pyramid.getNumLevels() - 1;
+		// The coarsest level is always stored.
+		assertTrue( pyramid.isStored( coarsest ) );
+		for ( int l = 1; l < coarsest; l++ )
+			assertFalse( pyramid.isStored( l ) );
+		assertEquals( 8l * SIZE_C * pyramid.getWidth( coarsest ) * pyramid.getHeight( coarsest ), pyramid.getSize() );
+		assertEquals( coarsest, pyramid.getLevelForRows( Integer.MAX_VALUE ) );
+		tiled.close();
+
+		// The levels that fit are stored, from the coarsest down.
+		final TiledKymograph tiled2 = TiledKymographTest.createTiledKymograph( WIDTH, HEIGHT, DataType.USHORT );
+		long budget = 0;
+		for ( int l = coarsest; l >= 2; l-- )
+			budget += 8l * SIZE_C * pyramid.getWidth( l ) * pyramid.getHeight( l );
+		final KymographPyramid pyramid2 = new KymographPyramid( tiled2, budget );
+		assertFalse( pyramid2.isStored( 1 ) );
+		for ( int l = 2; l <= coarsest; l++ )
+			assertTrue( pyramid2.isStored( l ) );
+		assertEquals( 2, pyramid2.getLevelForRows( Integer.MAX_VALUE ) );
+		tiled2.close();
+	}
+}
@@ -0,0 +1,509 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.kernel.roi.roi2d.ROI2DPolyLine;
+import plugins.kernel.roi.roi2d.ROI2DPolygon;
+
+public class ROItoKymographTest
+{
+
+	private static final int WIDTH = 31;
+
+	private static final int HEIGHT = 19;
+
+	private static final int SIZE_C = 2;
+
+	private static final int NUM_FRAMES = 23;
+
+	/**
+	 * Returns the value of a pixel of a frame. Frames differ by a value that
+	 * only depends on the frame and the channel, so that binning a kymograph
+	 * column adds a known value to its first row.
+	 */
+	private static double getValue( final int x, final int y, final int t, final int c )
+	{
+		return x + 10 * y + 100 * t * t + 7 * c;
+	}
+
+	/**
+	 * Returns unsigned 16-bit frames, indexed by frame and channel.
+	 */
+	private static Object[][] createFrames()
+	{
+		final Object[][] frames = new Object[ NUM_FRAMES ][ SIZE_C ];
+		for ( int t = 0; t < NUM_FRAMES; t++ )
+		{
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final short[] data = new short[ WIDTH * HEIGHT ];
+				for ( int y = 0; y < HEIGHT; y++ )
+					for ( int x = 0; x < WIDTH; x++ )
+						data[ x + y * WIDTH ] = ( short ) getValue( x, y, t, c );
+				frames[ t ][ c ] = data;
+			}
+		}
+		return frames;
+	}
+
+	private static KymographMask[] createMasks()
+	{
+		final KymographMask.Builder line = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.LINEAR );
+		for ( int i = 0; i < 20; i++ )
+		{
+			line.startColumn( 3 + 1.2 * i, 4 + 0.5 * i );
+			for ( int k = -1; k <= 1; k++ )
+				line.addSample( 3 + 1.2 * i - 0.4 * k, 4 + 0.5 * i + 0.9 * k );
+		}
+		final KymographMask.Builder median = new KymographMask.Builder( WIDTH, HEIGHT, SamplingInterpolation.NEAREST, ProfileAggregation.MEDIAN );
+		for ( int i = 0; i < 12; i++ )
+		{
+			median.startColumn( 20, 2 + i );
+			for ( int k = -2; k <= 1; k++ )
+				median.add( 20 + k, 2 + i );
+		}
+		return new KymographMask[] { line.build(), median.build() };
+	}
+
+	private static Object[][] createOutput( final KymographMask[] masks, final int numRows, final DataType dataType )
+	{
+		final Object[][] tabValues = new Object[ masks.length ][ SIZE_C ];
+		for ( int i = 0; i < masks.length; i++ )
+			for ( int c = 0; c < SIZE_C; c++ )
+				tabValues[ i ][ c ] = ( dataType == DataType.DOUBLE ) ? new double[ numRows * masks[ i ].getNumColumns() ] : new float[ numRows * masks[ i ].getNumColumns() ];
+		return tabValues;
+	}
+
+	private static double getValue( final Object values, final int index )
+	{
+		return ( values instanceof double[] ) ? ( ( double[] ) values )[ index ] : ( ( float[] ) values )[ index ];
+	}
+
+	@Test
+	public void testBinningOfFrames()
+	{
+		final Object[][] frames = createFrames();
+		final KymographMask[] masks = createMasks();
+
+		// Columns of the first frame, without the channel and frame offsets.
+		final double[][] firstRows = new double[ masks.length ][];
+		for ( int i = 0; i < masks.length; i++ )
+		{
+			firstRows[ i ] = new double[ masks[ i ].getNumColumns() ];
+			masks[ i ].sample( frames[ 0 ][ 0 ], false, firstRows[ i ], 0 );
+		}
+
+		final ROItoKymograph extractor = new ROItoKymograph();
+		for ( final int parallelism : new int[] { 1, 3 } )
+		{
+			extractor.setParallelism( parallelism );
+			for ( final BinningMode mode : BinningMode.values() )
+			{
+				for ( final int binning : new int[] { 1, 2, 5 } )
+				{
+					extractor.setTemporalBinning( binning, mode );
+					final int numRows = extractor.getNumRows( NUM_FRAMES );
+					assertEquals( ( NUM_FRAMES + binning - 1 ) / binning, numRows );
+					for ( final DataType dataType : new DataType[] { DataType.DOUBLE, DataType.FLOAT } )
+					{
+						final Object[][] tabValues = createOutput( masks, numRows, dataType );
+						extractor.extractRows( frames, 0, false, masks, tabValues, dataType, 0, numRows, NUM_FRAMES, null );
+						for ( int r = 0; r < numRows; r++ )
+						{
+							final int t0 = r * binning;
+							final int t1 = Math.min( NUM_FRAMES, t0 + binning );
+							for ( int c = 0; c < SIZE_C; c++ )
+							{
+								double sum = 0;
+								for ( int t = t0; t < t1; t++ )
+									sum += getValue( 0, 0, t, c );
+								for ( int i = 0; i < masks.length; i++ )
+								{
+									final int numColumns = masks[ i ].getNumColumns();
+									for ( int x = 0; x < numColumns; x++ )
+									{
+										final double expected;
+										switch ( mode )
+										{
+										case SUM:
+											expected = ( t1 - t0 ) * firstRows[ i ][ x ] + sum;
+											break;
+										case MAX:
+											expected = firstRows[ i ][ x ] + getValue( 0, 0, t1 - 1, c );
+											break;
+										case MEAN:
+										default:
+											expected = firstRows[ i ][ x ] + sum / ( t1 - t0 );
+										}
+										assertEquals( mode + " binning of " + binning + " frames, kymograph " + i + ", channel " + c + ", row " + r + ", " + dataType,
+												expected, getValue( tabValues[ i ][ c ], r * numColumns + x ), 1e-6 * Math.abs( expected ) );
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBleachCorrection()
+	{
+		// Frames that fade by a factor 1 + t / 10.
+		final Object[][] frames = new Object[ NUM_FRAMES ][ SIZE_C ];
+		for ( int t = 0; t < NUM_FRAMES; t++ )
+		{
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final double[] data = new double[ WIDTH * HEIGHT ];
+				for ( int y = 0; y < HEIGHT; y++ )
+					for ( int x = 0; x < WIDTH; x++ )
+						data[ x + y * WIDTH ] = getValue( x, y, 0, c ) / ( 1 + t / 10d );
+				frames[ t ][ c ] = data;
+			}
+		}
+		final KymographMask[] masks = createMasks();
+		final ROItoKymograph extractor = new ROItoKymograph();
+		for ( final BleachCorrection correction : new BleachCorrection[] { BleachCorrection.FRAME, BleachCorrection.NEIGHBOURHOOD } )
+		{
+			extractor.setBleachCorrection( correction );
+			final Object[][] tabValues = createOutput( masks, NUM_FRAMES, DataType.DOUBLE );
+			extractor.extractRows( frames, 0, false, masks, tabValues, DataType.DOUBLE, 0, NUM_FRAMES, NUM_FRAMES, extractor.createCorrections( masks.length ) );
+			// All the rows are restored to the intensity of the first one.
+			for ( int i = 0; i < masks.length; i++ )
+			{
+				final int numColumns = masks[ i ].getNumColumns();
+				for ( int c = 0; c < SIZE_C; c++ )
+				{
+					final double[] kymograph = ( double[] ) tabValues[ i ][ c ];
+					for ( int k = numColumns; k < kymograph.length; k++ )
+						assertEquals( correction + " correction, kymograph " + i + ", channel " + c + ", pixel " + k, kymograph[ k % numColumns ], kymograph[ k ], 1e-9 );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBackgroundSubtraction()
+	{
+		final Object[][] frames = createFrames();
+		final KymographMask[] masks = createMasks();
+		final ROItoKymograph extractor = new ROItoKymograph();
+		extractor.setParallelism( 2 );
+		final int binning = 3;
+		final int window = 4;
+		extractor.setTemporalBinning( binning, BinningMode.MEAN );
+		extractor.setBackgroundWindow( window );
+		final int numRows = extractor.getNumRows( NUM_FRAMES );
+
+		final Object[][] singlePass = createOutput( masks, numRows, DataType.DOUBLE );
+		extractor.extractRows( frames, 0, false, masks, singlePass, DataType.DOUBLE, 0, numRows, NUM_FRAMES, extractor.createCorrections( masks.length ) );
+
+		// Frames handed over a block at a time, as when reading a file.
+		final Object[][] blocks = createOutput( masks, numRows, DataType.DOUBLE );
+		final ROItoKymograph.RowCorrections corrections = extractor.createCorrections( masks.length );
+		final int blockRows = 2;
+		for ( int r0 = 0; r0 < numRows; r0 += blockRows )
+		{
+			final int r1 = Math.min( numRows, r0 + blockRows );
+			final int t0 = r0 * binning;
+			final int t1 = Math.min( NUM_FRAMES, r1 * binning );
+			final Object[][] block = new Object[ t1 - t0 ][];
+			System.arraycopy( frames, t0, block, 0, block.length );
+			extractor.extractRows( block, t0, false, masks, blocks, DataType.DOUBLE, r0, r1, NUM_FRAMES, corrections );
+		}
+
+		// Binned rows only differ by the mean of 100 t^2 over their frames,
+		// which increases with the row: the background of a row is the mean
+		// of the middle preceding rows, and its first row is unchanged.
+		final double[] offsets = new double[ numRows ];
+		for ( int r = 0; r < numRows; r++ )
+		{
+			final int t0 = r * binning;
+			final int t1 = Math.min( NUM_FRAMES, t0 + binning );
+			for ( int t = t0; t < t1; t++ )
+				offsets[ r ] += 100 * t * t;
+			offsets[ r ] /= ( t1 - t0 );
+		}
+		for ( int i = 0; i < masks.length; i++ )
+		{
+			final int numColumns = masks[ i ].getNumColumns();
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final double[] actual = ( double[] ) singlePass[ i ][ c ];
+				assertArrayEquals( "Kymograph " + i + ", channel " + c, actual, ( double[] ) blocks[ i ][ c ], 0 );
+				for ( int r = 1; r < numRows; r++ )
+				{
+					final int n = Math.min( r, window );
+					final double background = ( n % 2 == 1 ) ? offsets[ r - 1 - n / 2 ] : 0.5 * ( offsets[ r - n / 2 ] + offsets[ r - 1 - n / 2 ] );
+					// Weights are stored as floats, and their sum is not exactly 1.
+					for ( int x = 0; x < numColumns; x++ )
+						assertEquals( "Kymograph " + i + ", channel " + c + ", row " + r, offsets[ r ] - background, actual[ r * numColumns + x ], 1e-6 * offsets[ r ] );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a polyline of the specified number of vertices, across a frame
+	 * of 400 x 200 pixels.
+	 */
+	private static ArrayList< Point2D > createPolyLine( final int numVertices )
+	{
+		final ArrayList< Point2D > points = new ArrayList< Point2D >();
+		for ( int i = 0; i < numVertices; i++ )
+			points.add( new Point2D.Double( 10 + i * 380d / ( numVertices - 1 ), 100 + 30 * Math.sin( 0.7 * i ) ) );
+		return points;
+	}
+
+	private static Sequence createSequence( final int width, final int height, final int sizeT )
+	{
+		final Sequence sequence = new Sequence();
+		for ( int t = 0; t < sizeT; t++ )
+		{
+			final IcyBufferedImage image = new IcyBufferedImage( width, height, 1, DataType.USHORT );
+			final short[] data = ( short[] ) image.getDataXY( 0 );
+			for ( int y = 0; y < height; y++ )
+				for ( int x = 0; x < width; x++ )
+					data[ x + y * width ] = ( short ) ( ( 7 * x + 13 * y * y + 100 * t ) % 4096 );
+			sequence.setImage( t, 0, image );
+		}
+		return sequence;
+	}
+
+	/**
+	 * Updates the kymograph of a polyline after one of its vertices moved, and
+	 * returns the number of columns extracted again.
+	 */
+	private static int checkUpdate( final ROItoKymograph extractor, final Sequence sequence, final ArrayList< Point2D > points, final int vertex, final double dy )
+	{
+		final KymographMask oldMask = extractor.compileMask( sequence.getSizeX(), sequence.getSizeY(), new ROI2DPolyLine( points ) );
+		final Sequence kymograph = extractor.getKymographSequence( sequence, oldMask );
+		final ArrayList< Point2D > edited = new ArrayList< Point2D >( points );
+		edited.set( vertex, new Point2D.Double( points.get( vertex ).getX(), points.get( vertex ).getY() + dy ) );
+		final KymographMask newMask = extractor.compileMask( sequence.getSizeX(), sequence.getSizeY(), new ROI2DPolyLine( edited ) );
+
+		final int numChanged = extractor.updateKymographSequence( sequence, kymograph, oldMask, newMask );
+		final Sequence expected = extractor.getKymographSequence( sequence, newMask );
+		assertEquals( newMask.getNumColumns(), kymograph.getSizeX() );
+		assertArrayEquals( "Vertex " + vertex + " moved by " + dy, expected.getDataXYAsDouble( 0, 0, 0 ), kymograph.getDataXYAsDouble( 0, 0, 0 ), 0 );
+		return numChanged;
+	}
+
+	@Test
+	public void testUpdateAfterEdit()
+	{
+		final Sequence sequence = createSequence( 400, 200, 3 );
+		final ROItoKymograph extractor = new ROItoKymograph();
+		final ArrayList< Point2D > points = createPolyLine( 40 );
+		final int numColumns = extractor.compileMask( 400, 200, new ROI2DPolyLine( points ) ).getNumColumns();
+
+		assertEquals( 0, checkUpdate( extractor, sequence, points, 20, 0 ) );
+
+		// The smoothing spline is fitted to all the points, so moving a vertex
+		// also moves the path a few vertices before it. The columns before
+		// are kept.
+		final int middle = checkUpdate( extractor, sequence, points, 20, 5 );
+		assertTrue( "Columns extracted again after an edit in the middle: " + middle + " / " + numColumns, middle < 2 * numColumns / 3 );
+		final int end = checkUpdate( extractor, sequence, points, 38, 5 );
+		assertTrue( "Columns extracted again after an edit at the end: " + end + " / " + numColumns, end < numColumns / 5 );
+		assertTrue( end < middle );
+	}
+
+	@Test
+	public void testUpdateOfAnotherKymograph()
+	{
+		final Sequence sequence = createSequence( 400, 200, 3 );
+		final ROItoKymograph extractor = new ROItoKymograph();
+		final KymographMask mask = extractor.compileMask( 400, 200, new ROI2DPolyLine( createPolyLine( 10 ) ) );
+		final KymographMask otherMask = extractor.compileMask( 400, 200, new ROI2DPolyLine( createPolyLine( 12 ) ) );
+
+		// A kymograph of another size is extracted again entirely.
+		final Sequence kymograph = extractor.getKymographSequence( sequence, otherMask );
+		final ArrayList< Point2D > moved = createPolyLine( 10 );
+		moved.set( 9, new Point2D.Double( 395, 150 ) );
+		final KymographMask newMask = extractor.compileMask( 400, 200, new ROI2DPolyLine( moved ) );
+		assertTrue( otherMask.getNumColumns() != mask.getNumColumns() );
+		assertEquals( newMask.getNumColumns(), extractor.updateKymographSequence( sequence, kymograph, mask, newMask ) );
+		assertArrayEquals( extractor.getKymographSequence( sequence, newMask ).getDataXYAsDouble( 0, 0, 0 ), kymograph.getDataXYAsDouble( 0, 0, 0 ), 0 );
+	}
+
+	@Test
+	public void testRaysSampleDistancesToTheCenter()
+	{
+		// Single samples on the pixels of the axes: each row reads the
+		// squared distance to the center.
+		final int size = 21;
+		final double[] frame = new double[ size * size ];
+		for ( int y = 0; y < size; y++ )
+			for ( int x = 0; x < size; x++ )
+				frame[ x + y * size ] = ( x - 10 ) * ( x - 10 ) + ( y - 10 ) * ( y - 10 );
+
+		final KymographMask[] masks = new ROItoKymograph( 0, 1 ).compileRadialMasks( size, size, 10, 10, 4, 4 );
+		assertEquals( 4, masks.length );
+		for ( int k = 0; k < masks.length; k++ )
+		{
+			final double[] row = new double[ masks[ k ].getNumColumns() ];
+			masks[ k ].sample( frame, false, row, 0 );
+			assertArrayEquals( "Ray " + k, new double[] { 0, 1, 4, 9, 16 }, row, 0 );
+		}
+
+		// Rays start along x and turn towards y.
+		final double[][] ends = new double[][] { { 14, 10 }, { 10, 14 }, { 6, 10 }, { 10, 6 } };
+		for ( int k = 0; k < masks.length; k++ )
+		{
+			final ArrayList< double[] > positions = masks[ k ].getSamplingPositions();
+			assertArrayEquals( new double[] { 10, 10 }, positions.get( 0 ), 1e-12 );
+			assertArrayEquals( "Ray " + k, ends[ k ], positions.get( positions.size() - 1 ), 1e-12 );
+		}
+	}
+
+	@Test
+	public void testProfilesAcrossRays()
+	{
+		// The profiles are symmetric across the rays, so their mean over a
+		// linear frame is the value on the ray.
+		final int size = 41;
+		final double[] frame = new double[ size * size ];
+		for ( int y = 0; y < size; y++ )
+			for ( int x = 0; x < size; x++ )
+				frame[ x + y * size ] = x + 100 * y;
+
+		final ROItoKymograph extractor = new ROItoKymograph( 2, 0.5 );
+		extractor.setInterpolation( SamplingInterpolation.LINEAR );
+		final int numRays = 7;
+		final KymographMask[] masks = extractor.compileRadialMasks( size, size, 20, 20, 15, numRays );
+		for ( int k = 0; k < numRays; k++ )
+		{
+			assertEquals( 31, masks[ k ].getNumColumns() );
+			final double angle = 2 * Math.PI * k / numRays;
+			final double slope = Math.cos( angle ) + 100 * Math.sin( angle );
+			final double[] row = new double[ masks[ k ].getNumColumns() ];
+			masks[ k ].sample( frame, false, row, 0 );
+			for ( int j = 0; j < row.length; j++ )
+				assertEquals( "Ray " + k + ", column " + j, 2020 + 0.5 * j * slope, row[ j ], 1e-3 );
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testRadialMasksNeedARay()
+	{
+		new ROItoKymograph().compileRadialMasks( 10, 10, 5, 5, 3, 0 );
+	}
+
+	private static ArrayList< Point2D > createSquare()
+	{
+		return new ArrayList< Point2D >( Arrays.asList( new Point2D[] {
+				new Point2D.Double( 10, 10 ),
+				new Point2D.Double( 40, 10 ),
+				new Point2D.Double( 40, 40 ),
+				new Point2D.Double( 10, 40 ) } ) );
+	}
+
+	@Test
+	public void testOutlineOfClosedContours()
+	{
+		final ROI2DPolygon polygon = new ROI2DPolygon( createSquare() );
+		final ROI2DPolyLine polyline = new ROI2DPolyLine( createSquare() );
+		assertTrue( ROItoKymograph.isClosed( polygon ) );
+		assertFalse( ROItoKymograph.isClosed( polyline ) );
+
+		assertEquals( 4, ROItoKymograph.getOutline( polygon, false ).size() );
+		final ArrayList< double[] > outline = ROItoKymograph.getOutline( polygon, true );
+		assertEquals( 5, outline.size() );
+		assertArrayEquals( outline.get( 0 ), outline.get( 4 ), 0 );
+		// Open paths are never closed.
+		assertEquals( 4, ROItoKymograph.getOutline( polyline, true ).size() );
+	}
+
+	@Test
+	public void testClosedContoursAreUnwrappedWithoutSeam()
+	{
+		final ROI2DPolygon square = new ROI2DPolygon( createSquare() );
+		final ROItoKymograph extractor = new ROItoKymograph( 2, 1 );
+
+		// Sampled along the open spline, the side closing the square is left
+		// out.
+		double[][] columns = extractor.getColumns( square );
+		assertEquals( 90, columns.length );
+		assertTrue( distance( columns[ columns.length - 1 ], columns[ 0 ] ) > 25 );
+
+		// One column per pixel of the perimeter, and the last column is one
+		// step before the first.
+		extractor.setUnwrapClosedContours( true );
+		columns = extractor.getColumns( square );
+		assertEquals( 120, columns.length );
+		assertEquals( 1, distance( columns[ columns.length - 1 ], columns[ 0 ] ), 0.1 );
+		for ( int j = 0; j < columns.length; j++ )
+			assertEquals( 1, columns[ j ][ 2 ] * columns[ j ][ 2 ] + columns[ j ][ 3 ] * columns[ j ][ 3 ], 1e-12 );
+
+		// Open paths are not affected.
+		assertEquals( 90, extractor.getColumns( new ROI2DPolyLine( createSquare() ) ).length );
+		// Degenerate contours fall back on the open spline.
+		final ArrayList< Point2D > segment = new ArrayList< Point2D >( createSquare().subList( 0, 2 ) );
+		assertEquals( 30, extractor.compileClosedContourMask( 64, 64, new ROI2DPolygon( segment ) ).getNumColumns() );
+	}
+
+	@Test
+	public void testUnwrappedCircleIsARing()
+	{
+		// Polygon of 60 vertices on a circle of radius 20.
+		final ArrayList< Point2D > points = new ArrayList< Point2D >();
+		for ( int i = 0; i < 60; i++ )
+			points.add( new Point2D.Double( 32 + 20 * Math.cos( 2 * Math.PI * i / 60 ), 32 + 20 * Math.sin( 2 * Math.PI * i / 60 ) ) );
+		final ROItoKymograph extractor = new ROItoKymograph( 2, 1 );
+		extractor.setUnwrapClosedContours( true );
+
+		// All the columns are on the circle, and sample profiles along its
+		// radius, including across the seam.
+		final double[][] columns = extractor.getColumns( new ROI2DPolygon( points ) );
+		for ( int j = 0; j < columns.length; j++ )
+		{
+			final double dx = columns[ j ][ 0 ] - 32;
+			final double dy = columns[ j ][ 1 ] - 32;
+			final double r = Math.sqrt( dx * dx + dy * dy );
+			assertEquals( "Column " + j, 20, r, 0.1 );
+			assertEquals( "Column " + j, 1, Math.abs( dx * columns[ j ][ 2 ] + dy * columns[ j ][ 3 ] ) / r, 1e-3 );
+		}
+	}
+
+	private static double distance( final double[] p1, final double[] p2 )
+	{
+		return Math.sqrt( ( p1[ 0 ] - p2[ 0 ] ) * ( p1[ 0 ] - p2[ 0 ] ) + ( p1[ 1 ] - p2[ 1 ] ) * ( p1[ 1 ] - p2[ 1 ] ) );
+	}
+}
@@ -0,0 +1,94 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SlidingMedianTest
+{
+
+	@Test
+	public void testSubtractsMedianOfPrecedingRows()
+	{
+		// Two columns: a varying one and a constant one.
+		final double[] values = new double[] { 5, 3, 1, 3, 4, 3, 2, 3, 8, 3, 8, 3, 0, 3 };
+		final SlidingMedian median = new SlidingMedian( 2, 3 );
+		for ( int y = 0; y < values.length / 2; y++ )
+			median.subtract( values, 2 * y );
+		assertArrayEquals( new double[] { 5, 3, -4, 0, 1, 0, -2, 0, 6, 0, 4, 0, -8, 0 }, values, 0 );
+	}
+
+	@Test
+	public void testMatchesMedianOfPrecedingRows()
+	{
+		final Random random = new Random( 1l );
+		final int numColumns = 7;
+		final int numRows = 60;
+		for ( final int window : new int[] { 2, 3, 8, 11 } )
+		{
+			final double[][] rows = new double[ numRows ][ numColumns ];
+			for ( int y = 0; y < numRows; y++ )
+				for ( int x = 0; x < numColumns; x++ )
+					// Few distinct values, to have ties.
+					rows[ y ][ x ] = random.nextInt( 10 ) + ( x == 0 ? 0 : random.nextGaussian() );
+
+			// Rows are stored one after the other, at an offset.
+			final int offset = 3;
+			final double[] values = new double[ offset + numRows * numColumns ];
+			for ( int y = 0; y < numRows; y++ )
+				System.arraycopy( rows[ y ], 0, values, offset + y * numColumns, numColumns );
+
+			final SlidingMedian median = new SlidingMedian( numColumns, window );
+			for ( int y = 0; y < numRows; y++ )
+			{
+				median.subtract( values, offset + y * numColumns );
+				final int n = Math.min( y, window );
+				for ( int x = 0; x < numColumns; x++ )
+				{
+					double expected = rows[ y ][ x ];
+					if ( n > 0 )
+					{
+						final double[] previous = new double[ n ];
+						for ( int k = 0; k < n; k++ )
+							previous[ k ] = rows[ y - n + k ][ x ];
+						Arrays.sort( previous );
+						expected -= ( n % 2 == 1 ) ? previous[ n / 2 ] : 0.5 * ( previous[ n / 2 - 1 ] + previous[ n / 2 ] );
+					}
+					assertEquals( "Window " + window + ", row " + y + ", column " + x, expected, values[ offset + y * numColumns + x ], 1e-12 );
+				}
+			}
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testRejectsWindowsShorterThanTwo()
+	{
+		new SlidingMedian( 4, 1 );
+	}
+}
@@ -0,0 +1,215 @@
+package plugins.tinevez.kymographtracker;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+public class TiledKymographTest
+{
+
+	private static final int WIDTH = 53;
+
+	private static final int HEIGHT = 47;
+
+	private static final int SIZE_C = 2;
+
+	/**
+	 * Returns a small tiled kymograph backed by a temporary file, with tiles
+	 * that do not divide its size.
+	 */
+	static TiledKymograph createTiledKymograph( final int width, final int height, final DataType dataType ) throws IOException
+	{
+		final File file = File.createTempFile( "kymograph", ".tiles" );
+		file.deleteOnExit();
+		return new TiledKymograph( width, height, SIZE_C, dataType, 16, 8, file, true );
+	}
+
+	private static short[][] createKymograph( final Random random )
+	{
+		final short[][] kymograph = new short[ SIZE_C ][ WIDTH * HEIGHT ];
+		for ( int c = 0; c < SIZE_C; c++ )
+			for ( int i = 0; i < kymograph[ c ].length; i++ )
+				kymograph[ c ][ i ] = ( short ) random.nextInt( 65536 );
+		return kymograph;
+	}
+
+	/**
+	 * Writes the rows of a kymograph in blocks of the specified number of
+	 * rows, not aligned on the tiles.
+	 */
+	private static void writeRows( final TiledKymograph tiled, final short[][] kymograph, final int blockRows ) throws IOException
+	{
+		for ( int r0 = 0; r0 < HEIGHT; r0 += blockRows )
+		{
+			final int numRows = Math.min( blockRows, HEIGHT - r0 );
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final short[] values = new short[ numRows * WIDTH ];
+				System.arraycopy( kymograph[ c ], r0 * WIDTH, values, 0, values.length );
+				tiled.writeRows( c, r0, values, numRows );
+			}
+		}
+	}
+
+	private static short[] crop( final short[] kymograph, final Rectangle region )
+	{
+		final short[] expected = new short[ region.width * region.height ];
+		for ( int y = 0; y < region.height; y++ )
+			System.arraycopy( kymograph, ( region.y + y ) * WIDTH + region.x, expected, y * region.width, region.width );
+		return expected;
+	}
+
+	@Test
+	public void testRegionsMatchKymograph() throws IOException
+	{
+		final Random random = new Random( 1l );
+		final short[][] kymograph = createKymograph( random );
+		for ( final int blockRows : new int[] { 1, 5, HEIGHT } )
+		{
+			final TiledKymograph tiled = createTiledKymograph( WIDTH, HEIGHT, DataType.USHORT );
+			// Few cached tiles, so that tiles are read again from the file.
+			tiled.setMaxCachedTiles( 3 );
+			writeRows( tiled, kymograph, blockRows );
+
+			final Rectangle[] regions = new Rectangle[ 30 ];
+			regions[ 0 ] = new Rectangle( 0, 0, WIDTH, HEIGHT );
+			regions[ 1 ] = new Rectangle( WIDTH - 1, HEIGHT - 1, 1, 1 );
+			for ( int k = 2; k < regions.length; k++ )
+			{
+				final int x = random.nextInt( WIDTH );
+				final int y = random.nextInt( HEIGHT );
+				regions[ k ] = new Rectangle( x, y, 1 + random.nextInt( WIDTH - x ), 1 + random.nextInt( HEIGHT - y ) );
+			}
+			for ( final Rectangle region : regions )
+			{
+				for ( int c = 0; c < SIZE_C; c++ )
+				{
+					final short[] actual = new short[ region.width * region.height ];
+					tiled.readRegion( c, region, actual );
+					assertArrayEquals( "Region " + region + ", channel " + c + ", blocks of " + blockRows + " rows", crop( kymograph[ c ], region ), actual );
+				}
+			}
+
+			final File file = tiled.getFile();
+			tiled.close();
+			assertFalse( "The temporary file is deleted when closed", file.exists() );
+		}
+	}
+
+	@Test
+	public void testRowsCanBeRewritten() throws IOException
+	{
+		final Random random = new Random( 2l );
+		final short[][] kymograph = createKymograph( random );
+		final TiledKymograph tiled = createTiledKymograph( WIDTH, HEIGHT, DataType.USHORT );
+		writeRows( tiled, kymograph, 7 );
+
+		// Rewrite a few rows in the middle of a band of tiles, after the band
+		// was flushed and read.
+		final Rectangle all = new Rectangle( 0, 0, WIDTH, HEIGHT );
+		tiled.readRegion( 0, all, new short[ WIDTH * HEIGHT ] );
+		final int r0 = 11;
+		final int numRows = 3;
+		for ( int c = 0; c < SIZE_C; c++ )
+		{
+			final short[] values = new short[ numRows * WIDTH ];
+			for ( int i = 0; i < values.length; i++ )
+				values[ i ] = ( short ) random.nextInt( 65536 );
+			System.arraycopy( values, 0, kymograph[ c ], r0 * WIDTH, values.length );
+			tiled.writeRows( c, r0, values, numRows );
+		}
+		for ( int c = 0; c < SIZE_C; c++ )
+		{
+			final short[] actual = new short[ WIDTH * HEIGHT ];
+			tiled.readRegion( c, all, actual );
+			assertArrayEquals( "Channel " + c, kymograph[ c ], actual );
+		}
+		tiled.close();
+	}
+
+	@Test
+	public void testRegionSequence() throws IOException
+	{
+		final Random random = new Random( 3l );
+		final short[][] kymograph = createKymograph( random );
+		final TiledKymograph tiled = createTiledKymograph( WIDTH, HEIGHT, DataType.USHORT );
+		tiled.setCalibration( 0.5, 0.25, 2 );
+		writeRows( tiled, kymograph, 9 );
+
+		// Regions are clipped to the kymograph.
+		final Sequence region = tiled.getRegion( new Rectangle( 40, -3, 20, 10 ) );
+		final Rectangle clipped = new Rectangle( 40, 0, WIDTH - 40, 7 );
+		assertEquals( clipped.width, region.getSizeX() );
+		assertEquals( clipped.height, region.getSizeY() );
+		assertEquals( SIZE_C, region.getSizeC() );
+		assertEquals( DataType.USHORT, region.getDataType_() );
+		assertEquals( 0.5, region.getPixelSizeX(), 0 );
+		assertEquals( 2, region.getTimeInterval(), 0 );
+		for ( int c = 0; c < SIZE_C; c++ )
+			assertArrayEquals( crop( kymograph[ c ], clipped ), ( short[] ) region.getDataXY( 0, 0, c ) );
+		tiled.close();
+	}
+
+	@Test
+	public void testDataTypes() throws IOException
+	{
+		final Random random = new Random( 4l );
+		for ( final DataType dataType : new DataType[] { DataType.UBYTE, DataType.INT, DataType.FLOAT, DataType.DOUBLE } )
+		{
+			final TiledKymograph tiled = createTiledKymograph( WIDTH, HEIGHT, dataType );
+			final double[] expected = new double[ WIDTH * HEIGHT ];
+			for ( int i = 0; i < expected.length; i++ )
+				expected[ i ] = random.nextInt( 100 );
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final Object values = Array1DUtil.createArray( dataType, expected.length );
+				Array1DUtil.doubleArrayToSafeArray( expected, values, dataType.isSigned() );
+				tiled.writeRows( c, 0, values, HEIGHT );
+			}
+			final Rectangle region = new Rectangle( 5, 9, 30, 20 );
+			final double[] crop = new double[ region.width * region.height ];
+			for ( int y = 0; y < region.height; y++ )
+				System.arraycopy( expected, ( region.y + y ) * WIDTH + region.x, crop, y * region.width, region.width );
+			for ( int c = 0; c < SIZE_C; c++ )
+			{
+				final Object actual = Array1DUtil.createArray( dataType, crop.length );
+				tiled.readRegion( c, region, actual );
+				assertArrayEquals( dataType.toString(), crop, Array1DUtil.arrayToDoubleArray( actual, dataType.isSigned() ), 0 );
+			}
+			tiled.close();
+		}
+	}
+}
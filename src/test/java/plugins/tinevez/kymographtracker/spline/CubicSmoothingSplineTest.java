@@ -0,0 +1,165 @@
+package plugins.tinevez.kymographtracker.spline;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CubicSmoothingSplineTest
+{
+
+	private static final double TOLERANCE = 1e-9;
+
+	private static double[] abscissae( final Random random, final int n )
+	{
+		final double[] x = new double[ n ];
+		x[ 0 ] = random.nextDouble();
+		for ( int i = 1; i < n; i++ )
+			x[ i ] = x[ i - 1 ] + 0.1 + random.nextDouble();
+		return x;
+	}
+
+	private static double[] values( final Random random, final int n )
+	{
+		final double[] y = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+			y[ i ] = 10 * random.nextGaussian();
+		return y;
+	}
+
+	@Test
+	public void testBatchEvaluationMatchesPointEvaluation()
+	{
+		final Random random = new Random( 1l );
+		final double[] x = abscissae( random, 40 );
+		final CubicSmoothingSpline spline = new CubicSmoothingSpline( x, values( random, x.length ), 0.7 );
+
+		// Sorted arguments, including the knots and points outside of the
+		// abscissae, then the same arguments shuffled.
+		final double[] z = new double[ 300 ];
+		final double start = x[ 0 ] - 2;
+		final double step = ( x[ x.length - 1 ] + 2 - start ) / ( z.length - x.length );
+		for ( int k = 0; k < z.length - x.length; k++ )
+			z[ k ] = start + k * step;
+		System.arraycopy( x, 0, z, z.length - x.length, x.length );
+		Arrays.sort( z );
+		checkBatchEvaluation( spline, z );
+
+		for ( int k = z.length - 1; k > 0; k-- )
+		{
+			final int j = random.nextInt( k + 1 );
+			final double tmp = z[ k ];
+			z[ k ] = z[ j ];
+			z[ j ] = tmp;
+		}
+		checkBatchEvaluation( spline, z );
+	}
+
+	private static void checkBatchEvaluation( final CubicSmoothingSpline spline, final double[] z )
+	{
+		final double[] values = new double[ z.length ];
+		final double[] derivatives = new double[ z.length ];
+		spline.evaluate( z, values, derivatives );
+		for ( int k = 0; k < z.length; k++ )
+		{
+			assertEquals( "Value at " + z[ k ], spline.evaluate( z[ k ] ), values[ k ], TOLERANCE );
+			assertEquals( "Derivative at " + z[ k ], spline.derivative( z[ k ] ), derivatives[ k ], TOLERANCE );
+		}
+
+		// Either output can be omitted.
+		final double[] valuesOnly = new double[ z.length ];
+		spline.evaluate( z, valuesOnly, null );
+		final double[] derivativesOnly = new double[ z.length ];
+		spline.evaluate( z, null, derivativesOnly );
+		for ( int k = 0; k < z.length; k++ )
+		{
+			assertEquals( values[ k ], valuesOnly[ k ], 0 );
+			assertEquals( derivatives[ k ], derivativesOnly[ k ], 0 );
+		}
+	}
+
+	@Test
+	public void testCreateSplinesReproducesLines()
+	{
+		// Series on the lines 2x + 1 and 3 - x/2, at uneven abscissae.
+		final double[] x = new double[] { -1, 0, 0.5, 2, 2.25, 4 };
+		final double[][] ys = new double[ 2 ][ x.length ];
+		for ( int i = 0; i < x.length; i++ )
+		{
+			ys[ 0 ][ i ] = 2 * x[ i ] + 1;
+			ys[ 1 ][ i ] = 3 - x[ i ] / 2;
+		}
+		for ( final double rho : new double[] { 0, 0.5, 1 } )
+		{
+			final CubicSmoothingSpline[] splines = CubicSmoothingSpline.createSplines( x, ys, null, rho );
+			for ( double z = -2; z <= 5; z += 0.25 )
+			{
+				assertEquals( "rho = " + rho + ", z = " + z, 2 * z + 1, splines[ 0 ].evaluate( z ), TOLERANCE );
+				assertEquals( "rho = " + rho + ", z = " + z, 2, splines[ 0 ].derivative( z ), TOLERANCE );
+				assertEquals( "rho = " + rho + ", z = " + z, 3 - z / 2, splines[ 1 ].evaluate( z ), TOLERANCE );
+				assertEquals( "rho = " + rho + ", z = " + z, -0.5, splines[ 1 ].derivative( z ), TOLERANCE );
+			}
+		}
+	}
+
+	@Test
+	public void testCreateSplinesMatchesSingleFits()
+	{
+		final Random random = new Random( 2l );
+		final double[] x = abscissae( random, 25 );
+		final double[] w = new double[ x.length ];
+		for ( int i = 0; i < w.length; i++ )
+			w[ i ] = 0.5 + random.nextDouble();
+		final double[][] ys = new double[ 3 ][];
+		for ( int k = 0; k < ys.length; k++ )
+			ys[ k ] = values( random, x.length );
+
+		for ( final double[] weights : new double[][] { null, w } )
+		{
+			for ( final double rho : new double[] { 0, 0.3, 1 } )
+			{
+				final CubicSmoothingSpline[] splines = CubicSmoothingSpline.createSplines( x, ys, weights, rho );
+				assertEquals( ys.length, splines.length );
+				for ( int k = 0; k < ys.length; k++ )
+				{
+					final CubicSmoothingSpline single = new CubicSmoothingSpline( x, ys[ k ], weights, rho );
+					for ( double z = x[ 0 ] - 1; z <= x[ x.length - 1 ] + 1; z += 0.05 )
+					{
+						assertEquals( "Value of series " + k + " at " + z + ", rho = " + rho, single.evaluate( z ), splines[ k ].evaluate( z ), TOLERANCE );
+						assertEquals( "Derivative of series " + k + " at " + z + ", rho = " + rho, single.derivative( z ), splines[ k ].derivative( z ), TOLERANCE );
+					}
+				}
+			}
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testCreateSplinesRejectsMismatchedSeries()
+	{
+		CubicSmoothingSpline.createSplines( new double[] { 0, 1, 2 }, new double[][] { { 0, 1, 2 }, { 0, 1 } }, null, 0.5 );
+	}
+}
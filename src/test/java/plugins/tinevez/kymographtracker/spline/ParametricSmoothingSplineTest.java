@@ -0,0 +1,91 @@
+package plugins.tinevez.kymographtracker.spline;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ParametricSmoothingSplineTest
+{
+
+	private static final double TOLERANCE = 1e-9;
+
+	@Test
+	public void testStraightPathIsReproduced()
+	{
+		// Points along the direction (3/5, 4/5), at arc lengths 0, 5, 15 and
+		// 17.5.
+		final double[] xs = new double[] { 0, 3, 9, 10.5 };
+		final double[] ys = new double[] { 0, 4, 12, 14 };
+		final ParametricSmoothingSpline spline = new ParametricSmoothingSpline( xs, ys, xs.length, 0.5 );
+		assertEquals( 17.5, spline.getLength(), TOLERANCE );
+		assertArrayEquals( new double[] { 0, 5, 15, 17.5 }, spline.getXSpline().getX(), TOLERANCE );
+		assertArrayEquals( new double[] { 0, 5, 15, 17.5 }, spline.getYSpline().getX(), TOLERANCE );
+		for ( double s = 0; s <= 17.5; s += 0.5 )
+		{
+			assertEquals( "x at " + s, 0.6 * s, spline.getXSpline().evaluate( s ), TOLERANCE );
+			assertEquals( "y at " + s, 0.8 * s, spline.getYSpline().evaluate( s ), TOLERANCE );
+		}
+	}
+
+	@Test
+	public void testInterpolatingSplinePassesThroughThePoints()
+	{
+		// A unit square, open at its last side.
+		final double[] xs = new double[] { 0, 1, 1, 0 };
+		final double[] ys = new double[] { 0, 0, 1, 1 };
+		final ParametricSmoothingSpline spline = new ParametricSmoothingSpline( xs, ys, xs.length, 1 );
+		assertEquals( 3, spline.getLength(), TOLERANCE );
+		for ( int i = 0; i < xs.length; i++ )
+		{
+			assertEquals( xs[ i ], spline.getXSpline().evaluate( i ), TOLERANCE );
+			assertEquals( ys[ i ], spline.getYSpline().evaluate( i ), TOLERANCE );
+		}
+	}
+
+	@Test
+	public void testRepeatedPointsAreIgnored()
+	{
+		final double[] xs = new double[] { 2, 5, 5, 7, 1, 1, 1 };
+		final double[] ys = new double[] { 1, 5, 5, 5, 3, 3, 3 };
+		final ParametricSmoothingSpline spline = new ParametricSmoothingSpline( xs, ys, xs.length, 0.5 );
+
+		// Only the 4 distinct points are read, and the points after
+		// numPoints are not.
+		final double[] distinctXs = new double[] { 2, 5, 7, 1, -100 };
+		final double[] distinctYs = new double[] { 1, 5, 5, 3, -100 };
+		final ParametricSmoothingSpline expected = new ParametricSmoothingSpline( distinctXs, distinctYs, 4, 0.5 );
+
+		assertEquals( 5 + 2 + Math.sqrt( 40 ), spline.getLength(), TOLERANCE );
+		assertEquals( expected.getLength(), spline.getLength(), 0 );
+		assertArrayEquals( expected.getXSpline().getX(), spline.getXSpline().getX(), 0 );
+		for ( double s = -1; s <= spline.getLength() + 1; s += 0.25 )
+		{
+			assertEquals( "x at " + s, expected.getXSpline().evaluate( s ), spline.getXSpline().evaluate( s ), TOLERANCE );
+			assertEquals( "y at " + s, expected.getYSpline().evaluate( s ), spline.getYSpline().evaluate( s ), TOLERANCE );
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package plugins.tinevez.rieszwavelets;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
+
+public class RieszConfigTest
+{
+
+	private static final double TOLERANCE = 1e-9;
+
+	/** Image sizes, with odd and even dimensions. */
+	private static final int[][] SIZES = new int[][] {{5, 4}, {4, 6}, {7, 3}, {1, 5}};
+
+	private static double[] createImage(int width, int height, double phase)
+	{
+		double[] image = new double[width*height];
+		for (int j = 0; j < image.length; j++)
+			image[j] = (j*j) % 11 + Math.sin(j + phase);
+		return image;
+	}
+
+	@Test
+	public void testSpectraOfAnImpulseAndAConstant()
+	{
+		int width = 5;
+		int height = 4;
+		double[] a = new double[width*height];
+		a[1 + 2*width] = 1;
+		double[] b = new double[width*height];
+		Arrays.fill(b, 3);
+
+		double[] aFFT = new double[2*width*height];
+		double[] bFFT = new double[2*width*height];
+		new RieszConfig.Workspace(width, height).forwardReal(a, b, aFFT, bFFT);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				int t = 2*(x + y*width);
+				// Impulse at (1, 2): exp(-2 i pi (x/width + 2y/height)).
+				double angle = -2*Math.PI*((double) x/width + 2.0*y/height);
+				assertEquals(Math.cos(angle), aFFT[t], TOLERANCE);
+				assertEquals(Math.sin(angle), aFFT[t + 1], TOLERANCE);
+				// Constant: only the DC coefficient, 3*width*height.
+				assertEquals((t == 0) ? 3*width*height : 0, bFFT[t], TOLERANCE);
+				assertEquals(0, bFFT[t + 1], TOLERANCE);
+			}
+	}
+
+	@Test
+	public void testForwardRealMatchesComplexFFT()
+	{
+		for (int[] size : SIZES)
+		{
+			int width = size[0];
+			int height = size[1];
+			double[] a = createImage(width, height, 0);
+			double[] b = createImage(width, height, 1);
+
+			DoubleFFT_2D fft = new DoubleFFT_2D(height, width);
+			double[] expectedA = new double[2*width*height];
+			double[] expectedB = new double[2*width*height];
+			for (int j = 0; j < width*height; j++)
+			{
+				expectedA[2*j] = a[j];
+				expectedB[2*j] = b[j];
+			}
+			fft.complexForward(expectedA);
+			fft.complexForward(expectedB);
+
+			RieszConfig.Workspace workspace = new RieszConfig.Workspace(width, height);
+			double[] aFFT = new double[2*width*height];
+			double[] bFFT = new double[2*width*height];
+			workspace.forwardReal(a, b, aFFT, bFFT);
+			assertArrayEquals(width + "x" + height, expectedA, aFFT, TOLERANCE);
+			assertArrayEquals(width + "x" + height, expectedB, bFFT, TOLERANCE);
+
+			// The second image is optional.
+			double[] aOnly = new double[2*width*height];
+			workspace.forwardReal(a, null, aOnly, null);
+			assertArrayEquals(width + "x" + height, expectedA, aOnly, TOLERANCE);
+		}
+	}
+
+	@Test
+	public void testInverseRealRecoversImages()
+	{
+		for (int[] size : SIZES)
+		{
+			int width = size[0];
+			int height = size[1];
+			double[] a = createImage(width, height, 2);
+			double[] b = createImage(width, height, 3);
+			RieszConfig.Workspace workspace = new RieszConfig.Workspace(width, height);
+			double[] aFFT = new double[2*width*height];
+			double[] bFFT = new double[2*width*height];
+			workspace.forwardReal(a, b, aFFT, bFFT);
+
+			double[] a2 = new double[width*height];
+			double[] b2 = new double[width*height];
+			workspace.inverseReal(aFFT, bFFT, a2, b2);
+			assertArrayEquals(width + "x" + height, a, a2, TOLERANCE);
+			assertArrayEquals(width + "x" + height, b, b2, TOLERANCE);
+			workspace.inverseReal(bFFT, null, b2, null);
+			assertArrayEquals(width + "x" + height, b, b2, TOLERANCE);
+		}
+	}
+
+	@Test
+	public void testInverseRealKeepsTheRealPart()
+	{
+		// Spectra that are not Hermitian: a single coefficient i at (1, 0),
+		// and 2 at (0, 1). The inverse FFTs are i exp(2 i pi x/width) and
+		// 2 exp(2 i pi y/height), divided by width*height.
+		int width = 5;
+		int height = 4;
+		double[] aFFT = new double[2*width*height];
+		aFFT[2*1 + 1] = 1;
+		double[] bFFT = new double[2*width*height];
+		bFFT[2*width] = 2;
+
+		double[] a = new double[width*height];
+		double[] b = new double[width*height];
+		new RieszConfig.Workspace(width, height).inverseReal(aFFT, bFFT, a, b);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				assertEquals(-Math.sin(2*Math.PI*x/width)/(width*height), a[x + y*width], TOLERANCE);
+				assertEquals(2*Math.cos(2*Math.PI*y/height)/(width*height), b[x + y*width], TOLERANCE);
+			}
+	}
+}
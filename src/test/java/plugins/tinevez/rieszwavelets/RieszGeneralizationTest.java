@@ -0,0 +1,188 @@
+package plugins.tinevez.rieszwavelets;
+
+/*-
+ * #%L
+ * KymographTracker2
+ * %%
+ * Copyright (C) 2016 - 2021 Nicolas Chenouard, Jean-Yves Tinevez
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RieszGeneralizationTest
+{
+
+	private static final double TOLERANCE = 1e-12;
+
+	/** Number of coefficients, not a multiple of the block size. */
+	private static final int NUM_COEFFICIENTS = 2*RieszGeneralization.COMBINE_BLOCK_SIZE + 37;
+
+	private static RieszGeneralization createGeneralization()
+	{
+		return new RieszGeneralization(StandardRieszFrames.CircularHarmonics, new RieszConfig(3, HarmonicTypes.complete));
+	}
+
+	private static double[][] randomBands(Random random, int numBands)
+	{
+		double[][] bands = new double[numBands][2*NUM_COEFFICIENTS];
+		for (int j = 0; j < numBands; j++)
+			for (int t = 0; t < bands[j].length; t++)
+				bands[j][t] = random.nextGaussian();
+		return bands;
+	}
+
+	private static double[][] randomMatrix(Random random, int numBands, int numOutputs)
+	{
+		double[][] weightMatrix = new double[numBands][2*numOutputs];
+		for (int j = 0; j < numBands; j++)
+			for (int i = 0; i < 2*numOutputs; i++)
+				weightMatrix[j][i] = random.nextGaussian();
+		return weightMatrix;
+	}
+
+	/**
+	 * Reference combination, one coefficient at a time.
+	 */
+	private static double[][] naiveCombine(double[][] bands, double[][] weightMatrix)
+	{
+		int numCoefficients = bands[0].length/2;
+		int numOutputs = weightMatrix[0].length/2;
+		double[][] projectedBands = new double[numOutputs][2*numCoefficients];
+		for (int i = 0; i < numOutputs; i++)
+			for (int j = 0; j < bands.length; j++)
+			{
+				double wr = weightMatrix[j][2*i];
+				double wi = weightMatrix[j][2*i + 1];
+				for (int t = 0; t < numCoefficients; t++)
+				{
+					projectedBands[i][2*t] += bands[j][2*t]*wr - bands[j][2*t + 1]*wi;
+					projectedBands[i][2*t + 1] += bands[j][2*t]*wi + bands[j][2*t + 1]*wr;
+				}
+			}
+		return projectedBands;
+	}
+
+	private static double[][] copy(double[][] bands)
+	{
+		double[][] copy = new double[bands.length][];
+		for (int j = 0; j < bands.length; j++)
+			copy[j] = bands[j].clone();
+		return copy;
+	}
+
+	private static void assertBandsEquals(double[][] expected, double[][] actual)
+	{
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals("Band " + i, expected[i], actual[i], TOLERANCE);
+	}
+
+	@Test
+	public void testCombinationOfOneCoefficient()
+	{
+		// bands 1 + 2i and 3 - i, combined into i(1 + 2i) + 2(3 - i) and (1 + i)(1 + 2i)
+		double[][] bands = new double[][] {{1, 2}, {3, -1}};
+		double[][] weightMatrix = new double[][] {{0, 1, 1, 1}, {2, 0, 0, 0}};
+		double[][] combined = createGeneralization().combineBandsComplex(bands, weightMatrix);
+		assertBandsEquals(new double[][] {{4, -1}, {-1, 3}}, combined);
+	}
+
+	@Test
+	public void testFullMatrixMatchesNaiveCombination()
+	{
+		Random random = new Random(1l);
+		RieszGeneralization generalization = createGeneralization();
+		for (int[] size : new int[][] {{4, 4}, {3, 5}, {5, 2}})
+		{
+			double[][] bands = randomBands(random, size[0]);
+			double[][] weightMatrix = randomMatrix(random, size[0], size[1]);
+			assertFalse(RieszGeneralization.isDiagonal(weightMatrix, bands.length));
+			double[][] expected = naiveCombine(bands, weightMatrix);
+			double[][] original = copy(bands);
+			assertBandsEquals(expected, generalization.combineBandsComplex(bands, weightMatrix));
+			// The bands are left untouched.
+			assertBandsEquals(original, bands);
+		}
+	}
+
+	@Test
+	public void testDiagonalMatrixMatchesNaiveCombination()
+	{
+		Random random = new Random(2l);
+		RieszGeneralization generalization = createGeneralization();
+		int numBands = 4;
+		double[][] bands = randomBands(random, numBands);
+		double[][] weightMatrix = new double[numBands][2*numBands];
+		for (int i = 0; i < numBands; i++)
+		{
+			weightMatrix[i][2*i] = random.nextGaussian();
+			weightMatrix[i][2*i + 1] = random.nextGaussian();
+		}
+		// identity weight, copied as is
+		weightMatrix[1][2] = 1;
+		weightMatrix[1][3] = 0;
+		assertTrue(RieszGeneralization.isDiagonal(weightMatrix, numBands));
+		assertBandsEquals(naiveCombine(bands, weightMatrix), generalization.combineBandsComplex(bands, weightMatrix));
+	}
+
+	@Test
+	public void testInPlaceCombination()
+	{
+		Random random = new Random(3l);
+		RieszGeneralization generalization = createGeneralization();
+		int numBands = 5;
+
+		double[][] bands = randomBands(random, numBands);
+		double[][] weightMatrix = randomMatrix(random, numBands, numBands);
+		double[][] expected = naiveCombine(bands, weightMatrix);
+		double[][] combined = generalization.combineBandsComplex(bands, weightMatrix, bands);
+		assertSame(bands, combined);
+		assertBandsEquals(expected, combined);
+
+		double[][] diagonal = new double[numBands][2*numBands];
+		for (int i = 0; i < numBands; i++)
+		{
+			diagonal[i][2*i] = random.nextGaussian();
+			diagonal[i][2*i + 1] = random.nextGaussian();
+		}
+		expected = naiveCombine(bands, diagonal);
+		assertBandsEquals(expected, generalization.combineBandsComplex(bands, diagonal, bands));
+	}
+
+	@Test
+	public void testPreallocatedOutput()
+	{
+		Random random = new Random(4l);
+		RieszGeneralization generalization = createGeneralization();
+		double[][] bands = randomBands(random, 3);
+		double[][] weightMatrix = randomMatrix(random, 3, 2);
+		double[] first = new double[2*NUM_COEFFICIENTS];
+		double[][] output = new double[][] {first, null};
+		double[][] combined = generalization.combineBandsComplex(bands, weightMatrix, output);
+		assertSame(first, combined[0]);
+		assertBandsEquals(naiveCombine(bands, weightMatrix), combined);
+	}
+}